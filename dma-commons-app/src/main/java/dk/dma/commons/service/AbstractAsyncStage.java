@@ -0,0 +1,190 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A stage that answers requests. {@link #submit(Object)} puts a request on the input queue and returns a future that
+ * is completed by the stage thread, once the request has been handled. This allows a single stage to own some state,
+ * for example an index of the latest position of each vessel, that can be both updated and queried without any locks.
+ * <p>
+ * The stage thread drains all requests that are available, up to the maximum batch size, and handles them one by one
+ * before starting on the next batch. So callers that submit many requests without waiting for each answer still get
+ * pipelined throughput.
+ * <p>
+ * If handling a request fails, only the future of that request is completed exceptionally. Requests remaining in the
+ * input queue when the stage is stopped are handled before the stage terminates. Requests submitted after the stage
+ * has been stopped fail with an {@link IllegalStateException}. Requests are never dropped, so only the
+ * {@link OverflowPolicy#block() block} overflow policy is supported.
+ *
+ * @param <Q> the type of requests
+ * @param <R> the type of responses
+ * @author Kasper Nielsen
+ */
+public abstract class AbstractAsyncStage<Q, R>
+        extends AbstractMessageProcessorService<AbstractAsyncStage.Request<Q, R>> {
+
+    /** The maximum number of requests to handle in a batch. */
+    private final int maxBatchSize;
+
+    /**
+     * Instantiates a new async stage.
+     *
+     * @param queueSize    the queue size
+     * @param maxBatchSize the maximum number of requests to handle in a batch
+     */
+    protected AbstractAsyncStage(int queueSize, int maxBatchSize) {
+        super(queueSize);
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets batch size.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Only {@link OverflowPolicy#block()} is supported, as the future of a dropped request would never be completed.
+     *
+     * @param overflowPolicy the overflow policy
+     * @throws IllegalArgumentException if the policy is not {@link OverflowPolicy#block()}
+     */
+    @Override
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (requireNonNull(overflowPolicy, "overflowPolicy is null") != OverflowPolicy.block()) {
+            throw new IllegalArgumentException("Requests cannot be dropped, overflowPolicy must be block, was "
+                    + overflowPolicy);
+        }
+        super.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Submits a request to the stage, waiting for space in the input queue if it is full.
+     *
+     * @param request the request
+     * @return a future that is completed with the response when the request has been handled
+     * @throws InterruptedException if interrupted while waiting for space in the input queue
+     */
+    public CompletableFuture<R> submit(Q request) throws InterruptedException {
+        Request<Q, R> r = new Request<>(requireNonNull(request, "request is null"));
+        try {
+            queue.put(r);
+        } catch (IllegalStateException e) {
+            r.future.completeExceptionally(e);
+        }
+        return r.future;
+    }
+
+    /**
+     * Handles a single request. Always invoked by the stage thread.
+     *
+     * @param request the request
+     * @return the response
+     * @throws Exception if the request could not be handled, the exception is used to complete the future
+     */
+    protected abstract R handleRequest(Q request) throws Exception;
+
+    /**
+     * Handles a batch of requests, completing the future of each of them.
+     *
+     * @param requests the requests
+     */
+    @Override
+    protected final void handleMessages(List<Request<Q, R>> requests) {
+        for (Request<Q, R> r : requests) {
+            try {
+                r.future.complete(handleRequest(r.message));
+            } catch (Exception e) {
+                r.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override
+    protected final void run() throws Exception {
+        executionThread = Thread.currentThread();
+        ArrayList<Request<Q, R>> list = new ArrayList<>(maxBatchSize);
+        try {
+            while (state() == State.RUNNING || !queue.isTerminated()) {
+                Request<Q, R> t = takeInterruptable();
+                if (t != null) {
+                    list.add(t);
+                    queue.drainTo((Collection<? super Object>) (Collection<?>) list, maxBatchSize - 1);
+                    long start = System.nanoTime();
+                    handleMessages(list);
+                    metrics.recordBatch(list.size(), System.nanoTime() - start);
+                    numberProcessed.addAndGet(list.size());
+                    list.clear();
+                }
+            }
+        } finally {
+            // Only if the stage is failing, make sure nobody waits forever
+            queue.shutdown();
+            queue.drainTo((Collection<? super Object>) (Collection<?>) list);
+            for (Request<Q, R> r : list) {
+                r.future.completeExceptionally(new IllegalStateException("Stage failed"));
+            }
+        }
+    }
+
+    /**
+     * Handles the requests remaining in the input queue, if the stage was stopped before its processing thread started
+     * handling requests, in which case {@link #run()} is never invoked and the futures of the requests would otherwise
+     * never be completed. Subclasses overriding this method must invoke it before releasing anything needed for
+     * handling requests.
+     *
+     * @throws Exception if the remaining requests could not be handled
+     */
+    @Override
+    protected void shutDown() throws Exception {
+        if (executionThread == null) {
+            run();
+        }
+    }
+
+    /**
+     * A request together with the future that is completed with the response.
+     *
+     * @param <Q> the type of request
+     * @param <R> the type of response
+     */
+    public static final class Request<Q, R> {
+
+        /** The future to complete with the response. */
+        final CompletableFuture<R> future = new CompletableFuture<>();
+
+        /** The request. */
+        final Q message;
+
+        Request(Q message) {
+            this.message = message;
+        }
+    }
+}
@@ -41,6 +41,20 @@ public abstract class AbstractBatchedStage<T> extends AbstractMessageProcessorSe
         this.maxBatchSize = maxBatchSize;
     }
 
+    /**
+     * Instantiates a new Abstract batched stage that uses the specified queue as input queue.
+     *
+     * @param queue        the input queue
+     * @param maxBatchSize the max batch size
+     */
+    protected AbstractBatchedStage(ShutdownBlockingQueue<T> queue, int maxBatchSize) {
+        super(queue);
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
     /**
      * Gets batch size.
      *
@@ -61,8 +75,11 @@ public abstract class AbstractBatchedStage<T> extends AbstractMessageProcessorSe
             if (t != null) {// okay we might have more more than one element
                 ArrayList<T> list = new ArrayList<>(maxBatchSize);
                 list.add(t);
-                queue.drainToBlocking((Collection<? super Object>) list.subList(1, list.size()), maxBatchSize - 1);
+                // Only take what is already available, waiting here would hold back t until more messages arrive
+                queue.drainTo((Collection<? super Object>) list.subList(1, list.size()), maxBatchSize - 1);
+                long start = System.nanoTime();
                 handleMessages(list);
+                metrics.recordBatch(list.size(), System.nanoTime() - start);
                 numberProcessed.addAndGet(list.size());
             }
         }
@@ -70,16 +87,31 @@ public abstract class AbstractBatchedStage<T> extends AbstractMessageProcessorSe
     }
 
     /**
-     * Is shutdown boolean.
+     * Handles the messages remaining in the input queue, if the stage was stopped before its processing thread started
+     * handling messages, in which case {@link #run()} is never invoked. Subclasses overriding this method must invoke
+     * it before releasing anything needed for handling messages.
+     *
+     * @throws Exception if the remaining messages could not be handled
+     */
+    @Override
+    protected void shutDown() throws Exception {
+        if (executionThread == null) {
+            run();
+        }
+    }
+
+    /**
+     * Returns whether the stage has been stopped and all messages accepted by the input queue have been handled.
      *
-     * @return the boolean
+     * @return whether the stage has been stopped and all messages have been handled
      */
     protected boolean isShutdown() {
-        return state() != State.RUNNING || queue.isTerminated();
+        return state() != State.RUNNING && queue.isTerminated();
     }
 
     /**
-     * On shutdown.
+     * Invoked by the processing thread when the stage has been stopped, after all messages accepted by the input queue
+     * have been handled.
      */
     protected void onShutdown() {}
 
@@ -14,10 +14,15 @@
  */
 package dk.dma.commons.service;
 
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 
@@ -38,6 +43,21 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
 
     private volatile boolean isInInterruptableBlock;
 
+    /**
+     * Guards interrupting the execution thread. We use a lock instead of synchronizing on this, as a virtual thread
+     * cannot unmount from its carrier while holding a monitor.
+     */
+    private final ReentrantLock interruptLock = new ReentrantLock();
+
+    /** How the processing thread waits for messages. */
+    private volatile WaitStrategy waitStrategy = WaitStrategy.blocking();
+
+    /** The kind of thread the processing loop runs on. */
+    private volatile ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    /** Whether or not the time each message has been waiting in the input queue is recorded. */
+    private volatile boolean recordQueueWaitTime;
+
     /**
      * The Queue.
      */
@@ -47,6 +67,9 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
      */
     final AtomicLong numberProcessed = new AtomicLong();
 
+    /** Latency and throughput metrics. */
+    final StageMetrics metrics = new StageMetrics();
+
     /**
      * Instantiates a new Abstract message processor service.
      *
@@ -56,6 +79,17 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         queue = new ShutdownBlockingQueue<>(queueSize);
     }
 
+    /**
+     * Instantiates a new Abstract message processor service that uses the specified queue as input queue. For example,
+     * a {@link SpillingBlockingQueue}.
+     *
+     * @param queue the input queue, must not be shared with other services
+     */
+    @SuppressWarnings("unchecked")
+    protected AbstractMessageProcessorService(ShutdownBlockingQueue<T> queue) {
+        this.queue = (ShutdownBlockingQueue<Object>) requireNonNull(queue, "queue is null");
+    }
+
     /**
      * Gets input queue.
      *
@@ -66,6 +100,18 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         return (BlockingQueue<T>) queue;
     }
 
+    /**
+     * Puts all the specified messages on the input queue, acquiring the queue's put lock only once. Useful for
+     * producers that decode many messages at a time, for example from a single network read.
+     *
+     * @param messages the messages to put on the input queue
+     * @throws InterruptedException if interrupted while waiting for space in the input queue
+     * @see ShutdownBlockingQueue#putAll(Collection)
+     */
+    public void putAll(Collection<? extends T> messages) throws InterruptedException {
+        queue.putAll(messages);
+    }
+
     /**
      * Gets number of messages processed.
      *
@@ -76,15 +122,198 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         return numberProcessed.get();
     }
 
+    /**
+     * Returns the number of messages that has been discarded by the overflow policy of the input queue.
+     *
+     * @return the number of messages that has been discarded
+     * @see #setOverflowPolicy(OverflowPolicy)
+     */
+    @ManagedAttribute
+    public long getNumberOfMessagesDropped() {
+        return queue.getNumberOfDroppedElements();
+    }
+
+    /**
+     * Returns the policy used when a message is put into the input queue while it is full.
+     *
+     * @return the policy used when a message is put into the input queue while it is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return queue.getOverflowPolicy();
+    }
+
+    /**
+     * Sets the policy used when a message is put into the input queue while it is full. The default is
+     * {@link OverflowPolicy#block()}. Can be changed at any time.
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        queue.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Returns whether or not the time each message has been waiting in the input queue is recorded.
+     *
+     * @return whether or not the time each message has been waiting in the input queue is recorded
+     */
+    @ManagedAttribute
+    public boolean isRecordQueueWaitTime() {
+        return recordQueueWaitTime;
+    }
+
+    /**
+     * Sets whether or not to record the time each message has been waiting in the input queue, see
+     * {@link StageMetrics#getQueueWaitTime()}. Disabled by default, as it reads the clock for every message put into
+     * the input queue and updates a synchronized histogram for every message taken. Can be changed at any time, only
+     * messages put into the input queue while enabled are recorded.
+     *
+     * @param recordQueueWaitTime whether or not to record the time each message has been waiting in the input queue
+     */
+    public void setRecordQueueWaitTime(boolean recordQueueWaitTime) {
+        this.recordQueueWaitTime = recordQueueWaitTime;
+        queue.setWaitTimes(recordQueueWaitTime ? metrics.queueWaitTime : null);
+    }
+
+    /**
+     * Returns the kind of thread the processing loop runs on.
+     *
+     * @return the kind of thread the processing loop runs on
+     */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Sets the kind of thread the processing loop should run on. Must be set before the service is started.
+     *
+     * @param threadMode the kind of thread the processing loop should run on
+     * @throws IllegalStateException         if the service has already been started
+     * @throws UnsupportedOperationException if the thread mode is not supported by the current JVM
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        requireNonNull(threadMode, "threadMode is null");
+        if (state() != State.NEW) {
+            throw new IllegalStateException("The thread mode must be set before the service is started");
+        } else if (!threadMode.isSupported()) {
+            throw new UnsupportedOperationException(threadMode + " threads are not supported on this JVM");
+        }
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * Returns the strategy used by the processing thread to wait for messages.
+     *
+     * @return the strategy used by the processing thread to wait for messages
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets the strategy used by the processing thread to wait for messages. The default is
+     * {@link WaitStrategy#blocking()}. Can be changed at any time, but only takes effect the next time the processing
+     * thread starts waiting.
+     *
+     * @param waitStrategy the wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = requireNonNull(waitStrategy, "waitStrategy is null");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Executor executor() {
+        final ThreadMode mode = threadMode;
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mode.newThread(serviceName(), command).start();
+            }
+        };
+    }
+
     /**
      * Gets size.
      *
      * @return the size
      */
+    @ManagedAttribute
     public int getSize() {
         return queue.size();
     }
 
+    /**
+     * Returns latency and throughput metrics for this service.
+     *
+     * @return latency and throughput metrics for this service
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the one-minute exponentially-weighted moving average rate of processed messages per second.
+     *
+     * @return the one-minute rate of processed messages per second
+     */
+    @ManagedAttribute
+    public double getMessagesPerSecond() {
+        return metrics.processed.getOneMinuteRate();
+    }
+
+    /**
+     * Returns the mean time in microseconds messages have been waiting in the input queue. Only available if
+     * {@link #setRecordQueueWaitTime(boolean) enabled}.
+     *
+     * @return the mean time in microseconds messages have been waiting in the input queue
+     */
+    @ManagedAttribute
+    public double getQueueWaitTimeMeanMicros() {
+        return metrics.queueWaitTime.getSnapshot().getMean() / 1000;
+    }
+
+    /**
+     * Returns the 99th percentile of the time in microseconds messages have been waiting in the input queue. Only
+     * available if {@link #setRecordQueueWaitTime(boolean) enabled}.
+     *
+     * @return the 99th percentile of the time in microseconds messages have been waiting in the input queue
+     */
+    @ManagedAttribute
+    public double getQueueWaitTime99thPercentileMicros() {
+        return metrics.queueWaitTime.getSnapshot().get99thPercentile() / 1000;
+    }
+
+    /**
+     * Returns the mean time in microseconds it takes to handle a batch of messages.
+     *
+     * @return the mean time in microseconds it takes to handle a batch of messages
+     */
+    @ManagedAttribute
+    public double getHandleTimeMeanMicros() {
+        return metrics.handleTime.getSnapshot().getMean() / 1000;
+    }
+
+    /**
+     * Returns the 99th percentile of the time in microseconds it takes to handle a batch of messages.
+     *
+     * @return the 99th percentile of the time in microseconds it takes to handle a batch of messages
+     */
+    @ManagedAttribute
+    public double getHandleTime99thPercentileMicros() {
+        return metrics.handleTime.getSnapshot().get99thPercentile() / 1000;
+    }
+
+    /**
+     * Returns the mean number of messages in each batch.
+     *
+     * @return the mean number of messages in each batch
+     */
+    @ManagedAttribute
+    public double getBatchSizeMean() {
+        return metrics.batchSize.getSnapshot().getMean();
+    }
+
     /**
      * Handle messages.
      *
@@ -105,9 +334,13 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         try {
             isInInterruptableBlock = true;
             T t = queue.poll(timeout, unit);
-            synchronized (this) {
+            interruptLock.lock();
+            try {
                 isInInterruptableBlock = false;
+                clearShutdownInterrupt();
                 return t;
+            } finally {
+                interruptLock.unlock();
             }
         } catch (InterruptedException e) {
             Thread.interrupted();
@@ -124,10 +357,14 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         try {
             isInInterruptableBlock = true;
             @SuppressWarnings("unchecked")
-            T t = (T) queue.take();
-            synchronized (this) {
+            T t = (T) waitStrategy.take(queue);
+            interruptLock.lock();
+            try {
                 isInInterruptableBlock = false;
+                clearShutdownInterrupt();
                 return t;
+            } finally {
+                interruptLock.unlock();
             }
         } catch (InterruptedException e) {
             Thread.interrupted();
@@ -135,6 +372,17 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         }
     }
 
+    /**
+     * Clears an interrupt from {@link #triggerShutdown()} that arrived after an element had already been taken. As the
+     * remaining elements are still handled after a shutdown has been triggered, the interrupt would otherwise make the
+     * next blocking operation while handling them fail. Must hold interruptLock.
+     */
+    private void clearShutdownInterrupt() {
+        if (state() != State.RUNNING) {
+            Thread.interrupted();
+        }
+    }
+
     //
     // T takeInterruptable(ShutdownBlockingQueue<T> queue) {
     // try {
@@ -152,14 +400,19 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
 
     /** {@inheritDoc} */
     @Override
-    protected final synchronized void triggerShutdown() {
-        queue.shutdown();
-        Thread t = executionThread;
-        if (t != null) {
-            if (isInInterruptableBlock) {
-                // We only want to interrupt in interruptable blocks
-                t.interrupt();
+    protected final void triggerShutdown() {
+        interruptLock.lock();
+        try {
+            queue.shutdown();
+            Thread t = executionThread;
+            if (t != null) {
+                if (isInInterruptableBlock) {
+                    // We only want to interrupt in interruptable blocks
+                    t.interrupt();
+                }
             }
+        } finally {
+            interruptLock.unlock();
         }
     }
 
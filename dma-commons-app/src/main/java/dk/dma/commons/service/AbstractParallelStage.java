@@ -0,0 +1,150 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import dk.dma.commons.util.concurrent.ForkJoinUtil;
+
+/**
+ * A stage that processes messages in parallel on a {@link ForkJoinPool}, for stages doing heavy per-message work that
+ * has no ordering requirements. For example, geometry checks or route ETA calculations.
+ * <p>
+ * The processing thread takes a batch of messages from the input queue and splits it into a task per message with
+ * {@link ForkJoinUtil}, that are executed by the pool using work stealing. The next batch is not taken until all
+ * messages in the current batch has been handled, so the input queue still provides back pressure. Messages are
+ * handled in no particular order and {@link #handleMessage(Object)} must be thread safe.
+ * <p>
+ * Messages remaining in the input queue when the stage is stopped are handled before the stage terminates. If
+ * handling a message fails, the stage fails and messages in the current batch that have not yet been started are
+ * skipped.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public abstract class AbstractParallelStage<T> extends AbstractMessageProcessorService<T> {
+
+    /** The maximum number of messages to fan out at a time. */
+    private final int maxBatchSize;
+
+    /** The pool used for handling messages. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Instantiates a new parallel stage that uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param queueSize    the queue size
+     * @param maxBatchSize the maximum number of messages to fan out at a time
+     */
+    protected AbstractParallelStage(int queueSize, int maxBatchSize) {
+        this(queueSize, maxBatchSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Instantiates a new parallel stage.
+     *
+     * @param queueSize    the queue size
+     * @param maxBatchSize the maximum number of messages to fan out at a time
+     * @param pool         the pool used for handling messages
+     */
+    protected AbstractParallelStage(int queueSize, int maxBatchSize, ForkJoinPool pool) {
+        super(queueSize);
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.pool = requireNonNull(pool, "pool is null");
+    }
+
+    /**
+     * Gets batch size.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the pool used for handling messages.
+     *
+     * @return the pool used for handling messages
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Handles a single message. Invoked concurrently by the threads in the pool.
+     *
+     * @param message the message
+     * @throws Exception if the message could not be handled
+     */
+    protected abstract void handleMessage(T message) throws Exception;
+
+    /**
+     * Handles the messages in parallel, returns when all of them have been handled.
+     *
+     * @param messages the messages
+     * @throws Exception if one of the messages could not be handled
+     */
+    @Override
+    protected final void handleMessages(List<T> messages) throws Exception {
+        @SuppressWarnings("unchecked")
+        T[] array = (T[]) messages.toArray();
+        // The processed counter is updated as each message is handled, so it stays correct if the batch fails
+        ForkJoinUtil.forEach(pool, array, m -> {
+            handleMessage(m);
+            numberProcessed.incrementAndGet();
+        });
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override
+    protected final void run() throws Exception {
+        executionThread = Thread.currentThread();
+        while (state() == State.RUNNING || !queue.isTerminated()) {
+            T t = takeInterruptable();
+            if (t != null) {
+                ArrayList<T> list = new ArrayList<>(maxBatchSize);
+                list.add(t);
+                queue.drainTo((Collection<? super Object>) list.subList(1, list.size()), maxBatchSize - 1);
+                long start = System.nanoTime();
+                handleMessages(list);
+                metrics.recordBatch(list.size(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Handles the messages remaining in the input queue, if the stage was stopped before its processing thread started
+     * handling messages, in which case {@link #run()} is never invoked. Subclasses overriding this method must invoke
+     * it before releasing anything needed for handling messages.
+     *
+     * @throws Exception if the remaining messages could not be handled
+     */
+    @Override
+    protected void shutDown() throws Exception {
+        if (executionThread == null) {
+            run();
+        }
+    }
+}
@@ -32,6 +32,15 @@ public abstract class AbstractStage<T> extends AbstractMessageProcessorService<T
         super(queueSize);
     }
 
+    /**
+     * Instantiates a new Abstract stage that uses the specified queue as input queue.
+     *
+     * @param queue the input queue
+     */
+    protected AbstractStage(ShutdownBlockingQueue<T> queue) {
+        super(queue);
+    }
+
     /**
      * Handle message.
      *
@@ -46,7 +55,10 @@ public abstract class AbstractStage<T> extends AbstractMessageProcessorService<T
         while (state() == State.RUNNING || !queue.isTerminated()) {
             T t = takeInterruptable();
             if (t != null) {
+                long start = System.nanoTime();
                 handleMessage(t);
+                metrics.recordBatch(1, System.nanoTime() - start);
+                numberProcessed.incrementAndGet();
             }
         }
     }
@@ -0,0 +1,295 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import dk.dma.commons.management.ManagedAttribute;
+
+/**
+ * A stage that drops messages whose key has already been seen within a time window, and forwards all other messages
+ * to a downstream queue. For example, AIS messages that are received through several redundant base stations and
+ * satellites.
+ * <p>
+ * To keep memory bounded, only a 64-bit fingerprint of each key is kept. Fingerprints are normally created with
+ * {@link #fingerprintOf(Function)} for keys that are strings, such as raw sentences, or with
+ * {@link #fingerprintOf(Function, Funnel)} for any other type of key. Both hash the key using 128-bit Murmur3. The
+ * fingerprints are stored in two fixed size
+ * open addressing hash tables of primitive longs, one for the current window and one for the previous window. When the
+ * window has elapsed, the current table becomes the previous table and the old previous table is cleared and reused.
+ * This means a key is remembered for at least one window after it was first seen, and as windows are only rotated
+ * when messages arrive, normally no longer than two windows. If more distinct keys than the configured maximum arrive
+ * within a window, the tables are rotated early, which shortens the effective window rather than growing memory. The
+ * number of early rotations is available as a managed attribute.
+ * <p>
+ * Two different keys with the same fingerprint are considered duplicates. With 64-bit fingerprints this is unlikely
+ * enough to be ignored in practice.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public class DeduplicatingStage<T> extends AbstractBatchedStage<T> {
+
+    /** The hash function used for creating fingerprints of keys. */
+    static final HashFunction HASH = Hashing.murmur3_128();
+
+    /** The queue non-duplicate messages are forwarded to. */
+    private final BlockingQueue<? super T> downstream;
+
+    /** The number of messages dropped because they were duplicates. */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /** The number of times the tables were rotated because they were full. */
+    private final AtomicLong earlyRotations = new AtomicLong();
+
+    /** Creates the fingerprint of the key of each message. */
+    private final ToLongFunction<? super T> fingerprinter;
+
+    /** The fingerprints of keys seen in the previous window. Only accessed by the processing thread. */
+    private FingerprintSet previous;
+
+    /** The fingerprints of keys seen in the current window. Only accessed by the processing thread. */
+    private FingerprintSet current;
+
+    /** When the current window started, as returned by System.nanoTime. */
+    private long windowStart = System.nanoTime();
+
+    /** The length of the window in nanoseconds. */
+    private final long windowNanos;
+
+    /**
+     * Creates a new deduplicating stage.
+     *
+     * @param queueSize
+     *            the size of the input queue
+     * @param fingerprinter
+     *            creates a 64-bit fingerprint of the key of each message, for example using
+     *            {@link #fingerprintOf(Function)}
+     * @param window
+     *            the minimum time a key is remembered after it was first seen
+     * @param unit
+     *            the unit of the window
+     * @param maxKeysPerWindow
+     *            the maximum number of distinct keys expected within a window, determines the memory used
+     * @param downstream
+     *            the queue to forward non-duplicate messages to
+     */
+    public DeduplicatingStage(int queueSize, ToLongFunction<? super T> fingerprinter, long window, TimeUnit unit,
+            int maxKeysPerWindow, BlockingQueue<? super T> downstream) {
+        super(queueSize, 1000);
+        this.fingerprinter = requireNonNull(fingerprinter, "fingerprinter is null");
+        this.windowNanos = requireNonNull(unit, "unit is null").toNanos(window);
+        this.downstream = requireNonNull(downstream, "downstream is null");
+        if (windowNanos <= 0) {
+            throw new IllegalArgumentException("window must be positive, was " + window);
+        } else if (maxKeysPerWindow < 1 || maxKeysPerWindow > 1 << 29) {
+            throw new IllegalArgumentException("maxKeysPerWindow must be between 1 and 2^29, was " + maxKeysPerWindow);
+        }
+        previous = new FingerprintSet(maxKeysPerWindow);
+        current = new FingerprintSet(maxKeysPerWindow);
+    }
+
+    /**
+     * Returns the number of messages that has been dropped because they were duplicates.
+     *
+     * @return the number of messages that has been dropped because they were duplicates
+     */
+    @ManagedAttribute
+    public long getNumberOfDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Returns the number of times the window was shortened because more distinct keys than the configured maximum
+     * arrived within it. If this keeps increasing, the maximum number of keys per window should be increased.
+     *
+     * @return the number of times the window was shortened
+     */
+    @ManagedAttribute
+    public long getNumberOfEarlyRotations() {
+        return earlyRotations.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void handleMessages(List<T> messages) throws InterruptedException {
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos) {
+            rotate(now);
+        }
+        List<T> unique = new ArrayList<>(messages.size());
+        for (T t : messages) {
+            long fp = fingerprinter.applyAsLong(t);
+            if (current.contains(fp) || previous.contains(fp)) {
+                duplicates.incrementAndGet();
+            } else {
+                if (current.isFull()) {
+                    earlyRotations.incrementAndGet();
+                    rotate(now);
+                }
+                current.add(fp);
+                unique.add(t);
+            }
+        }
+        if (downstream instanceof ShutdownBlockingQueue) {
+            ((ShutdownBlockingQueue<? super T>) downstream).putAll(unique);
+        } else {
+            for (T t : unique) {
+                downstream.put(t);
+            }
+        }
+    }
+
+    /**
+     * Makes the current window the previous window, and starts a new window.
+     *
+     * @param now
+     *            the current time
+     */
+    private void rotate(long now) {
+        FingerprintSet s = previous;
+        s.clear();
+        previous = current;
+        current = s;
+        windowStart = now;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the specified key.
+     *
+     * @param key
+     *            the key
+     * @return the fingerprint
+     */
+    static long fingerprint(CharSequence key) {
+        return HASH.hashUnencodedChars(requireNonNull(key, "key is null")).asLong();
+    }
+
+    /**
+     * Returns a function that creates fingerprints of the string keys of messages.
+     *
+     * @param <T>
+     *            the type of messages
+     * @param keyExtractor
+     *            extracts the key of each message, for example the raw sentence
+     * @return a function that creates fingerprints of the keys of messages
+     */
+    public static <T> ToLongFunction<T> fingerprintOf(Function<? super T, ? extends CharSequence> keyExtractor) {
+        requireNonNull(keyExtractor, "keyExtractor is null");
+        return t -> fingerprint(keyExtractor.apply(t));
+    }
+
+    /**
+     * Returns a function that creates fingerprints of the keys of messages, hashing each key as written to the
+     * specified funnel. For example, {@code fingerprintOf(m -> m.getMmsi(), Funnels.integerFunnel())}.
+     *
+     * @param <T>
+     *            the type of messages
+     * @param <K>
+     *            the type of keys
+     * @param keyExtractor
+     *            extracts the key of each message
+     * @param funnel
+     *            writes all the fields of a key that must be equal for two keys to be duplicates
+     * @return a function that creates fingerprints of the keys of messages
+     */
+    public static <T, K> ToLongFunction<T> fingerprintOf(Function<? super T, ? extends K> keyExtractor,
+            Funnel<? super K> funnel) {
+        requireNonNull(keyExtractor, "keyExtractor is null");
+        requireNonNull(funnel, "funnel is null");
+        return t -> HASH.hashObject(requireNonNull(keyExtractor.apply(t), "key is null"), funnel).asLong();
+    }
+
+    /**
+     * A fixed size set of fingerprints, using open addressing with linear probing. 0 is used for marking empty slots,
+     * so a fingerprint of 0 is stored as 1.
+     */
+    static final class FingerprintSet {
+
+        /** The maximum number of fingerprints. */
+        private final int maxSize;
+
+        /** The number of fingerprints in the set. */
+        private int size;
+
+        /** The slots. */
+        private final long[] table;
+
+        FingerprintSet(int maxSize) {
+            this.maxSize = maxSize;
+            // At most 75% full to keep probe sequences short
+            table = new long[Integer.highestOneBit(Math.max(2, maxSize + maxSize / 3) - 1) << 1];
+        }
+
+        /**
+         * Adds the specified fingerprint to the set.
+         *
+         * @param fp
+         *            the fingerprint to add
+         * @return true if the fingerprint was added, false if it was already present
+         */
+        boolean add(long fp) {
+            fp = fp == 0 ? 1 : fp;
+            int mask = table.length - 1;
+            for (int i = (int) (fp ^ fp >>> 32) & mask;; i = i + 1 & mask) {
+                long f = table[i];
+                if (f == 0) {
+                    table[i] = fp;
+                    size++;
+                    return true;
+                } else if (f == fp) {
+                    return false;
+                }
+            }
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(table, 0);
+                size = 0;
+            }
+        }
+
+        boolean contains(long fp) {
+            fp = fp == 0 ? 1 : fp;
+            int mask = table.length - 1;
+            for (int i = (int) (fp ^ fp >>> 32) & mask;; i = i + 1 & mask) {
+                long f = table[i];
+                if (f == fp) {
+                    return true;
+                } else if (f == 0) {
+                    return false;
+                }
+            }
+        }
+
+        boolean isFull() {
+            return size >= maxSize;
+        }
+    }
+}
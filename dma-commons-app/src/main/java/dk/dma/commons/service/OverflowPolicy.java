@@ -0,0 +1,157 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides what happens when an element is {@link ShutdownBlockingQueue#put(Object) put} into a full queue. The default
+ * policy is {@link #block()} which waits for space to become available. For real-time feeds where the producer must
+ * never be stalled by a slow consumer one of the dropping policies can be used instead.
+ * <p>
+ * Only {@code put} is affected by the policy. {@code offer} and {@code add} keep their usual semantics of failing
+ * immediately when the queue is full.
+ *
+ * @author Kasper Nielsen
+ */
+public abstract class OverflowPolicy {
+
+    /** The action taken by the queue when a put is made to a full queue. */
+    enum Action {
+        /** Waits until space becomes available. */
+        BLOCK,
+
+        /** Discards the element that is being put. */
+        DROP_NEWEST,
+
+        /** Discards the head of the queue (the oldest element) to make room for the element being put. */
+        DROP_OLDEST;
+    }
+
+    /** The block policy. */
+    private static final OverflowPolicy BLOCK = new Fixed(Action.BLOCK, "block");
+
+    /** The drop newest policy. */
+    private static final OverflowPolicy DROP_NEWEST = new Fixed(Action.DROP_NEWEST, "dropNewest");
+
+    /** The drop oldest policy. */
+    private static final OverflowPolicy DROP_OLDEST = new Fixed(Action.DROP_OLDEST, "dropOldest");
+
+    /**
+     * Invoked by the queue, while holding the put lock, every time an element is put into a full queue.
+     *
+     * @return the action to take
+     */
+    abstract Action onOverflow();
+
+    /**
+     * Returns a policy that waits for space to become available. This is the default policy.
+     *
+     * @return a policy that waits for space to become available
+     */
+    public static OverflowPolicy block() {
+        return BLOCK;
+    }
+
+    /**
+     * Returns a policy that discards the element being put if the queue is full.
+     *
+     * @return a policy that discards the element being put if the queue is full
+     */
+    public static OverflowPolicy dropNewest() {
+        return DROP_NEWEST;
+    }
+
+    /**
+     * Returns a policy that discards the oldest element in the queue to make room for the element being put if the
+     * queue is full.
+     *
+     * @return a policy that discards the oldest element in the queue if the queue is full
+     */
+    public static OverflowPolicy dropOldest() {
+        return DROP_OLDEST;
+    }
+
+    /**
+     * Returns a policy that keeps every n'th element that is put while the queue is full, by discarding the oldest
+     * element in the queue. All other elements put while the queue is full are discarded. This keeps a sample of the
+     * most recent messages flowing through a stage that cannot keep up.
+     *
+     * @param n
+     *            keep every n'th element
+     * @return the new policy
+     * @throws IllegalArgumentException
+     *             if n is less than 1
+     */
+    public static OverflowPolicy sample(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1, was " + n);
+        }
+        return n == 1 ? DROP_OLDEST : new Sample(n);
+    }
+
+    /** A policy that always takes the same action. */
+    static final class Fixed extends OverflowPolicy {
+
+        /** The action to take. */
+        private final Action action;
+
+        /** The name of the policy. */
+        private final String name;
+
+        Fixed(Action action, String name) {
+            this.action = action;
+            this.name = name;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        Action onOverflow() {
+            return action;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** A policy that keeps every n'th overflowing element. */
+    static final class Sample extends OverflowPolicy {
+
+        /** The number of overflows. Atomic as the same policy may be shared by multiple queues. */
+        private final AtomicLong overflows = new AtomicLong();
+
+        /** Keep every n'th element. */
+        private final int n;
+
+        Sample(int n) {
+            this.n = n;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        Action onOverflow() {
+            return overflows.incrementAndGet() % n == 0 ? Action.DROP_OLDEST : Action.DROP_NEWEST;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "sample(" + n + ")";
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.codahale.metrics.Histogram;
+import com.google.common.collect.Iterators;
+
+/**
+ * A {@link ShutdownBlockingQueue} with a number of priority lanes. Elements in higher lanes are always taken before
+ * elements in lower lanes, so control messages such as cancel, reconfigure or flush do not have to wait behind
+ * thousands of data messages. Lane 0 is the lowest priority lane and is used by all the standard queue methods, such as
+ * {@link #put(Object)} and {@link #offer(Object)}. Higher lanes are used through {@link #put(int, Object)} and
+ * {@link #offer(int, Object)}.
+ * <p>
+ * To avoid starving lower lanes, each lane counts the elements taken in a row from higher lanes while it had elements
+ * waiting. Once the count of a lane reaches the starvation limit, the next element is taken from that lane, the lowest
+ * such lane first. So every lane makes progress, also lanes in the middle while both higher and lower lanes are
+ * loaded.
+ * <p>
+ * Each lane is a bounded queue with its own capacity, so a full data lane never blocks control messages. The
+ * {@link #setOverflowPolicy(OverflowPolicy) overflow policy} is only applied to lane 0, higher lanes always block when
+ * full. The queue can be used as the input queue of any {@link AbstractMessageProcessorService}, for example
+ * {@link AbstractBatchedStage#AbstractBatchedStage(ShutdownBlockingQueue, int)} which keeps its batching semantics
+ * and fills each batch by lane priority.
+ *
+ * @param <E> the type of elements held in this queue
+ * @author Kasper Nielsen
+ */
+public class PriorityLaneQueue<E> extends ShutdownBlockingQueue<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Counted down when the queue has been shutdown and all elements have been taken. */
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    /** The lanes, lowest priority first. */
+    private final ShutdownBlockingQueue<E>[] lanes;
+
+    /** Guards selecting a lane, and waiting for elements. */
+    private final ReentrantLock laneLock = new ReentrantLock();
+
+    /** Wait queue for waiting takes. */
+    private final Condition notEmpty = laneLock.newCondition();
+
+    /**
+     * For each lane, the number of elements taken in a row from higher lanes while the lane had elements waiting.
+     * Guarded by laneLock.
+     */
+    private final int[] passedOver;
+
+    /** The maximum number of elements taken in a row from higher lanes while a lower lane has elements waiting. */
+    private final int starvationLimit;
+
+    /** The number of threads waiting on notEmpty, producers only signal if someone is waiting. */
+    private volatile int waiters;
+
+    /**
+     * Creates a new priority lane queue.
+     *
+     * @param lanes
+     *            the number of lanes
+     * @param capacityPerLane
+     *            the capacity of each lane
+     * @param starvationLimit
+     *            the maximum number of elements taken in a row from higher lanes while a lower lane has elements
+     *            waiting
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLaneQueue(int lanes, int capacityPerLane, int starvationLimit) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be at least 1, was " + lanes);
+        } else if (starvationLimit < 1) {
+            throw new IllegalArgumentException("starvationLimit must be at least 1, was " + starvationLimit);
+        }
+        this.lanes = (ShutdownBlockingQueue<E>[]) new ShutdownBlockingQueue<?>[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new ShutdownBlockingQueue<>(capacityPerLane);
+        }
+        this.passedOver = new int[lanes];
+        this.starvationLimit = starvationLimit;
+    }
+
+    /**
+     * Returns the number of lanes.
+     *
+     * @return the number of lanes
+     */
+    public int getNumberOfLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of elements in the specified lane.
+     *
+     * @param lane
+     *            the lane
+     * @return the number of elements in the specified lane
+     */
+    public int size(int lane) {
+        return lane(lane).size();
+    }
+
+    /**
+     * Inserts the specified element into the specified lane, waiting if necessary for space to become available.
+     *
+     * @param lane
+     *            the lane, 0 being the lowest priority
+     * @param e
+     *            the element to add
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     * @throws IndexOutOfBoundsException
+     *             if the lane does not exist
+     * @throws IllegalStateException
+     *             if the queue has been shutdown
+     */
+    public void put(int lane, E e) throws InterruptedException {
+        lane(lane).put(e);
+        signalNotEmpty();
+    }
+
+    /**
+     * Inserts the specified element into the specified lane, if it is possible to do so immediately without exceeding
+     * the capacity of the lane.
+     *
+     * @param lane
+     *            the lane, 0 being the lowest priority
+     * @param e
+     *            the element to add
+     * @return true if the element was added, otherwise false
+     * @throws IndexOutOfBoundsException
+     *             if the lane does not exist
+     */
+    public boolean offer(int lane, E e) {
+        if (lane(lane).offer(e)) {
+            signalNotEmpty();
+            return true;
+        }
+        return false;
+    }
+
+    private ShutdownBlockingQueue<E> lane(int lane) {
+        if (lane < 0 || lane >= lanes.length) {
+            throw new IndexOutOfBoundsException("lane must be between 0 and " + (lanes.length - 1) + ", was " + lane);
+        }
+        return lanes[lane];
+    }
+
+    /** Wakes up a consumer waiting for elements, if any. */
+    private void signalNotEmpty() {
+        if (waiters > 0) {
+            laneLock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                laneLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Selects the lane to take the next element from. Must hold laneLock.
+     *
+     * @return the lane to take the next element from, or -1 if all lanes are empty
+     */
+    private int selectLane() {
+        int highest = lanes.length - 1;
+        while (highest >= 0 && lanes[highest].size() == 0) {
+            highest--;
+        }
+        for (int i = 0; i < highest; i++) {
+            if (passedOver[i] >= starvationLimit && lanes[i].size() > 0) {
+                return i;
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Returns the number of elements that can be taken from the specified lane, before another lane must be served.
+     * Must hold laneLock.
+     *
+     * @param lane
+     *            the selected lane
+     * @return the number of elements that can be taken from the lane, at least 1
+     */
+    private int allowance(int lane) {
+        for (int i = lanes.length - 1; i > lane; i--) {
+            if (lanes[i].size() > 0) {
+                return 1; // a starving lane, only serve a single element before going back to the higher lanes
+            }
+        }
+        int max = Integer.MAX_VALUE;
+        for (int i = 0; i < lane; i++) {
+            if (lanes[i].size() > 0) {
+                max = Math.min(max, starvationLimit - passedOver[i]);
+            }
+        }
+        return Math.max(1, max);
+    }
+
+    /**
+     * Records that a number of elements has been taken from the specified lane. Must hold laneLock.
+     *
+     * @param lane
+     *            the lane the elements were taken from
+     * @param n
+     *            the number of elements taken
+     */
+    private void taken(int lane, int n) {
+        passedOver[lane] = 0;
+        for (int i = 0; i < lane; i++) {
+            passedOver[i] = lanes[i].size() > 0 ? passedOver[i] + n : 0;
+        }
+    }
+
+    /**
+     * Takes an element from the selected lane. Must hold laneLock.
+     *
+     * @return the element, or null if all lanes are empty
+     */
+    private E pollLanes() {
+        for (;;) {
+            int lane = selectLane();
+            if (lane < 0) {
+                return null;
+            }
+            E e = lanes[lane].poll();
+            if (e != null) {
+                taken(lane, 1);
+                return e;
+            } // taken by someone else, for example using remove(Object)
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        laneLock.lockInterruptibly();
+        try {
+            if (!awaitNotEmpty(nanos)) {
+                return null;
+            }
+            return pollLanes();
+        } finally {
+            laneLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least one lane has an element. Must hold laneLock.
+     *
+     * @param nanos
+     *            the maximum time to wait
+     * @return true if an element is available, false if timed out or the queue has been shutdown and is empty
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    private boolean awaitNotEmpty(long nanos) throws InterruptedException {
+        for (;;) {
+            if (size() > 0) {
+                return true;
+            } else if (isTerminated() || nanos <= 0) {
+                return false;
+            }
+            waiters++;
+            try {
+                // a producer adding an element after our check above either sees waiters > 0 or we see its element
+                if (size() > 0) {
+                    return true;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll() {
+        if (size() == 0) {
+            isTerminated();
+            return null;
+        }
+        laneLock.lock();
+        try {
+            return pollLanes();
+        } finally {
+            laneLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E peek() {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            E e = lanes[i].peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        laneLock.lock();
+        try {
+            return drainLanes(c, maxElements);
+        } finally {
+            laneLock.unlock();
+        }
+    }
+
+    /**
+     * Drains elements by lane priority. Must hold laneLock.
+     *
+     * @param c
+     *            the collection to transfer elements into
+     * @param maxElements
+     *            the maximum number of elements to transfer
+     * @return the number of elements transferred
+     */
+    private int drainLanes(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        int lane;
+        while (n < maxElements && (lane = selectLane()) >= 0) {
+            int d = lanes[lane].drainTo(c, Math.min(maxElements - n, allowance(lane)));
+            taken(lane, d);
+            n += d;
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainToBlocking(Collection<? super E> c, int maxElements) throws InterruptedException {
+        requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        laneLock.lockInterruptibly();
+        try {
+            return awaitNotEmpty(Long.MAX_VALUE) ? drainLanes(c, maxElements) : 0;
+        } finally {
+            laneLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        long size = 0;
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            size += q.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /** Returns the remaining capacity of lane 0. */
+    @Override
+    public int remainingCapacity() {
+        return lanes[0].remainingCapacity();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(E e) throws InterruptedException {
+        put(0, e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e) {
+        return offer(0, e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (lanes[0].offer(e, timeout, unit)) {
+            signalNotEmpty();
+            return true;
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        lanes[0].putAll(c);
+        signalNotEmpty();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int offerAll(Collection<? extends E> c) {
+        int n = lanes[0].offerAll(c);
+        if (n > 0) {
+            signalNotEmpty();
+        }
+        return n;
+    }
+
+    /** Returns the overflow policy of lane 0. */
+    @Override
+    public OverflowPolicy getOverflowPolicy() {
+        return lanes[0].getOverflowPolicy();
+    }
+
+    /** Sets the overflow policy of lane 0, higher lanes always block when full. */
+    @Override
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        lanes[0].setOverflowPolicy(overflowPolicy);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getNumberOfDroppedElements() {
+        return lanes[0].getNumberOfDroppedElements();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void setWaitTimes(Histogram waitTimes) {
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            q.setWaitTimes(waitTimes);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean isShutdown() {
+        return lanes[0].isShutdown();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean isTerminated() {
+        if (drained.getCount() > 0 && isShutdown() && size() == 0) {
+            drained.countDown();
+        }
+        return drained.getCount() == 0;
+    }
+
+    /** Shuts down all lanes. */
+    @Override
+    void shutdown() {
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            q.shutdown();
+        }
+        laneLock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            laneLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean awaitShutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        return lanes[0].awaitShutdown(timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean awaitFullyTerminated(long timeout, TimeUnit unit) throws InterruptedException {
+        return drained.await(timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean remove(Object o) {
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            if (q.remove(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean contains(Object o) {
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            if (q.contains(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+        for (ShutdownBlockingQueue<E> q : lanes) {
+            q.clear();
+        }
+    }
+
+    /**
+     * Returns the elements of all lanes, highest priority lane first.
+     *
+     * @return the elements of all lanes
+     */
+    private List<E> toList() {
+        List<E> result = new ArrayList<>();
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            result.addAll(lanes[i]);
+        }
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object[] toArray() {
+        return toList().toArray();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return toList().toArray(a);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    /** Returns an iterator over the elements of all lanes, highest priority lane first. */
+    @Override
+    public Iterator<E> iterator() {
+        List<Iterator<E>> l = new ArrayList<>();
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            l.add(lanes[i].iterator());
+        }
+        return Iterators.concat(l.iterator());
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        throw new NotSerializableException(getClass().getName());
+    }
+}
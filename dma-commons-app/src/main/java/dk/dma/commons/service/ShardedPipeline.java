@@ -0,0 +1,236 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.commons.management.ManagedAttribute;
+
+/**
+ * A front stage that shards messages by key to a number of identical replicas, for example one per core. Each replica
+ * has its own input queue and processing thread, so apart from the front stage replicas share nothing. All messages
+ * with the same key are sent to the same replica, so the order of messages with the same key is preserved.
+ * <p>
+ * The replicas are started when this stage is started and stopped when this stage has stopped. When stopped, this
+ * stage first shards all messages remaining in its input queue, and each replica then handles all messages remaining in
+ * its own input queue, so no accepted messages are lost. If a replica consists of several stages, the replica's first
+ * stage should start and stop the rest of the replica in its own {@code startUp} and {@code shutDown} methods.
+ * <p>
+ * The {@code Replica*} managed attributes report over all replicas.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public class ShardedPipeline<T> extends AbstractBatchedStage<T> {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ShardedPipeline.class);
+
+    /** The replicas. */
+    private final List<AbstractMessageProcessorService<T>> replicas;
+
+    /** Extracts the key messages are sharded by. */
+    private final Function<? super T, ?> shardKey;
+
+    /** The messages for each replica in the current batch. Only accessed by the processing thread. */
+    private final List<List<T>> shards;
+
+    /**
+     * Creates a new sharded pipeline.
+     *
+     * @param queueSize      the size of the input queue of the front stage
+     * @param maxBatchSize   the maximum number of messages the front stage shards at a time
+     * @param shardKey       extracts the key messages are sharded by, for example the MMSI
+     * @param replicas       the number of replicas
+     * @param replicaFactory creates the first stage of each replica, given the index of the replica
+     */
+    public ShardedPipeline(int queueSize, int maxBatchSize, Function<? super T, ?> shardKey, int replicas,
+            IntFunction<? extends AbstractMessageProcessorService<T>> replicaFactory) {
+        super(queueSize, maxBatchSize);
+        this.shardKey = requireNonNull(shardKey, "shardKey is null");
+        requireNonNull(replicaFactory, "replicaFactory is null");
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be at least 1, was " + replicas);
+        }
+        List<AbstractMessageProcessorService<T>> r = new ArrayList<>(replicas);
+        List<List<T>> s = new ArrayList<>(replicas);
+        for (int i = 0; i < replicas; i++) {
+            r.add(requireNonNull(replicaFactory.apply(i), "replicaFactory returned null"));
+            s.add(new ArrayList<T>());
+        }
+        this.replicas = Collections.unmodifiableList(r);
+        this.shards = s;
+    }
+
+    /**
+     * Returns the first stage of each replica.
+     *
+     * @return the first stage of each replica
+     */
+    public List<AbstractMessageProcessorService<T>> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Returns the number of replicas.
+     *
+     * @return the number of replicas
+     */
+    @ManagedAttribute
+    public int getNumberOfReplicas() {
+        return replicas.size();
+    }
+
+    /**
+     * Returns the total number of messages processed by all replicas.
+     *
+     * @return the total number of messages processed by all replicas
+     */
+    @ManagedAttribute
+    public long getReplicaMessagesProcessed() {
+        long result = 0;
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            result += r.getNumberOfMessagesProcessed();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of messages dropped by the overflow policies of all replicas.
+     *
+     * @return the total number of messages dropped by all replicas
+     */
+    @ManagedAttribute
+    public long getReplicaMessagesDropped() {
+        long result = 0;
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            result += r.getNumberOfMessagesDropped();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the combined throughput of all replicas, as the one minute rate of processed messages per second.
+     *
+     * @return the combined throughput of all replicas
+     */
+    @ManagedAttribute
+    public double getReplicaMessagesPerSecond() {
+        double result = 0;
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            result += r.getMessagesPerSecond();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of messages waiting in the input queues of all replicas.
+     *
+     * @return the total number of messages waiting in the input queues of all replicas
+     */
+    @ManagedAttribute
+    public int getReplicaSize() {
+        int result = 0;
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            result += r.getSize();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the 99th percentile of the handle time of the slowest replica in microseconds.
+     *
+     * @return the 99th percentile of the handle time of the slowest replica
+     */
+    @ManagedAttribute
+    public double getReplicaHandleTime99thPercentileMicros() {
+        double result = 0;
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            result = Math.max(result, r.getHandleTime99thPercentileMicros());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the replica that messages with the specified key are sent to.
+     *
+     * @param key the key
+     * @return the index of the replica
+     */
+    int shardOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16; // spread the high bits, keys such as MMSI numbers often only differ in the low digits
+        return Math.floorMod(h * 0x9E3779B9, replicas.size());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void handleMessages(List<T> messages) throws InterruptedException {
+        try {
+            for (T t : messages) {
+                shards.get(shardOf(shardKey.apply(t))).add(t);
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                List<T> shard = shards.get(i);
+                if (!shard.isEmpty()) {
+                    replicas.get(i).putAll(shard);
+                    shard.clear();
+                }
+            }
+        } finally {
+            // Never send the messages of a failed batch again with the next batch
+            for (List<T> shard : shards) {
+                shard.clear();
+            }
+        }
+    }
+
+    /** Starts all replicas. */
+    @Override
+    protected void startUp() throws Exception {
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            r.startAsync();
+        }
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            r.awaitRunning();
+        }
+    }
+
+    /** Stops all replicas and waits for them to terminate. */
+    @Override
+    protected void shutDown() throws Exception {
+        super.shutDown(); // shards the remaining messages, if the processing thread never started
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            r.stopAsync();
+        }
+        for (AbstractMessageProcessorService<T> r : replicas) {
+            try {
+                r.awaitTerminated(1, TimeUnit.MINUTES);
+            } catch (IllegalStateException e) {
+                LOG.error("Replica " + r + " failed", e);
+            }
+        }
+    }
+}
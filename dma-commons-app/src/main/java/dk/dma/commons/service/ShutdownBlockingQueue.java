@@ -14,6 +14,8 @@
  */
 package dk.dma.commons.service;
 
+import static java.util.Objects.requireNonNull;
+
 import java.util.AbstractQueue;
 import java.util.Collection;
 import java.util.Iterator;
@@ -22,9 +24,12 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.codahale.metrics.Histogram;
+
 /**
  * An optionally-bounded {@linkplain BlockingQueue blocking queue} based on linked nodes. This queue orders elements
  * FIFO (first-in-first-out). The <em>head</em> of the queue is that element that has been on the queue the longest
@@ -86,6 +91,15 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
     /** Current number of elements */
     private final AtomicInteger count = new AtomicInteger();
 
+    /** What to do when putting an element into a full queue. */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.block();
+
+    /** The number of elements that has been discarded by the overflow policy. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** If non-null, records the time in nanoseconds each element has been in the queue when it is taken. */
+    transient volatile Histogram waitTimes;
+
     /**
      * Head of linked list. Invariant: head.item == null
      */
@@ -164,6 +178,56 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         return x;
     }
 
+    /**
+     * Creates a node for the specified element, timestamped if wait times are being recorded.
+     *
+     * @param e
+     *            the element
+     * @return the node
+     */
+    private Node<E> newNode(E e) {
+        Node<E> node = new Node<>(e);
+        if (waitTimes != null) {
+            node.time = System.nanoTime();
+        }
+        return node;
+    }
+
+    /**
+     * Records the wait time of an element that has been taken. Must not be called while holding the take lock, as the
+     * histogram may be synchronized.
+     *
+     * @param time
+     *            the time the node of the element was created, or 0 if it was not timestamped
+     */
+    private void recordWaitTime(long time) {
+        Histogram waitTimes = this.waitTimes;
+        if (waitTimes != null && time != 0) {
+            waitTimes.update(System.nanoTime() - time);
+        }
+    }
+
+    /**
+     * Records the wait times of a number of elements that have been drained. Must not be called while holding the take
+     * lock.
+     *
+     * @param times
+     *            the times the nodes of the elements were created, or null if wait times are not recorded
+     * @param n
+     *            the number of elements that were drained
+     */
+    private void recordWaitTimes(long[] times, int n) {
+        Histogram waitTimes = this.waitTimes;
+        if (waitTimes != null && times != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                if (times[i] != 0) {
+                    waitTimes.update(now - times[i]);
+                }
+            }
+        }
+    }
+
     /**
      * Locks to prevent both puts and takes.
      */
@@ -229,7 +293,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                 if (n == capacity) {
                     throw new IllegalStateException("Queue full");
                 }
-                enqueue(new Node<>(e));
+                enqueue(newNode(e));
                 ++n;
             }
             count.set(n);
@@ -280,7 +344,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         // Note: convention in all put/take/etc is to preset local var
         // holding count negative to indicate failure unless set.
         int c = -1;
-        Node<E> node = new Node<>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock putLock = this.putLock;
         final AtomicInteger count = this.count;
         putLock.lockInterruptibly();
@@ -292,6 +356,16 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
              * guards.
              */
             while (count.get() == capacity) {
+                if (capacity == 0) {
+                    throw new IllegalStateException("Queue has been shutdown");
+                }
+                OverflowPolicy.Action action = overflowPolicy.onOverflow();
+                if (action == OverflowPolicy.Action.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return;
+                } else if (action == OverflowPolicy.Action.DROP_OLDEST && dropOldest()) {
+                    break;
+                }
                 notFull.await();
             }
             if (capacity == 0) {
@@ -310,6 +384,54 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         }
     }
 
+    /**
+     * Discards the head of the queue to make room for a new element. Called only from put while holding the putLock.
+     *
+     * @return true if an element was discarded, false if the queue was empty
+     */
+    private boolean dropOldest() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock(); // same lock order as fullyLock
+        try {
+            if (count.get() == 0) {
+                return false;
+            }
+            dequeue();
+            count.getAndDecrement();
+        } finally {
+            takeLock.unlock();
+        }
+        dropped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the policy that is used when putting an element into a full queue.
+     *
+     * @return the policy that is used when putting an element into a full queue
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the policy that should be used when putting an element into a full queue.
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = requireNonNull(overflowPolicy, "overflowPolicy is null");
+    }
+
+    /**
+     * Returns the number of elements that has been discarded by the overflow policy.
+     *
+     * @return the number of elements that has been discarded by the overflow policy
+     */
+    public long getNumberOfDroppedElements() {
+        return dropped.get();
+    }
+
     /**
      * True if shutdown has been requested. The queue might have outstanding elements.
      *
@@ -347,6 +469,16 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         signalNotFull();
     }
 
+    /**
+     * Sets the histogram that records the time each element has been in the queue when it is taken.
+     *
+     * @param waitTimes
+     *            the histogram, or null to stop recording
+     */
+    void setWaitTimes(Histogram waitTimes) {
+        this.waitTimes = waitTimes;
+    }
+
     /**
      * Await shutdown boolean.
      *
@@ -398,7 +530,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                 }
                 nanos = notFull.awaitNanos(nanos);
             }
-            enqueue(new Node<>(e));
+            enqueue(newNode(e));
             c = count.getAndIncrement();
             if (c + 1 < capacity) {
                 notFull.signal();
@@ -430,7 +562,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
             return false;
         }
         int c = -1;
-        Node<E> node = new Node<>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock putLock = this.putLock;
         putLock.lock();
         try {
@@ -450,9 +582,162 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         return c >= 0;
     }
 
+    /**
+     * Inserts all elements of the specified collection at the tail of this queue, in the order they are returned by the
+     * collection's iterator, waiting if necessary for space to become available. Unlike calling {@link #put(Object)}
+     * for each element, the put lock is only acquired once and waiting takers are only signalled once, unless the
+     * queue fills up in the middle.
+     * <p>
+     * If the queue is full, the {@link #setOverflowPolicy(OverflowPolicy) overflow policy} is applied to each
+     * remaining element just like {@link #put(Object)} would. If interrupted while waiting for space, the elements
+     * before the one that could not be inserted remain in the queue.
+     *
+     * @param c
+     *            the elements to insert
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     * @throws NullPointerException
+     *             if the collection or any of its elements is null, in which case no elements are inserted
+     * @throws IllegalStateException
+     *             if the queue has been shutdown
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        Node<E>[] nodes = toNodes(c);
+        if (nodes.length == 0) {
+            return;
+        }
+        int i = 0;
+        boolean signalNotEmpty = false;
+        final ReentrantLock putLock = this.putLock;
+        final AtomicInteger count = this.count;
+        putLock.lockInterruptibly();
+        try {
+            while (i < nodes.length) {
+                while (count.get() >= capacity) {
+                    if (capacity == 0) {
+                        throw new IllegalStateException("Queue has been shutdown");
+                    }
+                    OverflowPolicy.Action action = overflowPolicy.onOverflow();
+                    if (action == OverflowPolicy.Action.DROP_NEWEST) {
+                        dropped.incrementAndGet();
+                        if (++i == nodes.length) {
+                            return;
+                        }
+                    } else if (action == OverflowPolicy.Action.DROP_OLDEST && dropOldest()) {
+                        break;
+                    } else {
+                        if (signalNotEmpty) { // let the consumers see what we have inserted so far
+                            signalNotEmpty();
+                            signalNotEmpty = false;
+                        }
+                        notFull.await();
+                    }
+                }
+                int n = Math.min(nodes.length - i, capacity - count.get());
+                i = enqueueAll(nodes, i, n);
+                int c0 = count.getAndAdd(n);
+                signalNotEmpty |= c0 == 0;
+                if (c0 + n < capacity) {
+                    notFull.signal();
+                }
+            }
+        } finally {
+            putLock.unlock();
+            if (signalNotEmpty) {
+                signalNotEmpty();
+            }
+        }
+    }
+
+    /**
+     * Inserts as many elements of the specified collection as possible at the tail of this queue without exceeding
+     * the capacity of the queue, in the order they are returned by the collection's iterator. The put lock is only
+     * acquired once. The overflow policy is not used.
+     *
+     * @param c
+     *            the elements to insert
+     * @return the number of elements that was inserted, which is always a prefix of the collection
+     * @throws NullPointerException
+     *             if the collection or any of its elements is null, in which case no elements are inserted
+     */
+    public int offerAll(Collection<? extends E> c) {
+        Node<E>[] nodes = toNodes(c);
+        if (nodes.length == 0 || count.get() >= capacity) {
+            return 0;
+        }
+        int n = 0;
+        int c0 = -1;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            n = Math.min(nodes.length, capacity - count.get());
+            if (n > 0) {
+                enqueueAll(nodes, 0, n);
+                c0 = count.getAndAdd(n);
+                if (c0 + n < capacity) {
+                    notFull.signal();
+                }
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c0 == 0) {
+            signalNotEmpty();
+        }
+        return n;
+    }
+
+    /**
+     * Creates a node for each element in the specified collection. Done before acquiring the put lock to keep the time
+     * we hold it short.
+     *
+     * @param c
+     *            the collection
+     * @return an array of nodes
+     */
+    @SuppressWarnings("unchecked")
+    private Node<E>[] toNodes(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        Object[] elements = c.toArray();
+        Node<E>[] nodes = (Node<E>[]) new Node<?>[elements.length];
+        long now = waitTimes == null ? 0 : System.nanoTime();
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] == null) {
+                throw new NullPointerException();
+            }
+            nodes[i] = new Node<>((E) elements[i]);
+            nodes[i].time = now;
+        }
+        return nodes;
+    }
+
+    /**
+     * Links a number of nodes as a chain at the end of queue. Must hold the put lock.
+     *
+     * @param nodes
+     *            the nodes
+     * @param from
+     *            the index of the first node to link
+     * @param n
+     *            the number of nodes to link
+     * @return the index of the next node that should be linked
+     */
+    private int enqueueAll(Node<E>[] nodes, int from, int n) {
+        int to = from + n;
+        for (int i = from; i < to - 1; i++) {
+            nodes[i].next = nodes[i + 1];
+        }
+        enqueue(nodes[from]); // makes the chain visible to takers once count has been updated
+        last = nodes[to - 1];
+        return to;
+    }
+
     public E take() throws InterruptedException {
         E x;
         int c = -1;
+        long time = 0;
         final AtomicInteger count = this.count;
         final ReentrantLock takeLock = this.takeLock;
         takeLock.lockInterruptibly();
@@ -465,6 +750,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                 notEmpty.await();
             }
 
+            time = head.next.time;
             x = dequeue();
             c = count.getAndDecrement();
             if (c > 1) {
@@ -473,6 +759,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         } finally {
             takeLock.unlock();
         }
+        recordWaitTime(time);
         if (c == capacity) {
             signalNotFull();
         }
@@ -482,6 +769,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
         E x = null;
         int c = -1;
+        long time = 0;
         long nanos = unit.toNanos(timeout);
         final AtomicInteger count = this.count;
         final ReentrantLock takeLock = this.takeLock;
@@ -493,6 +781,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                 }
                 nanos = notEmpty.awaitNanos(nanos);
             }
+            time = head.next.time;
             x = dequeue();
             c = count.getAndDecrement();
             if (c > 1) {
@@ -501,6 +790,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         } finally {
             takeLock.unlock();
         }
+        recordWaitTime(time);
         if (c == capacity) {
             signalNotFull();
         }
@@ -514,10 +804,12 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         }
         E x = null;
         int c = -1;
+        long time = 0;
         final ReentrantLock takeLock = this.takeLock;
         takeLock.lock();
         try {
             if (count.get() > 0) {
+                time = head.next.time;
                 x = dequeue();
                 c = count.getAndDecrement();
                 if (c > 1) {
@@ -527,6 +819,7 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
         } finally {
             takeLock.unlock();
         }
+        recordWaitTime(time);
         if (c == capacity) {
             signalNotFull();
         }
@@ -796,6 +1089,8 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
             return 0;
         }
         boolean signalNotFull = false;
+        long[] times = null;
+        int drained = 0;
         final ReentrantLock takeLock = this.takeLock;
         takeLock.lock();
         try {
@@ -803,6 +1098,9 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
             // count.get provides visibility to first n Nodes
             Node<E> h = head;
             int i = 0;
+            if (waitTimes != null) {
+                times = new long[n];
+            }
             try {
                 while (i < n) {
                     Node<E> p = h.next;
@@ -810,6 +1108,9 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                     p.item = null;
                     h.next = h;
                     h = p;
+                    if (times != null) {
+                        times[i] = p.time;
+                    }
                     ++i;
                 }
                 return n;
@@ -820,9 +1121,11 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                     head = h;
                     signalNotFull = count.getAndAdd(-i) == capacity;
                 }
+                drained = i;
             }
         } finally {
             takeLock.unlock();
+            recordWaitTimes(times, drained);
             if (signalNotFull) {
                 signalNotFull();
             }
@@ -859,21 +1162,25 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
             return 0;
         }
         boolean signalNotFull = false;
+        long[] times = null;
+        int drained = 0;
         final ReentrantLock takeLock = this.takeLock;
         takeLock.lockInterruptibly();
         try {
-            int n = Math.min(maxElements, count.get());
-
             while (count.get() == 0) {
                 if (capacity == 0) {
                     return 0;
                 }
                 notEmpty.await();
             }
+            int n = Math.min(maxElements, count.get());
 
             // count.get provides visibility to first n Nodes
             Node<E> h = head;
             int i = 0;
+            if (waitTimes != null) {
+                times = new long[n];
+            }
             try {
                 while (i < n) {
                     Node<E> p = h.next;
@@ -881,6 +1188,9 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                     p.item = null;
                     h.next = h;
                     h = p;
+                    if (times != null) {
+                        times[i] = p.time;
+                    }
                     ++i;
                 }
                 return n;
@@ -891,9 +1201,11 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
                     head = h;
                     signalNotFull = count.getAndAdd(-i) == capacity;
                 }
+                drained = i;
             }
         } finally {
             takeLock.unlock();
+            recordWaitTimes(times, drained);
             if (signalNotFull) {
                 signalNotFull();
             }
@@ -1063,6 +1375,11 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
          */
         Node<E> next;
 
+        /**
+         * The value of {@link System#nanoTime()} when the node was created, or 0 if wait times were not being recorded.
+         */
+        long time;
+
         /**
          * Instantiates a new Node.
          *
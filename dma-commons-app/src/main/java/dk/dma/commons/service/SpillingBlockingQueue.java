@@ -0,0 +1,423 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ShutdownBlockingQueue} that never blocks or drops elements on insertion. Instead, when the number of
+ * elements held in memory reaches a high-water mark, new elements are serialized and appended to memory-mapped segment
+ * files on disk. Once the in-memory queue has been drained, elements are read back from disk in FIFO order. This keeps
+ * the heap bounded during bursts, for example when catching up on a feed after a reconnect.
+ * <p>
+ * Segment files are transient, they are deleted as soon as they have been fully consumed and are not meant to survive
+ * a restart. {@link #contains(Object)}, {@link #remove(Object)}, {@link #iterator()} and {@link #toArray()} only
+ * consider the elements currently held in memory. The {@link #setOverflowPolicy(OverflowPolicy) overflow policy} is
+ * ignored as the queue is never full.
+ *
+ * @param <E> the type of elements held in this queue
+ * @author Kasper Nielsen
+ */
+public class SpillingBlockingQueue<E> extends ShutdownBlockingQueue<E> {
+
+    /** The default size of each segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(SpillingBlockingQueue.class);
+
+    private static final long serialVersionUID = 1L;
+
+    /** Converts a spilled record back to an element. */
+    private final Function<byte[], ? extends E> deserializer;
+
+    /** The directory to write segment files to. */
+    private final Path directory;
+
+    /** Whether or not shutdown has been requested. */
+    private volatile boolean shutdownRequested;
+
+    /** The minimum size of each segment file. */
+    private final int segmentSize;
+
+    /** The segments, oldest first. Guarded by spillLock. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    /** Converts an element to a record that can be spilled to disk. */
+    private final Function<? super E, byte[]> serializer;
+
+    /** The number of elements currently on disk. Only modified while holding spillLock. */
+    private volatile long spilled;
+
+    /** Guards the segments. Lock order is spillLock, putLock, takeLock. */
+    private final ReentrantLock spillLock = new ReentrantLock();
+
+    /** Whether or not new elements are currently being appended to disk. Only modified while holding spillLock. */
+    private volatile boolean spilling;
+
+    /** The total number of elements that has been spilled to disk. */
+    private volatile long totalSpilled;
+
+    /**
+     * Creates a new spilling queue.
+     *
+     * @param highWaterMark the maximum number of elements held in memory
+     * @param directory     the directory to store segment files in
+     * @param serializer    converts an element to bytes
+     * @param deserializer  converts bytes back to an element
+     */
+    public SpillingBlockingQueue(int highWaterMark, Path directory, Function<? super E, byte[]> serializer,
+            Function<byte[], ? extends E> deserializer) {
+        this(highWaterMark, directory, serializer, deserializer, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new spilling queue.
+     *
+     * @param highWaterMark the maximum number of elements held in memory
+     * @param directory     the directory to store segment files in
+     * @param serializer    converts an element to bytes
+     * @param deserializer  converts bytes back to an element
+     * @param segmentSize   the size of each segment file
+     */
+    public SpillingBlockingQueue(int highWaterMark, Path directory, Function<? super E, byte[]> serializer,
+            Function<byte[], ? extends E> deserializer, int segmentSize) {
+        super(highWaterMark);
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 1024, was " + segmentSize);
+        }
+        this.directory = requireNonNull(directory, "directory is null");
+        this.serializer = requireNonNull(serializer, "serializer is null");
+        this.deserializer = requireNonNull(deserializer, "deserializer is null");
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the number of elements currently stored on disk.
+     *
+     * @return the number of elements currently stored on disk
+     */
+    public long getNumberOfSpilledElements() {
+        return spilled;
+    }
+
+    /**
+     * Returns the total number of elements that has been spilled to disk.
+     *
+     * @return the total number of elements that has been spilled to disk
+     */
+    public long getTotalNumberOfSpilledElements() {
+        return totalSpilled;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, super.size() + spilled);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e) {
+        requireNonNull(e);
+        if (shutdownRequested) {
+            throw new IllegalStateException("Queue has been shutdown");
+        }
+        // Fast path, once we start spilling all elements go to disk until it has been drained to keep FIFO order
+        if (!spilling && super.offer(e)) {
+            return true;
+        }
+        spillLock.lock();
+        try {
+            if (!spilling && super.offer(e)) {
+                return true;
+            }
+            spilling = true;
+            append(serializer.apply(e));
+            spilled++;
+            totalSpilled++;
+            // The consumer might have emptied the memory and be waiting, before seeing the element we just spilled
+            if (super.size() == 0) {
+                moveToMemory();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Inserts all the elements, spilling them to disk as needed. Never blocks.
+     *
+     * @param c the elements to insert
+     */
+    @Override
+    public void putAll(Collection<? extends E> c) {
+        offerAll(c);
+    }
+
+    /**
+     * Inserts all the elements, spilling them to disk as needed.
+     *
+     * @param c the elements to insert
+     * @return the number of elements in the collection, as all of them are always inserted
+     */
+    @Override
+    public int offerAll(Collection<? extends E> c) {
+        for (E e : c) {
+            requireNonNull(e);
+        }
+        if (shutdownRequested) {
+            throw new IllegalStateException("Queue has been shutdown");
+        }
+        // Take the in-memory bulk path for as many elements as possible, while keeping FIFO order with spilled elements
+        int n = spilling ? 0 : super.offerAll(c);
+        if (n < c.size()) {
+            int i = 0;
+            for (E e : c) {
+                if (i++ >= n) {
+                    offer(e);
+                }
+            }
+        }
+        return c.size();
+    }
+
+    /**
+     * Appends a record to the last segment, creating a new segment if needed. Must hold spillLock.
+     *
+     * @param record the record to append
+     */
+    private void append(byte[] record) {
+        Segment s = segments.peekLast();
+        if (s == null || !s.hasRoomFor(record.length)) {
+            if (segments.isEmpty()) {
+                LOG.info("Spilling elements to " + directory.toAbsolutePath() + ", in memory size = " + super.size());
+            }
+            s = new Segment(directory, Math.max(segmentSize, record.length + 4));
+            segments.addLast(s);
+        }
+        s.append(record);
+    }
+
+    /** Moves elements from disk to memory, invoked by consumers before accessing the in-memory queue. */
+    private void refill() {
+        if (spilled == 0) {
+            return;
+        }
+        spillLock.lock();
+        try {
+            moveToMemory();
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Moves elements from disk to memory until either the memory is full or there are no more elements on disk. If
+     * shutdown has been requested and all elements has been moved to memory, the underlying queue is shutdown. Must
+     * hold spillLock.
+     */
+    private void moveToMemory() {
+        Segment s;
+        while ((s = segments.peekFirst()) != null) {
+            if (s.isFullyRead()) {
+                s.delete();
+                segments.pollFirst();
+            } else if (super.remainingCapacity() > 0 && super.offer(deserializer.apply(s.peek()))) {
+                s.advance();
+                spilled--;
+            } else {
+                return; // Memory is full
+            }
+        }
+        spilling = false;
+        if (shutdownRequested) {
+            super.shutdown();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E take() throws InterruptedException {
+        refill();
+        return super.take();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll() {
+        refill();
+        return super.poll();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        refill();
+        return super.poll(timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E peek() {
+        refill();
+        return super.peek();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        refill();
+        return super.drainTo(c, maxElements);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainToBlocking(Collection<? super E> c, int maxElements) throws InterruptedException {
+        refill();
+        return super.drainToBlocking(c, maxElements);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean isShutdown() {
+        return shutdownRequested;
+    }
+
+    /**
+     * Shuts down the queue. New elements are rejected immediately. But the underlying in-memory queue is not shutdown
+     * until all spilled elements have been read back from disk.
+     */
+    @Override
+    void shutdown() {
+        spillLock.lock();
+        try {
+            shutdownRequested = true;
+            if (spilled == 0) {
+                for (Segment s : segments) {
+                    s.delete();
+                }
+                segments.clear();
+                super.shutdown();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        throw new NotSerializableException(getClass().getName());
+    }
+
+    /** An append-only memory-mapped segment file. */
+    static final class Segment {
+
+        /** The mapped file. */
+        private MappedByteBuffer buffer;
+
+        /** The path of the segment file. */
+        private Path path;
+
+        /** The position of the next record to read. */
+        private int readPosition;
+
+        /** The position the next record will be written to. */
+        private int writePosition;
+
+        Segment(Path directory, int size) {
+            try {
+                Files.createDirectories(directory);
+                path = Files.createTempFile(directory, "spill-", ".seg");
+                try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = fc.map(MapMode.READ_WRITE, 0, size);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create spill segment in " + directory, e);
+            }
+        }
+
+        void advance() {
+            readPosition += 4 + buffer.getInt(readPosition);
+        }
+
+        void append(byte[] record) {
+            buffer.putInt(writePosition, record.length);
+            buffer.position(writePosition + 4);
+            buffer.put(record);
+            writePosition += 4 + record.length;
+        }
+
+        void delete() {
+            buffer = null; // The mapping is released when the buffer is garbage collected
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.error("Could not delete spill segment " + path, e);
+            }
+        }
+
+        boolean hasRoomFor(int recordLength) {
+            return buffer.capacity() - writePosition >= 4 + recordLength;
+        }
+
+        boolean isFullyRead() {
+            return readPosition == writePosition;
+        }
+
+        byte[] peek() {
+            byte[] record = new byte[buffer.getInt(readPosition)];
+            buffer.position(readPosition + 4);
+            buffer.get(record);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+
+/**
+ * Latency and throughput metrics for a single {@link AbstractMessageProcessorService}. All times are recorded in
+ * nanoseconds.
+ *
+ * @author Kasper Nielsen
+ */
+public class StageMetrics {
+
+    /** The number of messages in each batch passed to handleMessages. */
+    final Histogram batchSize = new Histogram(new ExponentiallyDecayingReservoir());
+
+    /** The time it takes to handle each batch of messages. */
+    final Histogram handleTime = new Histogram(new ExponentiallyDecayingReservoir());
+
+    /** The rate of processed messages. */
+    final Meter processed = new Meter();
+
+    /**
+     * The time each message has been waiting in the queue. Updated once per message, so we use the cheaper sliding
+     * window reservoir that keeps the most recent measurements.
+     */
+    final Histogram queueWaitTime = new Histogram(new SlidingWindowReservoir(2048));
+
+    /**
+     * Returns the number of messages in each batch.
+     *
+     * @return the number of messages in each batch
+     */
+    public Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the time in nanoseconds it takes to handle each batch of messages.
+     *
+     * @return the time it takes to handle each batch of messages
+     */
+    public Histogram getHandleTime() {
+        return handleTime;
+    }
+
+    /**
+     * Returns the rate of processed messages.
+     *
+     * @return the rate of processed messages
+     */
+    public Meter getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Returns the time in nanoseconds each message has been waiting in the input queue before being processed. Only
+     * recorded if enabled with {@link AbstractMessageProcessorService#setRecordQueueWaitTime(boolean)}.
+     *
+     * @return the time each message has been waiting in the input queue
+     */
+    public Histogram getQueueWaitTime() {
+        return queueWaitTime;
+    }
+
+    /**
+     * Records that a batch of messages has been handled.
+     *
+     * @param size  the number of messages in the batch
+     * @param nanos the time it took to handle the batch
+     */
+    void recordBatch(int size, long nanos) {
+        batchSize.update(size);
+        handleTime.update(nanos);
+        processed.mark(size);
+    }
+
+    /**
+     * Registers all metrics in the specified registry.
+     *
+     * @param registry the registry to register the metrics in
+     * @param name     the name prefix of the metrics, for example the name of the stage
+     */
+    public void registerWith(MetricRegistry registry, String name) {
+        requireNonNull(registry, "registry is null");
+        requireNonNull(name, "name is null");
+        registry.register(MetricRegistry.name(name, "batchSize"), batchSize);
+        registry.register(MetricRegistry.name(name, "handleTime"), handleTime);
+        registry.register(MetricRegistry.name(name, "processed"), processed);
+        registry.register(MetricRegistry.name(name, "queueWaitTime"), queueWaitTime);
+    }
+}
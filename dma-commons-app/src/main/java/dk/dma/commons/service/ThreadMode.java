@@ -0,0 +1,98 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The kind of thread a {@link AbstractMessageProcessorService} runs its processing loop on.
+ * <p>
+ * Virtual threads are only available when running on Java 21 or later. Since this library is compiled for Java 8, they
+ * are looked up reflectively. Use {@link #isSupported()} to test whether a mode can be used on the current JVM.
+ *
+ * @author Kasper Nielsen
+ */
+public enum ThreadMode {
+
+    /** Each service owns a dedicated platform (operating system) thread. This is the default. */
+    PLATFORM {
+        @Override
+        Thread newThread(String name, Runnable runnable) {
+            return new Thread(runnable, name);
+        }
+    },
+
+    /**
+     * Each service runs on a virtual thread. Blocking in {@link ShutdownBlockingQueue#take()} or
+     * {@link ShutdownBlockingQueue#drainToBlocking(java.util.Collection, int)} only parks the virtual thread, not the
+     * carrier thread, which makes it cheap to run a large number of small, mostly idle, stages.
+     */
+    VIRTUAL {
+        @Override
+        Thread newThread(String name, Runnable runnable) {
+            if (UNSTARTED_VIRTUAL == null) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+            }
+            try {
+                Thread t = (Thread) UNSTARTED_VIRTUAL.invoke(runnable);
+                t.setName(name);
+                return t;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not create virtual thread", e);
+            }
+        }
+    };
+
+    /** Creates an unstarted virtual thread (Thread.ofVirtual().unstarted(Runnable)), or null if not supported. */
+    private static final MethodHandle UNSTARTED_VIRTUAL;
+
+    static {
+        MethodHandle mh = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle factory = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtual));
+            MethodHandle unstarted = lookup.findVirtual(builder, "unstarted",
+                    MethodType.methodType(Thread.class, Runnable.class));
+            mh = MethodHandles.collectArguments(unstarted, 0, factory.asType(MethodType.methodType(builder)));
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            mh = null; // Running on a JVM without virtual threads
+        }
+        UNSTARTED_VIRTUAL = mh;
+    }
+
+    /**
+     * Returns whether or not this thread mode can be used on the current JVM.
+     *
+     * @return whether or not this thread mode can be used on the current JVM
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || UNSTARTED_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a new unstarted thread.
+     *
+     * @param name     the name of the thread
+     * @param runnable the runnable to execute
+     * @return the new thread
+     */
+    abstract Thread newThread(String name, Runnable runnable);
+}
@@ -0,0 +1,211 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides how the processing thread of an {@link AbstractMessageProcessorService} waits for messages to arrive in an
+ * empty input queue. The default strategy is {@link #blocking()} which waits on a condition in the queue. This is
+ * cheap on the CPU, but every wake-up requires the producer to signal the consumer, which costs a system call and
+ * tens of microseconds of scheduler latency. For latency-critical stages one of the spinning strategies can be used
+ * instead, trading CPU time for lower and more predictable latency.
+ * <p>
+ * All strategies return as soon as the queue has been shutdown and drained, and can be interrupted, so stopping the
+ * service works the same regardless of the strategy being used.
+ *
+ * @author Kasper Nielsen
+ */
+public abstract class WaitStrategy {
+
+    /** The blocking strategy. */
+    private static final WaitStrategy BLOCKING = new Blocking();
+
+    /** The busy spin strategy. */
+    private static final WaitStrategy BUSY_SPIN = new Spinning(Long.MAX_VALUE, 0, "busySpin");
+
+    /** The shortest time to park, the park time is doubled every time no message was found. */
+    static final long MIN_PARK_NANOS = 1000;
+
+    /** Thread.onSpinWait() if running on Java 9 or later, otherwise a no-op. */
+    private static final MethodHandle ON_SPIN_WAIT;
+
+    static {
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.publicLookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            mh = MethodHandles.constant(Object.class, null).asType(MethodType.methodType(void.class)); // Java 8
+        }
+        ON_SPIN_WAIT = mh;
+    }
+
+    /**
+     * Waits for an element to become available in the specified queue and takes it.
+     *
+     * @param queue
+     *            the queue to take an element from
+     * @return the element, or null if the queue has been shutdown and there are no more elements
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    abstract <E> E take(ShutdownBlockingQueue<E> queue) throws InterruptedException;
+
+    /**
+     * Returns a strategy that blocks in {@link ShutdownBlockingQueue#take()} until a message arrives. This is the
+     * default strategy.
+     *
+     * @return a strategy that blocks until a message arrives
+     */
+    public static WaitStrategy blocking() {
+        return BLOCKING;
+    }
+
+    /**
+     * Returns a strategy that polls the queue in a tight loop, never giving up the CPU. Gives the lowest latency, but
+     * permanently occupies a core. Should only be used if there is a core available for each busy spinning stage.
+     *
+     * @return a strategy that polls the queue in a tight loop
+     */
+    public static WaitStrategy busySpin() {
+        return BUSY_SPIN;
+    }
+
+    /**
+     * Returns a strategy that polls the queue in a tight loop the specified number of times, after which it calls
+     * {@link Thread#yield()} between each poll. Never blocks, but lets other threads run on the core if there is
+     * contention.
+     *
+     * @param spins
+     *            the number of times to poll before yielding
+     * @return the new strategy
+     * @throws IllegalArgumentException
+     *             if spins is negative
+     */
+    public static WaitStrategy spinThenYield(int spins) {
+        if (spins < 0) {
+            throw new IllegalArgumentException("spins must be non-negative, was " + spins);
+        }
+        return new Spinning(spins, 0, "spinThenYield(" + spins + ")");
+    }
+
+    /**
+     * Returns a strategy that polls the queue in a tight loop the specified number of times, after which it parks the
+     * thread between each poll. The park time starts at 1 microsecond and is doubled every time the queue is found
+     * empty, up to the specified maximum. The maximum park time is the budget for how much latency is added to the
+     * first message after an idle period.
+     *
+     * @param spins
+     *            the number of times to poll before parking
+     * @param maxParkTime
+     *            the maximum time to park between polls
+     * @param unit
+     *            the unit of the maximum park time
+     * @return the new strategy
+     * @throws IllegalArgumentException
+     *             if spins is negative or if the maximum park time is less than 1 microsecond
+     */
+    public static WaitStrategy spinThenPark(int spins, long maxParkTime, TimeUnit unit) {
+        long maxParkNanos = requireNonNull(unit, "unit is null").toNanos(maxParkTime);
+        if (spins < 0) {
+            throw new IllegalArgumentException("spins must be non-negative, was " + spins);
+        } else if (maxParkNanos < MIN_PARK_NANOS) {
+            throw new IllegalArgumentException("maxParkTime must be at least 1 microsecond, was " + maxParkNanos
+                    + " nanoseconds");
+        }
+        return new Spinning(spins, maxParkNanos, "spinThenPark(" + spins + ", " + maxParkNanos + "ns)");
+    }
+
+    /** Hints to the processor that we are spinning. */
+    static void onSpinWait() {
+        try {
+            ON_SPIN_WAIT.invokeExact();
+        } catch (Throwable e) {
+            throw new Error(e); // Cannot happen
+        }
+    }
+
+    /** A strategy that blocks on the queue. */
+    static final class Blocking extends WaitStrategy {
+
+        /** {@inheritDoc} */
+        @Override
+        <E> E take(ShutdownBlockingQueue<E> queue) throws InterruptedException {
+            return queue.take();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "blocking";
+        }
+    }
+
+    /** A strategy that polls the queue, backing off by yielding or parking when the spin budget has been used. */
+    static final class Spinning extends WaitStrategy {
+
+        /** The maximum time to park, or 0 to yield instead of parking. */
+        private final long maxParkNanos;
+
+        /** The name of the strategy. */
+        private final String name;
+
+        /** The number of polls before backing off. */
+        private final long spins;
+
+        Spinning(long spins, long maxParkNanos, String name) {
+            this.spins = spins;
+            this.maxParkNanos = maxParkNanos;
+            this.name = name;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        <E> E take(ShutdownBlockingQueue<E> queue) throws InterruptedException {
+            long idle = 0;
+            long parkNanos = MIN_PARK_NANOS;
+            for (;;) {
+                E e = queue.poll();
+                if (e != null) {
+                    return e;
+                } else if (queue.isShutdown()) {
+                    return queue.take(); // Returns immediately, either the last elements or null
+                } else if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                } else if (idle < spins) {
+                    idle++;
+                    onSpinWait();
+                } else if (maxParkNanos == 0) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, parkNanos); // returns immediately if interrupted
+                    parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+
+import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.commons.service.ShutdownBlockingQueue;
+
+/**
+ * Reads messages from a directory of archive files, as written by a {@link MessageToFileService}, and puts them on a
+ * queue, typically the {@link dk.dma.commons.service.AbstractMessageProcessorService#getInputQueue() input queue} of a
+ * stage. The service terminates once all files have been read.
+ * <p>
+ * Files are found by matching their path, relative to the root directory, against the filename pattern of the writer.
+ * A sequence number added when rolling on size, see
+ * {@link MessageToFileService#dateTimeAndSizeService(Path, String, dk.dma.commons.util.io.OutputStreamSink, long)},
+ * a compression suffix added by a {@link BackgroundCompressor}, and a copy number added by
+ * {@link dk.dma.commons.util.io.PathUtil#findUnique(Path)} if a file with the same name already existed, are ignored
+ * when matching. Files are read in the order of the time in their name, then their sequence number, then their copy
+ * number. Temporary files that are still being written are skipped.
+ * <p>
+ * Uncompressed files are memory mapped and handed to the source as a single buffer, avoiding any copying through
+ * streams. Compressed files are decompressed using the {@link CompressionCodec#forFilename(String) codec matching their
+ * suffix} through a large buffer. Mapped files are unmapped when garbage collected, as there is no way to unmap them
+ * explicitly.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public class ArchiveReaderService<T> extends AbstractExecutionThreadService {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ArchiveReaderService.class);
+
+    /** The number of messages put on the queue at a time. */
+    static final int BATCH_SIZE = 1000;
+
+    /** Matches a sequence number at the end of the name of a file, before any suffix. */
+    static final Pattern SEQUENCE = Pattern.compile("-(\\d{4,})(\\.[^/]*)?$");
+
+    /** Matches a copy number added by PathUtil.findUnique, at the end of the name of a file without any suffix. */
+    static final Pattern COPY = Pattern.compile("-(\\d{1,9})$");
+
+    /** The number of bytes read from files, compressed files count their compressed size. */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /** The file currently being read. */
+    private volatile Path currentFile;
+
+    /** The queue to put messages on. */
+    private final BlockingQueue<? super T> downstream;
+
+    /** The thread reading files. */
+    private volatile Thread executionThread;
+
+    /** The filename pattern. */
+    private final String filenamePattern;
+
+    /** The number of files read. */
+    private final AtomicLong filesRead = new AtomicLong();
+
+    /** The number of messages read. */
+    private final AtomicLong messagesRead = new AtomicLong();
+
+    /** The root directory. */
+    private final Path root;
+
+    /** Reads messages from each file. */
+    private final InputStreamSource<? extends T> source;
+
+    /**
+     * Creates a new archive reader service.
+     *
+     * @param root            the directory to read from
+     * @param filenamePattern the filename pattern used when writing the files
+     * @param source          reads messages from each file
+     * @param downstream      the queue to put messages on
+     */
+    public ArchiveReaderService(Path root, String filenamePattern, InputStreamSource<? extends T> source,
+            BlockingQueue<? super T> downstream) {
+        this.root = requireNonNull(root, "root is null");
+        this.filenamePattern = MessageToFileService.validateFilename(root, filenamePattern);
+        this.source = requireNonNull(source, "source is null");
+        this.downstream = requireNonNull(downstream, "downstream is null");
+    }
+
+    /**
+     * Finds the files to read in the order they should be read.
+     *
+     * @return the files to read
+     * @throws IOException if the root directory could not be read
+     */
+    List<Path> findFiles() throws IOException {
+        return findFiles(root, filenamePattern);
+    }
+
+    /**
+     * Finds the files in the specified directory matching the specified filename pattern, in the order they should be
+     * read.
+     *
+     * @param root            the directory to read from
+     * @param filenamePattern the filename pattern used when writing the files
+     * @return the files to read
+     * @throws IOException if the root directory could not be read
+     */
+    static List<Path> findFiles(Path root, String filenamePattern) throws IOException {
+        SimpleDateFormat sdf = new SimpleDateFormat(filenamePattern);
+        sdf.setLenient(false);
+        List<ArchiveFile> files = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(root)) {
+            s.filter(Files::isRegularFile).forEach(p -> {
+                String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+                if (!name.endsWith(ArchiveRecovery.TMP_SUFFIX) && !name.endsWith(ArchiveRecovery.COMPRESS_SUFFIX)) {
+                    ArchiveFile f = match(sdf, p, name);
+                    if (f != null) {
+                        files.add(f);
+                    } else {
+                        LOG.debug("Skipping " + p + " as it does not match the filename pattern " + filenamePattern);
+                    }
+                }
+            });
+        }
+        files.sort(Comparator.comparingLong((ArchiveFile f) -> f.time).thenComparingLong(f -> f.sequence)
+                .thenComparingInt(f -> f.copy).thenComparing(f -> f.path));
+        List<Path> result = new ArrayList<>(files.size());
+        for (ArchiveFile f : files) {
+            result.add(f.path);
+        }
+        return result;
+    }
+
+    /**
+     * Matches the name of a file against a filename pattern, ignoring any sequence number, copy number and compression
+     * suffix.
+     *
+     * @param sdf  the filename pattern, not lenient
+     * @param path the file
+     * @param name the name of the file relative to the root directory, using '/' as separator
+     * @return the file with the time, sequence number and copy number parsed from its name, or null if the name does
+     *         not match
+     */
+    static ArchiveFile match(SimpleDateFormat sdf, Path path, String name) {
+        name = CompressionCodec.forFilename(name).entryName(name);
+        ArchiveFile f = match(sdf, path, name, 0);
+        if (f == null) {
+            // The copy number is inserted before the first '.' of the filename, see PathUtil.findUnique
+            int start = name.lastIndexOf('/') + 1;
+            int dot = name.indexOf('.', start);
+            Matcher m = COPY.matcher(dot < 0 ? name : name.substring(0, dot));
+            if (m.find()) {
+                String withoutCopy = name.substring(0, m.start()) + (dot < 0 ? "" : name.substring(dot));
+                f = match(sdf, path, withoutCopy, Integer.parseInt(m.group(1)));
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Matches the name of a file, without any copy number and compression suffix, against a filename pattern,
+     * ignoring any sequence number.
+     *
+     * @param sdf  the filename pattern, not lenient
+     * @param path the file
+     * @param name the name of the file relative to the root directory, using '/' as separator
+     * @param copy the copy number of the file, or 0 if the file does not have one
+     * @return the file with the time and sequence number parsed from its name, or null if the name does not match
+     */
+    private static ArchiveFile match(SimpleDateFormat sdf, Path path, String name, int copy) {
+        Matcher m = SEQUENCE.matcher(name);
+        if (m.find()) {
+            // Only a sequence number if the name without it matches the pattern
+            String withoutSequence = name.substring(0, m.start()) + (m.group(2) == null ? "" : m.group(2));
+            Date d = parse(sdf, withoutSequence);
+            if (d != null) {
+                return new ArchiveFile(path, d.getTime(), Long.parseLong(m.group(1)), copy);
+            }
+        }
+        Date d = parse(sdf, name);
+        return d == null ? null : new ArchiveFile(path, d.getTime(), -1, copy);
+    }
+
+    /**
+     * Returns the number of bytes read from files. Compressed files count their compressed size.
+     *
+     * @return the number of bytes read from files
+     */
+    @ManagedAttribute
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Returns the file currently being read.
+     *
+     * @return the file currently being read, or null if no file is being read
+     */
+    @ManagedAttribute
+    public String getCurrentFile() {
+        Path p = currentFile;
+        return p == null ? null : p.toString();
+    }
+
+    /**
+     * Returns the number of files read.
+     *
+     * @return the number of files read
+     */
+    @ManagedAttribute
+    public long getNumberOfFilesRead() {
+        return filesRead.get();
+    }
+
+    /**
+     * Returns the number of messages read.
+     *
+     * @return the number of messages read
+     */
+    @ManagedAttribute
+    public long getNumberOfMessagesRead() {
+        return messagesRead.get();
+    }
+
+    /**
+     * Reads a single file.
+     *
+     * @param file     the file to read
+     * @param consumer the consumer of messages
+     * @throws IOException if the file could not be read
+     */
+    void read(Path file, Consumer<? super T> consumer) throws IOException {
+        bytesRead.addAndGet(read(file, source, consumer));
+    }
+
+    /**
+     * Reads a single file using the specified source.
+     *
+     * @param <T>      the type of messages
+     * @param file     the file to read
+     * @param source   reads messages from the file
+     * @param consumer the consumer of messages
+     * @return the size of the file
+     * @throws IOException if the file could not be read
+     */
+    static <T> long read(Path file, InputStreamSource<? extends T> source, Consumer<? super T> consumer)
+            throws IOException {
+        CompressionCodec codec = CompressionCodec.forFilename(file.getFileName().toString());
+        long size = Files.size(file);
+        if (codec == CompressionCodec.none() && size <= Integer.MAX_VALUE) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                source.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), consumer);
+            }
+        } else {
+            try (InputStream in = codec.decompress(new BufferedInputStream(Files.newInputStream(file), 1024 * 1024))) {
+                source.read(in, consumer);
+            }
+        }
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void run() throws Exception {
+        executionThread = Thread.currentThread();
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        Consumer<T> consumer = t -> {
+            batch.add(t);
+            if (batch.size() == BATCH_SIZE) {
+                put(batch);
+            }
+        };
+        try {
+            for (Path p : findFiles()) {
+                if (!isRunning()) {
+                    return;
+                }
+                currentFile = p;
+                LOG.info("Reading " + p);
+                read(p, consumer);
+                filesRead.incrementAndGet();
+            }
+            put(batch);
+        } catch (UncheckedIOException e) {
+            if (!isInterruptedByShutdown(e.getCause())) {
+                throw e.getCause();
+            }
+        } catch (IOException e) {
+            if (!isInterruptedByShutdown(e)) {
+                throw e;
+            }
+        } finally {
+            currentFile = null;
+            executionThread = null;
+        }
+    }
+
+    /**
+     * Puts a batch of messages on the queue, and clears the batch.
+     *
+     * @param batch the batch of messages
+     */
+    @SuppressWarnings("unchecked")
+    private void put(List<T> batch) {
+        try {
+            if (downstream instanceof ShutdownBlockingQueue) {
+                ((ShutdownBlockingQueue<? super T>) downstream).putAll(batch);
+            } else {
+                for (T t : batch) {
+                    downstream.put(t);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while putting messages on queue"));
+        }
+        messagesRead.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    /**
+     * Returns whether the specified exception was caused by {@link #triggerShutdown()} interrupting the reader.
+     *
+     * @param e the exception
+     * @return whether the exception was caused by the reader being stopped
+     */
+    private boolean isInterruptedByShutdown(IOException e) {
+        return !isRunning() && (e instanceof InterruptedIOException || e instanceof ClosedByInterruptException);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void triggerShutdown() {
+        Thread t = executionThread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Parses the specified name using the specified format.
+     *
+     * @param sdf  the format
+     * @param name the name
+     * @return the parsed date, or null if the whole name could not be parsed
+     */
+    private static Date parse(SimpleDateFormat sdf, String name) {
+        ParsePosition pos = new ParsePosition(0);
+        Date d = sdf.parse(name, pos);
+        return d != null && pos.getIndex() == name.length() ? d : null;
+    }
+
+    /** A file to read, with the time, sequence number and copy number parsed from its name. */
+    static final class ArchiveFile {
+
+        /** The copy number, or 0 if the file does not have one. */
+        final int copy;
+
+        /** The file. */
+        final Path path;
+
+        /** The sequence number, or -1 if the file does not have one. */
+        final long sequence;
+
+        /** The time parsed from the name of the file. */
+        final long time;
+
+        ArchiveFile(Path path, long time, long sequence, int copy) {
+            this.copy = copy;
+            this.path = path;
+            this.time = time;
+            this.sequence = sequence;
+        }
+    }
+}
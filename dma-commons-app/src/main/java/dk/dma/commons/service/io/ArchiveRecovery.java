@@ -0,0 +1,483 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.commons.service.io.FramedRecordReader.Block;
+import dk.dma.commons.util.io.PathUtil;
+
+/**
+ * Recovers the temporary files left behind when a {@link MessageToFileService} is not stopped properly, for example
+ * because the process crashed. Each temporary file is truncated to its last complete record, and renamed to the name
+ * it would have gotten had it been closed. Recovery can be run by the service when it starts, see
+ * {@link MessageToFileService#setRecoverOnStartup(boolean)} and
+ * {@link ShardedMessageToFileService#setRecoverOnStartup(boolean)}.
+ * <p>
+ * How a file is truncated depends on its contents:
+ * <ul>
+ * <li>Files written by a {@link FramedRecordSink} are truncated to their last block with valid checksums, and the
+ * missing index is added.</li>
+ * <li>Files written by a {@link ColumnarPositionSink} are truncated to their last block with a valid checksum.</li>
+ * <li>Other files are assumed to be text, and are truncated after their last line feed. So recovery must not be used
+ * for files written by other binary sinks.</li>
+ * <li>Compressed files are decompressed until the data ends, truncated as above, and compressed again.</li>
+ * </ul>
+ * Temporary files left by a {@link BackgroundCompressor} are deleted, as the uncompressed file they were compressing
+ * still exists. They have their own suffix, as the name of the compressed file may differ from the uncompressed file
+ * by a copy number if a file of that name already existed. Files where nothing is left after truncation are deleted.
+ * <p>
+ * Only temporary files whose name matches the filename pattern are recovered, so several services can share a root
+ * directory. The directories below the root are searched in parallel, and only temporary files are examined, so
+ * recovery is fast even for directories with many files.
+ *
+ * @author Kasper Nielsen
+ */
+public final class ArchiveRecovery {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ArchiveRecovery.class);
+
+    /** The suffix of files used by a {@link BackgroundCompressor} while compressing a file. */
+    static final String COMPRESS_SUFFIX = ".compressing";
+
+    /** The suffix of files used while recovering a compressed file. */
+    static final String RECOVER_SUFFIX = ".recover";
+
+    /** The suffix of temporary files. */
+    static final String TMP_SUFFIX = ".tmp";
+
+    /** Cannot instantiate. */
+    private ArchiveRecovery() {}
+
+    /**
+     * Recovers the temporary files in the specified directory, using a thread per available processor.
+     *
+     * @param root            the directory written to
+     * @param filenamePattern the filename pattern of the writer
+     * @return the final paths of the recovered files
+     * @throws IOException if the directory could not be searched
+     * @see #recover(Path, String, int)
+     */
+    public static List<Path> recover(Path root, String filenamePattern) throws IOException {
+        return recover(root, filenamePattern, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Recovers the temporary files in the specified directory. Must not be invoked while a writer is writing to the
+     * directory using the same filename pattern. Files that could not be recovered are logged and left as they are.
+     *
+     * @param root            the directory written to
+     * @param filenamePattern the filename pattern of the writer
+     * @param parallelism     the number of threads searching directories and recovering files
+     * @return the final paths of the recovered files
+     * @throws IOException if the directory could not be searched
+     * @throws IllegalArgumentException if the parallelism is less than 1
+     */
+    public static List<Path> recover(Path root, String filenamePattern, int parallelism) throws IOException {
+        return recover(root, filenamePattern, parallelism, false);
+    }
+
+    /**
+     * Recovers the temporary files in each directory directly below the specified directory, using the filename
+     * pattern relative to each of the directories. For example, the directory of each key of a
+     * {@link ShardedMessageToFileService}. All directories are recovered using a single thread per available processor.
+     * Must not be invoked while a writer is writing to any of the directories using the same filename pattern.
+     *
+     * @param root            the directory containing the directories written to
+     * @param filenamePattern the filename pattern of the writers, relative to each directory
+     * @return the final paths of the recovered files
+     * @throws IOException if the directories could not be searched
+     * @see #recover(Path, String, int)
+     */
+    public static List<Path> recoverSubdirectories(Path root, String filenamePattern) throws IOException {
+        return recover(root, filenamePattern, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Recovers the temporary files in the specified directory, or in each directory directly below it.
+     *
+     * @param root            the directory written to, or the directory containing the directories written to
+     * @param filenamePattern the filename pattern of the writer
+     * @param parallelism     the number of threads searching directories and recovering files
+     * @param subdirectories  whether to recover each directory directly below the root, instead of the root
+     * @return the final paths of the recovered files
+     * @throws IOException if the directory could not be searched
+     */
+    private static List<Path> recover(Path root, String filenamePattern, int parallelism, boolean subdirectories)
+            throws IOException {
+        MessageToFileService.validateFilename(root, filenamePattern);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, was " + parallelism);
+        } else if (!Files.isDirectory(root)) {
+            return Collections.emptyList();
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "ArchiveRecovery-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Path> files = new ArrayList<>();
+            if (subdirectories) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, Files::isDirectory)) {
+                    for (Path p : ds) {
+                        files.addAll(findTemporaryFiles(p, filenamePattern, executor));
+                    }
+                }
+            } else {
+                files.addAll(findTemporaryFiles(root, filenamePattern, executor));
+            }
+            List<Future<Path>> futures = new ArrayList<>();
+            for (Path p : files) {
+                futures.add(executor.submit(() -> recover(p)));
+            }
+            List<Path> result = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    Path p = get(futures.get(i));
+                    if (p != null) {
+                        result.add(p);
+                    }
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Could not recover " + files.get(i), e);
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the temporary files in the specified directory whose name matches the filename pattern. Each directory
+     * directly below the root is searched by its own task. Files left by an earlier recovery that did not complete are
+     * deleted.
+     *
+     * @param root            the directory written to
+     * @param filenamePattern the filename pattern of the writer
+     * @param executor        the executor searching directories
+     * @return the temporary files, sorted
+     * @throws IOException if the directory could not be searched
+     */
+    static List<Path> findTemporaryFiles(Path root, String filenamePattern, ExecutorService executor)
+            throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        List<Future<List<Path>>> directories = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+            for (Path p : ds) {
+                if (Files.isDirectory(p)) {
+                    directories.add(executor.submit(() -> {
+                        try (Stream<Path> s = Files.find(p, Integer.MAX_VALUE,
+                                (f, attrs) -> attrs.isRegularFile() && isCandidate(f))) {
+                            return s.collect(Collectors.toList());
+                        }
+                    }));
+                } else if (isCandidate(p)) {
+                    candidates.add(p);
+                }
+            }
+        }
+        for (Future<List<Path>> f : directories) {
+            candidates.addAll(get(f));
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat(filenamePattern);
+        sdf.setLenient(false);
+        List<Path> result = new ArrayList<>();
+        for (Path p : candidates) {
+            String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+            boolean compressing = name.endsWith(COMPRESS_SUFFIX);
+            boolean leftover = name.endsWith(RECOVER_SUFFIX);
+            int end = compressing ? name.length() - COMPRESS_SUFFIX.length()
+                    : leftover ? name.lastIndexOf(TMP_SUFFIX + '.') : name.length() - TMP_SUFFIX.length();
+            name = name.substring(0, end);
+            if (ArchiveReaderService.match(sdf, p, name) != null) {
+                if (compressing) {
+                    LOG.info("Deleting " + p + " left by a background compressor");
+                    Files.delete(p);
+                } else if (leftover) {
+                    LOG.info("Deleting " + p + " left by an earlier recovery");
+                    Files.delete(p);
+                } else {
+                    result.add(p);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Recovers a single temporary file.
+     *
+     * @param tmp the temporary file
+     * @return the final path of the file, or null if the file was deleted
+     * @throws IOException if the file could not be recovered
+     */
+    static Path recover(Path tmp) throws IOException {
+        String filename = tmp.getFileName().toString();
+        String targetName = filename.substring(0, filename.length() - TMP_SUFFIX.length());
+        CompressionCodec codec = CompressionCodec.forFilename(targetName);
+        if (codec == CompressionCodec.none()) {
+            if (truncate(tmp) == 0) {
+                LOG.info("Deleting " + tmp + " as it has no complete records");
+                Files.delete(tmp);
+                return null;
+            }
+        } else if (Files.exists(tmp.resolveSibling(codec.entryName(targetName)))) {
+            LOG.info("Deleting " + tmp + " left by a background compressor");
+            Files.delete(tmp);
+            return null;
+        } else {
+            Path plain = Files.createTempFile(tmp.getParent(), filename + ".", RECOVER_SUFFIX);
+            Path compressed = Files.createTempFile(tmp.getParent(), filename + ".", RECOVER_SUFFIX);
+            try {
+                try (InputStream in = Files.newInputStream(tmp); OutputStream os = Files.newOutputStream(plain)) {
+                    decompress(codec, in, os);
+                }
+                if (truncate(plain) == 0) {
+                    LOG.info("Deleting " + tmp + " as it has no complete records");
+                    Files.delete(tmp);
+                    return null;
+                }
+                try (OutputStream os = codec.wrap(Files.newOutputStream(compressed), codec.entryName(targetName))) {
+                    Files.copy(plain, os);
+                }
+                // If we crash after this, the temporary file is complete, and can be recovered again
+                Files.move(compressed, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(plain);
+                Files.deleteIfExists(compressed);
+            }
+        }
+        Path target = PathUtil.findUnique(tmp.resolveSibling(targetName));
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Recovered " + tmp + " to " + target);
+        return target;
+    }
+
+    /**
+     * Decompresses as much as possible of a compressed file that may be truncated.
+     *
+     * @param codec the codec the file was written with
+     * @param in    the compressed data
+     * @param os    the stream to write the decompressed data to
+     * @throws IOException if the data could not be read or written
+     */
+    static void decompress(CompressionCodec codec, InputStream in, OutputStream os) throws IOException {
+        try (InputStream dis = codec.decompress(in)) {
+            byte[] buf = new byte[64 * 1024];
+            for (int n = dis.read(buf); n >= 0; n = dis.read(buf)) {
+                os.write(buf, 0, n);
+            }
+        } catch (EOFException | ZipException e) {
+            // The end of the data that made it to disk
+        }
+    }
+
+    /**
+     * Truncates an uncompressed file to its last complete record.
+     *
+     * @param file the file to truncate
+     * @return the size of the file after truncation
+     * @throws IOException if the file could not be read or truncated
+     */
+    static long truncate(Path file) throws IOException {
+        int magic = 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(4);
+            if (ch.read(b, 0) == 4) {
+                magic = b.getInt(0);
+            }
+        }
+        if (magic == FramedRecordSink.FILE_MAGIC) {
+            return truncateFramed(file);
+        } else if (magic == ColumnarPositionSink.FILE_MAGIC) {
+            return truncatePositions(file);
+        }
+        return truncateLines(file);
+    }
+
+    /**
+     * Truncates a file written by a {@link FramedRecordSink} to its last block with valid checksums, and writes the
+     * index of the remaining blocks. Files that already have an index are left as they are.
+     *
+     * @param file the file to truncate
+     * @return the size of the file after truncation, 0 if there are no complete blocks
+     * @throws IOException if the file could not be read or truncated
+     */
+    static long truncateFramed(Path file) throws IOException {
+        List<Block> blocks;
+        try (FramedRecordReader r = FramedRecordReader.open(file)) {
+            if (r.hasIndex()) {
+                return Files.size(file);
+            }
+            blocks = new ArrayList<>(r.getBlocks());
+            // Blocks are written in order, so only the last blocks can be incomplete
+            while (!blocks.isEmpty()) {
+                Block last = blocks.get(blocks.size() - 1);
+                try {
+                    r.read(last, (payload, timestamp) -> {});
+                    break;
+                } catch (IOException e) {
+                    LOG.warn("Dropping corrupt block at offset " + last.getOffset() + " in " + file, e);
+                    blocks.remove(blocks.size() - 1);
+                }
+            }
+        }
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        FramedRecordSink.Buffer entries = new FramedRecordSink.Buffer();
+        for (Block b : blocks) {
+            entries.writeLong(b.getOffset());
+            entries.writeLong(b.getFirstTimestamp());
+            entries.writeInt(b.getRecordCount());
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        long end = last.getOffset() + last.getLength();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(end);
+            ch.position(end);
+            OutputStream os = Channels.newOutputStream(ch);
+            return end + FramedRecordSink.writeIndex(os, entries, blocks.size(), end);
+        }
+    }
+
+    /**
+     * Truncates a file written by a {@link ColumnarPositionSink} to its last block with a valid checksum.
+     *
+     * @param file the file to truncate
+     * @return the size of the file after truncation, 0 if there are no complete blocks
+     * @throws IOException if the file could not be read or truncated
+     */
+    static long truncatePositions(Path file) throws IOException {
+        long size = Files.size(file);
+        long end;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            end = ColumnarPositionReader.validLength(in, size);
+        }
+        if (end < size) {
+            LOG.warn("Dropping " + (size - end) + " bytes of incomplete or corrupt blocks at the end of " + file);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(end);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Truncates a text file after its last line feed.
+     *
+     * @param file the file to truncate
+     * @return the size of the file after truncation
+     * @throws IOException if the file could not be read or truncated
+     */
+    static long truncateLines(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+            long end = ch.size();
+            while (end > 0) {
+                long start = Math.max(0, end - b.capacity());
+                b.clear().limit((int) (end - start));
+                while (b.hasRemaining()) {
+                    if (ch.read(b, start + b.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                }
+                for (int i = b.limit() - 1; i >= 0; i--) {
+                    if (b.get(i) == '\n') {
+                        ch.truncate(start + i + 1);
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            ch.truncate(0);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns whether the specified file is a temporary file, or a file left by an earlier recovery.
+     *
+     * @param p the file
+     * @return whether the file is a temporary file, or a file left by an earlier recovery
+     */
+    private static boolean isCandidate(Path p) {
+        String name = p.getFileName().toString();
+        return name.endsWith(TMP_SUFFIX) || name.endsWith(COMPRESS_SUFFIX) || name.endsWith(RECOVER_SUFFIX)
+                && name.contains(TMP_SUFFIX + '.');
+    }
+
+    /**
+     * Waits for the result of the specified future.
+     *
+     * @param <T> the type of result
+     * @param f   the future
+     * @return the result
+     * @throws IOException if the task failed with an IOException, or the thread was interrupted
+     */
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while recovering files");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
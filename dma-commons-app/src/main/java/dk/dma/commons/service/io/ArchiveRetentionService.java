@@ -0,0 +1,454 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.RateLimiter;
+
+import dk.dma.commons.management.ManagedAttribute;
+
+/**
+ * Deletes the oldest files below an archive root, when they are older than a maximum age, or when the files take up
+ * more space than a quota. Only files matching the filename pattern of the writer are counted and deleted, ignoring any
+ * sequence number, copy number and compression suffix as described for {@link ArchiveReaderService}. So several
+ * writers, and their retention services, can share a root directory. Instead of walking the directory tree every time,
+ * like <tt>du</tt> or {@code IoUtil.recursiveSizeOf}, the service keeps an index of the size and last modified time of
+ * every file. The tree is only walked once when the service starts. After that, the index is updated as files are
+ * closed, as the service is a roll listener, see {@link MessageToFileService#addRollListener(Consumer)}. If files are
+ * compressed by a {@link BackgroundCompressor}, the service should also be a
+ * {@link BackgroundCompressor#addCompressionListener(Consumer) compression listener}, so the compressed file replaces
+ * the uncompressed file in the index.
+ * <p>
+ * Roll listeners only queue the file, the file is added to the index, and files are deleted, by the thread of the
+ * service every second. Files are deleted at most at the {@link #setMaxDeletedBytesPerSecond(double) configured rate}
+ * of bytes, so deleting a large backlog does not starve the writers of I/O. Temporary files, that are still being
+ * written, are neither counted nor deleted. Empty directories are left in place, as a writer may be about to create a
+ * file in them.
+ * <p>
+ * Files written below the root by other processes are only noticed when the service is restarted.
+ *
+ * @author Kasper Nielsen
+ */
+public class ArchiveRetentionService extends AbstractScheduledService implements Consumer<Path> {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ArchiveRetentionService.class);
+
+    /** The default maximum number of bytes deleted per second. */
+    static final double DEFAULT_MAX_DELETED_BYTES_PER_SECOND = 64 * 1024 * 1024;
+
+    /** The files of the index, ordered by last modified time. Guarded by this. */
+    private final TreeSet<Entry> byAge = new TreeSet<>(Comparator.<Entry> comparingLong(e -> e.lastModified)
+            .thenComparing(e -> e.path));
+
+    /** The number of bytes that has been deleted. */
+    private final AtomicLong deletedBytes = new AtomicLong();
+
+    /** The number of files that has been deleted. */
+    private final AtomicLong deletedFiles = new AtomicLong();
+
+    /** The number of files that could not be deleted. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** The filename pattern, not lenient. Only accessed by the thread of the service. */
+    private final SimpleDateFormat filenamePattern;
+
+    /** The files of the index. Guarded by this. */
+    private final HashMap<Path, Entry> files = new HashMap<>();
+
+    /** Limits the rate of deletions, one permit per byte deleted. */
+    private final RateLimiter limiter = RateLimiter.create(DEFAULT_MAX_DELETED_BYTES_PER_SECOND);
+
+    /** The maximum age of files in milliseconds. */
+    private final long maxAge;
+
+    /** Files that have been closed, but not yet added to the index. */
+    private final ConcurrentLinkedQueue<Path> pending = new ConcurrentLinkedQueue<>();
+
+    /** The maximum number of bytes used by the files. */
+    private final long quota;
+
+    /** The root directory. */
+    private final Path root;
+
+    /** The total size of the files in the index. Guarded by this. */
+    private long used;
+
+    /**
+     * Creates a new retention service.
+     *
+     * @param root            the root directory of the archive
+     * @param filenamePattern the filename pattern used when writing the files
+     * @param quota           the maximum number of bytes used by the files, or {@link Long#MAX_VALUE} for no quota
+     * @param maxAge          the maximum age of files, or {@link Long#MAX_VALUE} to keep files regardless of age
+     * @param unit            the unit of the maximum age
+     * @throws IllegalArgumentException if the quota or the maximum age is negative
+     */
+    public ArchiveRetentionService(Path root, String filenamePattern, long quota, long maxAge, TimeUnit unit) {
+        this.root = requireNonNull(root, "root is null").toAbsolutePath().normalize();
+        this.filenamePattern = new SimpleDateFormat(MessageToFileService.validateFilename(root, filenamePattern));
+        this.filenamePattern.setLenient(false);
+        requireNonNull(unit, "unit is null");
+        if (quota < 0) {
+            throw new IllegalArgumentException("quota must be non-negative, was " + quota);
+        } else if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge must be non-negative, was " + maxAge);
+        }
+        this.quota = quota;
+        this.maxAge = unit.toMillis(maxAge);
+    }
+
+    /**
+     * Queues a closed file for the index. Files outside of the root, or not matching the filename pattern, are ignored.
+     *
+     * @param file the file that has been closed or compressed
+     */
+    @Override
+    public void accept(Path file) {
+        requireNonNull(file, "file is null");
+        pending.add(file);
+    }
+
+    /**
+     * Adds a file to the index, replacing any existing entry for the file. If the file is a compressed file, the
+     * uncompressed file it replaced is removed from the index.
+     *
+     * @param file  the file
+     * @param attrs the attributes of the file
+     */
+    private synchronized void add(Path file, BasicFileAttributes attrs) {
+        remove(file);
+        String name = file.getFileName().toString();
+        String entryName = CompressionCodec.forFilename(name).entryName(name);
+        if (!entryName.equals(name)) {
+            remove(file.resolveSibling(entryName));
+        }
+        Entry e = new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+        files.put(file, e);
+        byAge.add(e);
+        used += e.size;
+    }
+
+    /**
+     * Deletes the files that are older than the maximum age, and the oldest files while the files use more than the
+     * quota. Stops early if the service is stopped.
+     *
+     * @param now the current time in milliseconds
+     */
+    void applyRetention(long now) {
+        for (Entry e : findExpired(now)) {
+            if (state() == State.STOPPING) {
+                return;
+            }
+            for (long remaining = Math.max(1, e.size); remaining > 0; remaining -= Integer.MAX_VALUE) {
+                limiter.acquire((int) Math.min(remaining, Integer.MAX_VALUE));
+            }
+            try {
+                if (Files.deleteIfExists(e.path)) {
+                    deletedFiles.incrementAndGet();
+                    deletedBytes.addAndGet(e.size);
+                    LOG.info("Deleted " + e.path + ", size = " + e.size);
+                }
+                synchronized (this) {
+                    if (files.get(e.path) == e) {
+                        remove(e.path);
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                failures.incrementAndGet();
+                LOG.error("Could not delete " + e.path, ex);
+            }
+        }
+    }
+
+    /**
+     * Adds the files that have been closed since the last invocation to the index.
+     */
+    void drainPending() {
+        for (Path p = pending.poll(); p != null; p = pending.poll()) {
+            Path file = p.toAbsolutePath().normalize();
+            if (!file.startsWith(root) || !isArchived(file)) {
+                continue;
+            }
+            try {
+                add(file, Files.readAttributes(file, BasicFileAttributes.class));
+            } catch (NoSuchFileException e) {
+                // Compressed or deleted before we got to it
+                synchronized (this) {
+                    remove(file);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not read the attributes of " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the files to delete, oldest first.
+     *
+     * @param now the current time in milliseconds
+     * @return the files to delete
+     */
+    private synchronized List<Entry> findExpired(long now) {
+        List<Entry> result = new ArrayList<>();
+        long cutoff = maxAge == Long.MAX_VALUE ? Long.MIN_VALUE : now - maxAge;
+        long remaining = used;
+        for (Entry e : byAge) {
+            if (e.lastModified >= cutoff && remaining <= quota) {
+                break;
+            }
+            result.add(e);
+            remaining -= e.size;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes that has been deleted.
+     *
+     * @return the number of bytes that has been deleted
+     */
+    @ManagedAttribute
+    public long getDeletedBytes() {
+        return deletedBytes.get();
+    }
+
+    /**
+     * Returns the maximum age of files in milliseconds.
+     *
+     * @return the maximum age of files in milliseconds, or {@link Long#MAX_VALUE} if files are kept regardless of age
+     */
+    @ManagedAttribute
+    public long getMaxAgeMillis() {
+        return maxAge;
+    }
+
+    /**
+     * Returns the maximum number of bytes that are deleted per second.
+     *
+     * @return the maximum number of bytes that are deleted per second
+     */
+    public double getMaxDeletedBytesPerSecond() {
+        return limiter.getRate();
+    }
+
+    /**
+     * Returns the number of files that has been deleted.
+     *
+     * @return the number of files that has been deleted
+     */
+    @ManagedAttribute
+    public long getNumberOfDeletedFiles() {
+        return deletedFiles.get();
+    }
+
+    /**
+     * Returns the number of files that could not be deleted.
+     *
+     * @return the number of files that could not be deleted
+     */
+    @ManagedAttribute
+    public long getNumberOfFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of files in the index.
+     *
+     * @return the number of files in the index
+     */
+    @ManagedAttribute
+    public synchronized int getNumberOfFiles() {
+        return files.size();
+    }
+
+    /**
+     * Returns the last modified time of the oldest file in the index.
+     *
+     * @return the last modified time of the oldest file in the index, or -1 if there are no files
+     */
+    @ManagedAttribute
+    public synchronized long getOldestFileTimestamp() {
+        return byAge.isEmpty() ? -1 : byAge.first().lastModified;
+    }
+
+    /**
+     * Returns the maximum number of bytes used by the files.
+     *
+     * @return the maximum number of bytes used by the files, or {@link Long#MAX_VALUE} if there is no quota
+     */
+    @ManagedAttribute
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Returns the root directory of the archive.
+     *
+     * @return the root directory of the archive
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the total size of the files in the index, in bytes.
+     *
+     * @return the total size of the files in the index
+     */
+    @ManagedAttribute
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * Walks the directory tree, and adds all files matching the filename pattern to the index.
+     *
+     * @throws IOException if the directory tree could not be walked
+     */
+    void index() throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isArchived(file)) {
+                    add(file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // For example a file compressed or deleted while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Removes a file from the index, if it is in the index.
+     *
+     * @param file the file to remove
+     */
+    private void remove(Path file) {
+        Entry e = files.remove(file);
+        if (e != null) {
+            byAge.remove(e);
+            used -= e.size;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void runOneIteration() {
+        try {
+            drainPending();
+            applyRetention(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            LOG.error("Retention failed for " + root, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets the maximum number of bytes that are deleted per second. The default is 64 MiB. The cost of deleting a file
+     * depends on the file system, but is roughly proportional to its size, as all its blocks must be freed. Deleting a
+     * file larger than a second's worth of bytes delays the following deletions accordingly.
+     *
+     * @param maxDeletedBytesPerSecond the maximum number of bytes that are deleted per second
+     * @throws IllegalArgumentException if the rate is not positive
+     */
+    @ManagedAttribute
+    public void setMaxDeletedBytesPerSecond(double maxDeletedBytesPerSecond) {
+        if (!(maxDeletedBytesPerSecond > 0)) {
+            throw new IllegalArgumentException("maxDeletedBytesPerSecond must be positive, was "
+                    + maxDeletedBytesPerSecond);
+        }
+        limiter.setRate(maxDeletedBytesPerSecond);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void startUp() throws IOException {
+        long start = System.nanoTime();
+        index();
+        LOG.info("Indexed " + getNumberOfFiles() + " files with a total size of " + getUsedBytes() + " bytes below "
+                + root + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Returns whether the specified file, below the root, is a closed file matching the filename pattern. Temporary
+     * files are still being written, or recovered, and are never counted.
+     *
+     * @param file the file
+     * @return whether the file is a closed file matching the filename pattern
+     */
+    private boolean isArchived(Path file) {
+        String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+        return !name.endsWith(ArchiveRecovery.TMP_SUFFIX) && !name.endsWith(ArchiveRecovery.COMPRESS_SUFFIX)
+                && !name.endsWith(ArchiveRecovery.RECOVER_SUFFIX)
+                && ArchiveReaderService.match(filenamePattern, file, name) != null;
+    }
+
+    /** A file in the index. */
+    static final class Entry {
+
+        /** The last modified time of the file in milliseconds. */
+        final long lastModified;
+
+        /** The file. */
+        final Path path;
+
+        /** The size of the file. */
+        final long size;
+
+        Entry(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.commons.util.io.PathUtil;
+
+/**
+ * Compresses closed files in the background. Typically used as a roll listener, see
+ * {@link MessageToFileService#compressInBackground(BackgroundCompressor)}, so files are written uncompressed and
+ * compression does not add latency to the write path.
+ * <p>
+ * Each file is compressed to a temporary file next to it, which is atomically renamed to the name of the file with the
+ * suffix of the codec added, for example <tt>ais.txt</tt> becomes <tt>ais.txt.gz</tt>. Only then is the uncompressed
+ * file deleted, so readers always see at least one complete copy of the data. If compression fails, the uncompressed
+ * file is kept. The temporary file has the suffix <tt>.compressing</tt>, so {@link ArchiveRecovery} can tell it apart
+ * from files left by writers.
+ * <p>
+ * At most the configured number of files are compressed at the same time, by low priority threads. Files that are
+ * waiting are reported by {@link #getBacklog()}. Stopping the compressor waits for the backlog to be compressed, files
+ * handed to the compressor after it has been stopped are left uncompressed.
+ *
+ * @author Kasper Nielsen
+ */
+public class BackgroundCompressor extends AbstractIdleService implements Consumer<Path> {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(BackgroundCompressor.class);
+
+    /** The number of files that are waiting to be, or are being, compressed. */
+    private final AtomicInteger backlog = new AtomicInteger();
+
+    /** The codec to compress files with. */
+    private final CompressionCodec codec;
+
+    /** The number of files that has been compressed. */
+    private final AtomicLong compressed = new AtomicLong();
+
+    /** Listeners notified with each compressed file. */
+    private final CopyOnWriteArrayList<Consumer<? super Path>> compressionListeners = new CopyOnWriteArrayList<>();
+
+    /** The executor compressing files. */
+    private final ThreadPoolExecutor executor;
+
+    /** The number of files that could not be compressed. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** The maximum number of files that are compressed at the same time. */
+    private final int maxConcurrency;
+
+    /**
+     * Creates a new background compressor.
+     *
+     * @param codec          the codec to compress files with
+     * @param maxConcurrency the maximum number of files that are compressed at the same time
+     * @throws IllegalArgumentException if the codec does not have a suffix, or if the maximum concurrency is less than 1
+     */
+    public BackgroundCompressor(CompressionCodec codec, int maxConcurrency) {
+        this.codec = requireNonNull(codec, "codec is null");
+        if (codec.getSuffix() == null) {
+            throw new IllegalArgumentException("codec must have a suffix");
+        } else if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1, was " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "BackgroundCompressor-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Adds a listener that is notified with each compressed file, after the uncompressed file has been deleted. For
+     * example an {@link ArchiveRetentionService}, so it can replace the uncompressed file with the compressed file.
+     * Listeners are invoked by the compressing threads, and should return quickly.
+     *
+     * @param listener the listener
+     */
+    public void addCompressionListener(Consumer<? super Path> listener) {
+        compressionListeners.add(requireNonNull(listener, "listener is null"));
+    }
+
+    /**
+     * Schedules the specified file for compression.
+     *
+     * @param file the file to compress
+     */
+    @Override
+    public void accept(Path file) {
+        requireNonNull(file, "file is null");
+        backlog.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    compress(file);
+                } catch (IOException | RuntimeException e) {
+                    failures.incrementAndGet();
+                    LOG.error("Could not compress " + file + ", keeping it uncompressed", e);
+                } finally {
+                    backlog.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            backlog.decrementAndGet();
+            LOG.warn("Compressor has been stopped, keeping " + file + " uncompressed");
+        }
+    }
+
+    /**
+     * Compresses the specified file, and deletes it once the compressed file is in place.
+     *
+     * @param file the file to compress
+     * @return the compressed file
+     * @throws IOException if the file could not be compressed
+     */
+    Path compress(Path file) throws IOException {
+        String filename = file.getFileName().toString();
+        Path target = PathUtil.findUnique(file.resolveSibling(filename + codec.getSuffix()));
+        Path tmp = PathUtil.findUnique(target.resolveSibling(target.getFileName() + ArchiveRecovery.COMPRESS_SUFFIX));
+        try {
+            try (OutputStream os = codec.wrap(Files.newOutputStream(tmp), filename)) {
+                Files.copy(file, os);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.delete(file);
+        compressed.incrementAndGet();
+        LOG.info("Compressed " + file + " to " + target);
+        for (Consumer<? super Path> listener : compressionListeners) {
+            try {
+                listener.accept(target);
+            } catch (RuntimeException e) {
+                LOG.error("Compression listener failed for " + target, e);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Returns the number of files that are waiting to be, or are being, compressed.
+     *
+     * @return the number of files that are waiting to be, or are being, compressed
+     */
+    @ManagedAttribute
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Returns the maximum number of files that are compressed at the same time.
+     *
+     * @return the maximum number of files that are compressed at the same time
+     */
+    @ManagedAttribute
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Returns the number of files that has been compressed.
+     *
+     * @return the number of files that has been compressed
+     */
+    @ManagedAttribute
+    public long getNumberOfCompressedFiles() {
+        return compressed.get();
+    }
+
+    /**
+     * Returns the number of files that could not be compressed, and was left uncompressed.
+     *
+     * @return the number of files that could not be compressed
+     */
+    @ManagedAttribute
+    public long getNumberOfFailures() {
+        return failures.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void shutDown() throws Exception {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.info("Waiting for " + backlog.get() + " files to be compressed");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void startUp() {}
+}
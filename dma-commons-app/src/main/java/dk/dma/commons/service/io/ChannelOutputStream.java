@@ -0,0 +1,124 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An output stream that writes to a file channel through a direct byte buffer. Bytes are copied once into the buffer,
+ * and from there written by the channel without any further copying. Writes larger than the buffer are written
+ * together with the buffered bytes using a single gathering write.
+ * <p>
+ * The counters are only updated when bytes are actually written to the channel, not for every write to this stream.
+ * This class is not thread safe.
+ *
+ * @author Kasper Nielsen
+ */
+class ChannelOutputStream extends OutputStream {
+
+    /** The buffer, in write mode. */
+    private final ByteBuffer buffer;
+
+    /** The channel to write to. */
+    private final FileChannel channel;
+
+    /** The counters to add the number of bytes written to. */
+    private final AtomicLong[] counters;
+
+    /** Used for gathering writes. */
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    /**
+     * Creates a new channel output stream.
+     *
+     * @param channel  the channel to write to
+     * @param buffer   the buffer to use, is cleared before use and can be reused once this stream has been closed
+     * @param counters counters to add the number of bytes written to
+     */
+    ChannelOutputStream(FileChannel channel, ByteBuffer buffer, AtomicLong... counters) {
+        this.channel = requireNonNull(channel);
+        this.buffer = requireNonNull(buffer);
+        this.counters = counters;
+        buffer.clear();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            long n = 0;
+            while (buffer.hasRemaining()) {
+                n += channel.write(buffer);
+            }
+            buffer.clear();
+            count(n);
+        }
+    }
+
+    private void count(long n) {
+        for (AtomicLong c : counters) {
+            c.addAndGet(n);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= buffer.remaining()) {
+            buffer.put(b, off, len);
+        } else if (len < buffer.capacity()) {
+            flush();
+            buffer.put(b, off, len);
+        } else {
+            // Too big to buffer, write the buffered bytes and the array in one go
+            buffer.flip();
+            gather[0] = buffer;
+            gather[1] = ByteBuffer.wrap(b, off, len);
+            long n = 0;
+            while (gather[1].hasRemaining()) {
+                n += channel.write(gather);
+            }
+            gather[1] = null;
+            buffer.clear();
+            count(n);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) b);
+    }
+}
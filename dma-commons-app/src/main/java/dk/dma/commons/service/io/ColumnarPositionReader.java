@@ -0,0 +1,407 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static dk.dma.commons.service.io.ColumnarPositionSink.BLOCK_HEADER_SIZE;
+import static dk.dma.commons.service.io.ColumnarPositionSink.BLOCK_MAGIC;
+import static dk.dma.commons.service.io.ColumnarPositionSink.FILE_MAGIC;
+import static dk.dma.commons.service.io.ColumnarPositionSink.HEADER_SIZE;
+import static dk.dma.commons.service.io.ColumnarPositionSink.SCALE;
+import static dk.dma.commons.service.io.ColumnarPositionSink.VERSION;
+import static java.util.Objects.requireNonNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads files written by a {@link ColumnarPositionSink}. Each block is checked against its checksum, and decoded one
+ * column at a time into primitive arrays, before the positions are handed to a {@link PositionConsumer}. No objects are
+ * created per position, unless the consumer creates them.
+ * <p>
+ * When reading a time range, blocks whose minimum and maximum timestamp are outside of the range are skipped without
+ * being decoded. An {@link IOException} is thrown if a block is corrupt, or if the file ends in the middle of a block.
+ *
+ * @author Kasper Nielsen
+ */
+public final class ColumnarPositionReader {
+
+    /** Used for calculating checksums. */
+    private final CRC32 crc = new CRC32();
+
+    /** The decoded latitudes of the current block, in fixed point. */
+    private int[] latitudes = new int[0];
+
+    /** The decoded longitudes of the current block, in fixed point. */
+    private int[] longitudes = new int[0];
+
+    /** The decoded MMSIs of the current block. */
+    private int[] mmsis = new int[0];
+
+    /** The dictionary of the current block, the MMSI of each ship. */
+    private int[] dictionary = new int[0];
+
+    /** The last coordinate of each ship, while decoding a coordinate column. */
+    private int[] last = new int[0];
+
+    /** The index of the ship of each position of the current block. */
+    private int[] ships = new int[0];
+
+    /** The decoded timestamps of the current block. */
+    private long[] timestamps = new long[0];
+
+    /** Creates a new reader, only used by the static methods. */
+    private ColumnarPositionReader() {}
+
+    /**
+     * Decodes a block, and hands the positions within the specified range to the consumer.
+     *
+     * @param b        the payload of the block, followed by its checksum
+     * @param count    the number of positions in the block
+     * @param min      the minimum timestamp of the block
+     * @param from     the start of the range (inclusive)
+     * @param to       the end of the range (exclusive)
+     * @param consumer the consumer of positions
+     * @throws IOException if the block is corrupt
+     */
+    private void decode(ByteBuffer b, int count, long min, long from, long to, PositionConsumer consumer)
+            throws IOException {
+        int end = b.limit() - 4;
+        if (count > (end - b.position()) / 4) { // every position takes at least 4 bytes
+            throw new IOException("Corrupt block, too many positions for its length, count = " + count);
+        }
+        ByteBuffer checked = b.duplicate();
+        checked.limit(end);
+        crc.reset();
+        crc.update(checked);
+        if (b.getInt(end) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch for block");
+        }
+        if (mmsis.length < count) {
+            mmsis = new int[count];
+            timestamps = new long[count];
+            latitudes = new int[count];
+            longitudes = new int[count];
+            dictionary = new int[count];
+            last = new int[count];
+            ships = new int[count];
+        }
+        b.limit(end);
+        try {
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                long ship = getVarlong(b);
+                if (ship == size) {
+                    dictionary[size++] = (int) getVarlong(b);
+                } else if (ship > size) {
+                    throw new IOException("Corrupt block, unknown ship " + ship);
+                }
+                ships[i] = (int) ship;
+                mmsis[i] = dictionary[(int) ship];
+            }
+            long prev = min;
+            for (int i = 0; i < count; i++) {
+                prev += unzigzag(getVarlong(b));
+                timestamps[i] = prev;
+            }
+            getDeltas(b, latitudes, size, count);
+            getDeltas(b, longitudes, size, count);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt block, columns are longer than the block", e);
+        }
+        if (b.hasRemaining()) {
+            throw new IOException("Corrupt block, columns are shorter than the block");
+        }
+        for (int i = 0; i < count; i++) {
+            long t = timestamps[i];
+            if (t >= from && t < to) {
+                consumer.accept(mmsis[i], t, latitudes[i] / SCALE, longitudes[i] / SCALE);
+            }
+        }
+    }
+
+    /**
+     * Reads all positions from the specified buffer, holding a whole file.
+     *
+     * @param buffer   the buffer to read from
+     * @param consumer the consumer of positions
+     * @throws IOException if the file is not a position file, or is corrupt
+     */
+    public static void read(ByteBuffer buffer, PositionConsumer consumer) throws IOException {
+        read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Reads the positions with a timestamp within the specified range from the specified buffer, holding a whole file.
+     *
+     * @param buffer   the buffer to read from
+     * @param from     the start of the range (inclusive)
+     * @param to       the end of the range (exclusive)
+     * @param consumer the consumer of positions
+     * @throws IOException if the file is not a position file, or is corrupt
+     */
+    public static void read(ByteBuffer buffer, long from, long to, PositionConsumer consumer) throws IOException {
+        requireNonNull(consumer, "consumer is null");
+        ByteBuffer b = buffer.slice();
+        if (b.remaining() < HEADER_SIZE || b.getInt() != FILE_MAGIC) {
+            throw new IOException("Not a position file");
+        }
+        checkVersion(b.getInt());
+        ColumnarPositionReader r = new ColumnarPositionReader();
+        while (b.hasRemaining()) {
+            int start = b.position();
+            if (b.remaining() < BLOCK_HEADER_SIZE) {
+                throw new EOFException("Truncated block at offset " + start);
+            }
+            int magic = b.getInt();
+            int count = b.getInt();
+            int length = b.getInt();
+            long min = b.getLong();
+            long max = b.getLong();
+            if (magic != BLOCK_MAGIC || count < 0 || length < 0) {
+                throw new IOException("Corrupt block at offset " + start);
+            } else if (b.remaining() < length + 4) {
+                throw new EOFException("Truncated block at offset " + start);
+            }
+            int end = b.position() + length + 4;
+            if (max >= from && min < to) {
+                ByteBuffer payload = b.duplicate();
+                payload.limit(end);
+                try {
+                    r.decode(payload, count, min, from, to, consumer);
+                } catch (IOException e) {
+                    throw new IOException(e.getMessage() + " at offset " + start, e);
+                }
+            }
+            b.position(end);
+        }
+    }
+
+    /**
+     * Reads all positions from the specified stream.
+     *
+     * @param stream   the stream to read from
+     * @param consumer the consumer of positions
+     * @throws IOException if the stream could not be read, is not a position file, or is corrupt
+     */
+    public static void read(InputStream stream, PositionConsumer consumer) throws IOException {
+        read(stream, Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Reads the positions with a timestamp within the specified range from the specified stream. Blocks outside of the
+     * range are still read from the stream, but are not decoded.
+     *
+     * @param stream   the stream to read from
+     * @param from     the start of the range (inclusive)
+     * @param to       the end of the range (exclusive)
+     * @param consumer the consumer of positions
+     * @throws IOException if the stream could not be read, is not a position file, or is corrupt
+     */
+    public static void read(InputStream stream, long from, long to, PositionConsumer consumer) throws IOException {
+        requireNonNull(consumer, "consumer is null");
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a position file");
+        }
+        checkVersion(in.readInt());
+        ColumnarPositionReader r = new ColumnarPositionReader();
+        byte[] buf = new byte[0];
+        for (long offset = HEADER_SIZE;;) {
+            int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            int count = in.readInt();
+            int length = in.readInt();
+            long min = in.readLong();
+            long max = in.readLong();
+            if (magic != BLOCK_MAGIC || count < 0 || length < 0) {
+                throw new IOException("Corrupt block at offset " + offset);
+            }
+            if (buf.length < length + 4) {
+                buf = new byte[length + 4];
+            }
+            in.readFully(buf, 0, length + 4);
+            if (max >= from && min < to) {
+                try {
+                    r.decode(ByteBuffer.wrap(buf, 0, length + 4), count, min, from, to, consumer);
+                } catch (IOException e) {
+                    throw new IOException(e.getMessage() + " at offset " + offset, e);
+                }
+            }
+            offset += BLOCK_HEADER_SIZE + length + 4;
+        }
+    }
+
+    /**
+     * Returns a source that reads the positions of a file, converting them to messages. For example, for use with an
+     * {@link ArchiveReaderService}.
+     *
+     * @param <T>     the type of messages
+     * @param factory creates a message from a position
+     * @return a source that reads the positions of a file
+     */
+    public static <T> InputStreamSource<T> source(PositionFactory<? extends T> factory) {
+        requireNonNull(factory, "factory is null");
+        return new InputStreamSource<T>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public void read(ByteBuffer buffer, Consumer<? super T> consumer) throws IOException {
+                ColumnarPositionReader.read(buffer, (m, t, lat, lon) -> consumer.accept(factory.create(m, t, lat,
+                        lon)));
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void read(InputStream stream, Consumer<? super T> consumer) throws IOException {
+                ColumnarPositionReader.read(stream, (m, t, lat, lon) -> consumer.accept(factory.create(m, t, lat,
+                        lon)));
+            }
+        };
+    }
+
+    /**
+     * Returns the size of the valid part of a file that may be truncated, for example because the writer crashed. That
+     * is, the header and the blocks up to the first incomplete or corrupt block.
+     *
+     * @param stream the stream to read the file from
+     * @param size   the size of the file
+     * @return the size of the valid part of the file, or 0 if the file does not have any complete blocks
+     * @throws IOException if the file could not be read, or is not a position file
+     */
+    static long validLength(InputStream stream, long size) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (size < HEADER_SIZE || in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a position file");
+        }
+        checkVersion(in.readInt());
+        ColumnarPositionReader r = new ColumnarPositionReader();
+        PositionConsumer ignore = (m, t, lat, lon) -> {};
+        byte[] buf = new byte[0];
+        long valid = HEADER_SIZE;
+        while (size - valid >= BLOCK_HEADER_SIZE) {
+            int magic = in.readInt();
+            int count = in.readInt();
+            int length = in.readInt();
+            long min = in.readLong();
+            in.readLong();
+            if (magic != BLOCK_MAGIC || count < 0 || length < 0
+                    || size - valid - BLOCK_HEADER_SIZE < (long) length + 4) {
+                break;
+            }
+            if (buf.length < length + 4) {
+                buf = new byte[length + 4];
+            }
+            in.readFully(buf, 0, length + 4);
+            try {
+                r.decode(ByteBuffer.wrap(buf, 0, length + 4), count, min, Long.MAX_VALUE, Long.MAX_VALUE, ignore);
+            } catch (IOException e) {
+                break;
+            }
+            valid += BLOCK_HEADER_SIZE + length + 4;
+        }
+        return valid == HEADER_SIZE ? 0 : valid;
+    }
+
+    private static void checkVersion(int version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported version of position file, version = " + version);
+        }
+    }
+
+    /**
+     * Reads a coordinate column, written as the difference to the previous coordinate of the same ship.
+     *
+     * @param b      the buffer to read from
+     * @param values the array to read the coordinates into
+     * @param size   the number of ships in the block
+     * @param count  the number of positions in the block
+     */
+    private void getDeltas(ByteBuffer b, int[] values, int size, int count) {
+        int[] last = this.last;
+        Arrays.fill(last, 0, size, 0);
+        for (int i = 0; i < count; i++) {
+            int ship = ships[i];
+            values[i] = last[ship] += (int) unzigzag(getVarlong(b));
+        }
+    }
+
+    /**
+     * Reads an unsigned varint, written by {@link ColumnarPositionSink#putVarint(byte[], int, int)} or
+     * {@link ColumnarPositionSink#putVarlong(byte[], int, long)}.
+     *
+     * @param b the buffer to read from
+     * @return the value
+     */
+    static long getVarlong(ByteBuffer b) {
+        long result = 0;
+        for (int shift = 0;; shift += 7) {
+            byte v = b.get();
+            result |= (long) (v & 0x7F) << shift;
+            if (v >= 0) {
+                return result;
+            }
+        }
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Consumes the positions read from a file. */
+    @FunctionalInterface
+    public interface PositionConsumer {
+
+        /**
+         * Consumes a position.
+         *
+         * @param mmsi      the MMSI
+         * @param timestamp the timestamp
+         * @param latitude  the latitude, in degrees
+         * @param longitude the longitude, in degrees
+         */
+        void accept(int mmsi, long timestamp, double latitude, double longitude);
+    }
+
+    /**
+     * Creates messages from the positions read from a file.
+     *
+     * @param <T> the type of messages
+     */
+    @FunctionalInterface
+    public interface PositionFactory<T> {
+
+        /**
+         * Creates a message from a position.
+         *
+         * @param mmsi      the MMSI
+         * @param timestamp the timestamp
+         * @param latitude  the latitude, in degrees
+         * @param longitude the longitude, in degrees
+         * @return the message
+         */
+        T create(int mmsi, long timestamp, double latitude, double longitude);
+    }
+}
@@ -0,0 +1,422 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * A sink that writes positions, such as position reports from AIS, in a compact columnar binary format. Each message is
+ * reduced to a MMSI, a timestamp, a latitude and a longitude, extracted by the functions given to the constructor. The
+ * positions are grouped into blocks, and each block stores the ships, the timestamps, the latitudes and the longitudes
+ * as separate columns:
+ * <ul>
+ * <li>Each block has a dictionary of the MMSIs in the block, and the ship column holds the index of each position's
+ * MMSI in the dictionary as a varint. The first time a MMSI is seen in a block, its index is the size of the dictionary,
+ * and the MMSI follows the index.</li>
+ * <li>Timestamps are written as zigzag varints of the difference to the previous timestamp, which is usually a few
+ * hundred milliseconds or less.</li>
+ * <li>Latitudes and longitudes are rounded to 1/10,000,000 degree, and written as zigzag varints of the difference to
+ * the previous position of the same ship in the block, which is usually small.</li>
+ * </ul>
+ * Use a {@link ColumnarPositionReader} to read the files. All integers that are not varints are big endian. A file has
+ * the following layout:
+ *
+ * <pre>
+ * header  : int FILE_MAGIC, int VERSION
+ * block*  : int BLOCK_MAGIC, int count, int length, long minTimestamp, long maxTimestamp, byte[length] columns,
+ *           int crc32(columns)
+ * columns : (varint index [varint mmsi])[count], zigzag varint timestampDelta[count],
+ *           zigzag varint latitudeDelta[count], zigzag varint longitudeDelta[count]
+ * </pre>
+ *
+ * The first timestamp delta of a block is relative to the minimum timestamp of the block, and the first latitude and
+ * longitude deltas of each ship in a block are relative to 0. A block is written when it holds the configured number
+ * of positions, when the stream is flushed, see {@link #flush(OutputStream)}, or when the file is closed. If the
+ * process crashes, the complete blocks can still be read, see {@link ArchiveRecovery}.
+ * <p>
+ * Messages without a valid position, for example with the latitude 91 or the longitude 181 AIS uses for positions
+ * that are not available, are skipped and counted, see {@link #getNumberOfSkippedPositions()}.
+ * <p>
+ * The sink keeps the positions of the current block, and can only be used for one file at a time.
+ * {@link #header(OutputStream)} starts a new file.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public final class ColumnarPositionSink<T> extends OutputStreamSink<T> {
+
+    /** The default number of positions in a block. */
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /** The magic number starting a file ("DMAP"). */
+    static final int FILE_MAGIC = 0x444D4150;
+
+    /** The magic number starting a block ("POS1"). */
+    static final int BLOCK_MAGIC = 0x504F5331;
+
+    /** The version of the format. */
+    static final int VERSION = 1;
+
+    /** The size of the file header. */
+    static final int HEADER_SIZE = 8;
+
+    /** The size of the header of each block. */
+    static final int BLOCK_HEADER_SIZE = 28;
+
+    /** The number of fixed point units per degree. */
+    static final double SCALE = 10_000_000;
+
+    /** The encoded block, reused for every block. */
+    private byte[] buffer;
+
+    /** The dictionary of the current block, an open addressing hash table of MMSIs. */
+    private final int[] dictionaryKeys;
+
+    /** The index + 1 of each MMSI in the dictionary, or 0 for an empty slot. */
+    private final int[] dictionaryValues;
+
+    /** The last latitude of each ship in the dictionary, while writing a block. */
+    private final int[] lastLatitudes;
+
+    /** The last longitude of each ship in the dictionary, while writing a block. */
+    private final int[] lastLongitudes;
+
+    /** The number of positions in the current block. */
+    private int count;
+
+    /** The number of messages that was skipped because they did not have a valid position. */
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** Used for calculating checksums. */
+    private final CRC32 crc = new CRC32();
+
+    /** Extracts the latitude of each message. */
+    private final ToDoubleFunction<? super T> latitude;
+
+    /** The latitudes of the current block, in fixed point. */
+    private final int[] latitudes;
+
+    /** Extracts the longitude of each message. */
+    private final ToDoubleFunction<? super T> longitude;
+
+    /** The longitudes of the current block, in fixed point. */
+    private final int[] longitudes;
+
+    /** Extracts the MMSI of each message. */
+    private final ToIntFunction<? super T> mmsi;
+
+    /** The MMSIs of the current block, replaced by their index in the dictionary when the block is written. */
+    private final int[] mmsis;
+
+    /** Extracts the timestamp of each message. */
+    private final ToLongFunction<? super T> timestamp;
+
+    /** The timestamps of the current block. */
+    private final long[] timestamps;
+
+    /**
+     * Creates a new sink with blocks of 4096 positions.
+     *
+     * @param mmsi      extracts the MMSI of each message
+     * @param timestamp extracts the timestamp of each message
+     * @param latitude  extracts the latitude of each message, in degrees
+     * @param longitude extracts the longitude of each message, in degrees
+     */
+    public ColumnarPositionSink(ToIntFunction<? super T> mmsi, ToLongFunction<? super T> timestamp,
+            ToDoubleFunction<? super T> latitude, ToDoubleFunction<? super T> longitude) {
+        this(mmsi, timestamp, latitude, longitude, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new sink.
+     *
+     * @param mmsi      extracts the MMSI of each message
+     * @param timestamp extracts the timestamp of each message
+     * @param latitude  extracts the latitude of each message, in degrees
+     * @param longitude extracts the longitude of each message, in degrees
+     * @param blockSize the number of positions in each block
+     * @throws IllegalArgumentException if the block size is less than 1
+     */
+    public ColumnarPositionSink(ToIntFunction<? super T> mmsi, ToLongFunction<? super T> timestamp,
+            ToDoubleFunction<? super T> latitude, ToDoubleFunction<? super T> longitude, int blockSize) {
+        this.mmsi = requireNonNull(mmsi, "mmsi is null");
+        this.timestamp = requireNonNull(timestamp, "timestamp is null");
+        this.latitude = requireNonNull(latitude, "latitude is null");
+        this.longitude = requireNonNull(longitude, "longitude is null");
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1, was " + blockSize);
+        }
+        mmsis = new int[blockSize];
+        timestamps = new long[blockSize];
+        latitudes = new int[blockSize];
+        longitudes = new int[blockSize];
+        dictionaryKeys = new int[Integer.highestOneBit(blockSize) * 4];
+        dictionaryValues = new int[dictionaryKeys.length];
+        lastLatitudes = new int[blockSize];
+        lastLongitudes = new int[blockSize];
+    }
+
+    /**
+     * Writes any buffered positions.
+     *
+     * @param stream the stream to write to
+     * @param count  the number of messages written to the file
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void footer(OutputStream stream, long count) throws IOException {
+        if (this.count > 0) {
+            writeBlock(stream);
+        }
+    }
+
+    /**
+     * Writes the buffered positions, if any, as a block that is smaller than the block size.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void flush(OutputStream stream) throws IOException {
+        if (count > 0) {
+            writeBlock(stream);
+        }
+    }
+
+    /**
+     * Returns the number of messages that was skipped because they did not have a valid position.
+     *
+     * @return the number of messages that was skipped because they did not have a valid position
+     */
+    public long getNumberOfSkippedPositions() {
+        return skipped.get();
+    }
+
+    /**
+     * Starts a new file, writing the file header.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void header(OutputStream stream) throws IOException {
+        count = 0;
+        byte[] b = new byte[HEADER_SIZE];
+        putInt(b, 0, FILE_MAGIC);
+        putInt(b, 4, VERSION);
+        stream.write(b);
+    }
+
+    /**
+     * Buffers the position of the specified message, and writes the current block if it is full. The message is skipped
+     * if the latitude or longitude is not a number, or if the latitude is outside of +/-90 degrees or the longitude is
+     * outside of +/-180 degrees.
+     *
+     * @param stream  the stream to write to
+     * @param message the message
+     * @param count   the number of messages written to the file before this message
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void process(OutputStream stream, T message, long count) throws IOException {
+        double latitude = this.latitude.applyAsDouble(message);
+        double longitude = this.longitude.applyAsDouble(message);
+        if (!isValid(latitude, 90) || !isValid(longitude, 180)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        int lat = toFixed(latitude);
+        int lon = toFixed(longitude);
+        int i = this.count;
+        mmsis[i] = mmsi.applyAsInt(message);
+        timestamps[i] = timestamp.applyAsLong(message);
+        latitudes[i] = lat;
+        longitudes[i] = lon;
+        this.count = i + 1;
+        if (this.count == mmsis.length) {
+            writeBlock(stream);
+        }
+    }
+
+    /**
+     * Encodes and writes the current block.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeBlock(OutputStream stream) throws IOException {
+        int n = count;
+        // worst case: 10 bytes per ship, 10 per timestamp and 5 per coordinate
+        int max = BLOCK_HEADER_SIZE + n * 30 + 4;
+        if (buffer == null || buffer.length < max) {
+            buffer = new byte[max];
+        }
+        byte[] b = buffer;
+        long min = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, timestamps[i]);
+            maxTimestamp = Math.max(maxTimestamp, timestamps[i]);
+        }
+        // The ship column, mmsis is replaced by the index of each MMSI in the dictionary
+        Arrays.fill(dictionaryValues, 0);
+        int mask = dictionaryKeys.length - 1;
+        int size = 0;
+        int pos = BLOCK_HEADER_SIZE;
+        for (int i = 0; i < n; i++) {
+            int mmsi = mmsis[i];
+            int h = mmsi * 0x9E3779B9;
+            int slot = (h ^ h >>> 16) & mask;
+            while (dictionaryValues[slot] != 0 && dictionaryKeys[slot] != mmsi) {
+                slot = slot + 1 & mask;
+            }
+            if (dictionaryValues[slot] == 0) {
+                dictionaryKeys[slot] = mmsi;
+                dictionaryValues[slot] = ++size;
+                pos = putVarint(b, pos, size - 1);
+                pos = putVarint(b, pos, mmsi);
+            } else {
+                pos = putVarint(b, pos, dictionaryValues[slot] - 1);
+            }
+            mmsis[i] = dictionaryValues[slot] - 1;
+        }
+        long prev = min;
+        for (int i = 0; i < n; i++) {
+            pos = putVarlong(b, pos, zigzag(timestamps[i] - prev));
+            prev = timestamps[i];
+        }
+        pos = putDeltas(b, pos, mmsis, latitudes, lastLatitudes, size, n);
+        pos = putDeltas(b, pos, mmsis, longitudes, lastLongitudes, size, n);
+        int length = pos - BLOCK_HEADER_SIZE;
+        putInt(b, 0, BLOCK_MAGIC);
+        putInt(b, 4, n);
+        putInt(b, 8, length);
+        putLong(b, 12, min);
+        putLong(b, 20, maxTimestamp);
+        crc.reset();
+        crc.update(b, BLOCK_HEADER_SIZE, length);
+        putInt(b, pos, (int) crc.getValue());
+        count = 0;
+        stream.write(b, 0, pos + 4);
+    }
+
+    /**
+     * Writes a coordinate column, as the difference to the previous coordinate of the same ship.
+     *
+     * @param b      the array to write to
+     * @param pos    the position to write at
+     * @param ships  the index of the ship of each position
+     * @param values the coordinates
+     * @param last   the last coordinate of each ship
+     * @param ns     the number of ships
+     * @param n      the number of positions
+     * @return the position after the column
+     */
+    private static int putDeltas(byte[] b, int pos, int[] ships, int[] values, int[] last, int ns, int n) {
+        Arrays.fill(last, 0, ns, 0);
+        for (int i = 0; i < n; i++) {
+            int ship = ships[i];
+            pos = putVarint(b, pos, zigzag(values[i] - last[ship]));
+            last[ship] = values[i];
+        }
+        return pos;
+    }
+
+    static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    static void putLong(byte[] b, int pos, long v) {
+        putInt(b, pos, (int) (v >>> 32));
+        putInt(b, pos + 4, (int) v);
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte with the high bit set on all but the last byte.
+     *
+     * @param b   the array to write to
+     * @param pos the position to write at
+     * @param v   the value, treated as unsigned
+     * @return the position after the varint
+     */
+    static int putVarint(byte[] b, int pos, int v) {
+        while ((v & ~0x7F) != 0) {
+            b[pos++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        b[pos++] = (byte) v;
+        return pos;
+    }
+
+    /**
+     * Writes an unsigned varint of a long, 7 bits per byte with the high bit set on all but the last byte.
+     *
+     * @param b   the array to write to
+     * @param pos the position to write at
+     * @param v   the value, treated as unsigned
+     * @return the position after the varint
+     */
+    static int putVarlong(byte[] b, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b[pos++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        b[pos++] = (byte) v;
+        return pos;
+    }
+
+    /**
+     * Returns whether the specified degrees can be stored.
+     *
+     * @param degrees the degrees
+     * @param limit   the maximum absolute value of the degrees, 90 for latitudes and 180 for longitudes
+     * @return whether the degrees is a number within +/-limit degrees
+     */
+    static boolean isValid(double degrees, double limit) {
+        return degrees >= -limit && degrees <= limit;
+    }
+
+    /**
+     * Converts valid degrees to fixed point.
+     *
+     * @param degrees the degrees
+     * @return the degrees in fixed point
+     */
+    static int toFixed(double degrees) {
+        return (int) Math.round(degrees * SCALE);
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+}
@@ -0,0 +1,226 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Decides how files written by a {@link RollingOutputStream} are compressed. A codec wraps the stream writing to the
+ * file, and is closed by the rolling output stream when the file is rolled.
+ * <p>
+ * Unless a codec has been set explicitly, the codec is chosen from the suffix of the filename using
+ * {@link #forFilename(String)}.
+ *
+ * @author Kasper Nielsen
+ */
+public abstract class CompressionCodec {
+
+    /** The default size of blocks compressed in parallel, the same as the default of pigz. */
+    static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /** Writes files uncompressed. */
+    private static final CompressionCodec NONE = new CompressionCodec(null) {
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream out, String entryName) {
+            return out;
+        }
+    };
+
+    /** Writes a single entry to a zip file. */
+    private static final CompressionCodec ZIP = new CompressionCodec(".zip") {
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            ZipInputStream zis = new ZipInputStream(in);
+            zis.getNextEntry(); // positions the stream at the first entry, or at the end if there are none
+            return zis;
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream out, String entryName) throws IOException {
+            ZipOutputStream zos = new ZipOutputStream(out);
+            zos.putNextEntry(new ZipEntry(entryName));
+            // big buffer size is important as we do not want to zip to often
+            return new BufferedOutputStream(zos, 1024 * 1024);
+        }
+    };
+
+    /** Writes gzip files using a single thread. */
+    private static final CompressionCodec GZIP = new CompressionCodec(".gz") {
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, 64 * 1024);
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream out, String entryName) throws IOException {
+            return new BufferedOutputStream(new GZIPOutputStream(out, 64 * 1024), 1024 * 1024);
+        }
+    };
+
+    /** The filename suffix of files written with this codec, or null if the codec does not use a suffix. */
+    private final String suffix;
+
+    /**
+     * Creates a new codec.
+     *
+     * @param suffix the filename suffix of files written with this codec, or null if the codec does not use a suffix
+     */
+    protected CompressionCodec(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Wraps the specified stream in a stream that decompresses data written by this codec. For archives, the returned
+     * stream reads the first entry. Closing the returned stream closes the specified stream. Codecs that only compress
+     * do not have to override this method.
+     *
+     * @param in the stream to read compressed data from
+     * @return the decompressing stream
+     * @throws IOException if the compressed data could not be read
+     * @throws UnsupportedOperationException if this codec cannot decompress
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot decompress");
+    }
+
+    /**
+     * Returns the filename suffix of files written with this codec, for example <tt>.gz</tt>.
+     *
+     * @return the filename suffix of files written with this codec, or null if the codec does not use a suffix
+     */
+    public final String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns the name of the single entry in an archive with the specified filename. This is the filename without the
+     * suffix of this codec.
+     *
+     * @param filename the filename of the archive
+     * @return the name of the entry
+     */
+    final String entryName(String filename) {
+        return suffix != null && filename.endsWith(suffix) ? filename.substring(0, filename.length()
+                - suffix.length()) : filename;
+    }
+
+    /**
+     * Wraps the specified stream in a stream that compresses everything written to it. Closing the returned stream
+     * must finish the compressed data and close the specified stream.
+     *
+     * @param out       the stream to write compressed data to
+     * @param entryName the name of the compressed data, for codecs that store it
+     * @return the compressing stream
+     * @throws IOException if the compressed data could not be started
+     */
+    public abstract OutputStream wrap(OutputStream out, String entryName) throws IOException;
+
+    /**
+     * Returns a codec matching the suffix of the specified filename. <tt>.zip</tt> files are written with
+     * {@link #zip()}, <tt>.gz</tt> files with {@link #gzip()}, and all other files are written uncompressed.
+     *
+     * @param filename the filename
+     * @return a codec matching the suffix of the filename
+     */
+    public static CompressionCodec forFilename(String filename) {
+        if (filename.endsWith(ZIP.suffix)) {
+            return ZIP;
+        } else if (filename.endsWith(GZIP.suffix)) {
+            return GZIP;
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns a codec writing gzip files using a single thread.
+     *
+     * @return a codec writing gzip files using a single thread
+     */
+    public static CompressionCodec gzip() {
+        return GZIP;
+    }
+
+    /**
+     * Returns a codec that does not compress.
+     *
+     * @return a codec that does not compress
+     */
+    public static CompressionCodec none() {
+        return NONE;
+    }
+
+    /**
+     * Returns a codec writing gzip files, compressing blocks of 128 KB in parallel in the common fork join pool.
+     *
+     * @return a codec compressing gzip files in parallel
+     * @see ParallelGzipOutputStream
+     */
+    public static CompressionCodec parallelGzip() {
+        return parallelGzip(ForkJoinPool.commonPool(), DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Returns a codec writing gzip files, compressing blocks in parallel using the specified executor.
+     *
+     * @param executor  the executor to compress blocks in
+     * @param blockSize the number of uncompressed bytes in each block
+     * @param level     the compression level (0-9), or {@link Deflater#DEFAULT_COMPRESSION}
+     * @return a codec compressing gzip files in parallel
+     * @throws IllegalArgumentException if the block size is less than 32 KB or the level is invalid
+     * @see ParallelGzipOutputStream
+     */
+    public static CompressionCodec parallelGzip(ExecutorService executor, int blockSize, int level) {
+        requireNonNull(executor, "executor is null");
+        ParallelGzipOutputStream.checkArguments(blockSize, level);
+        return new CompressionCodec(".gz") {
+            @Override
+            public InputStream decompress(InputStream in) throws IOException {
+                return GZIP.decompress(in);
+            }
+
+            @Override
+            public OutputStream wrap(OutputStream out, String entryName) {
+                return new ParallelGzipOutputStream(out, executor, blockSize, level);
+            }
+        };
+    }
+
+    /**
+     * Returns a codec writing a single entry to a zip file.
+     *
+     * @return a codec writing a single entry to a zip file
+     */
+    public static CompressionCodec zip() {
+        return ZIP;
+    }
+}
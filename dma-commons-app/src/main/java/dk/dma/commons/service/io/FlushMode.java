@@ -0,0 +1,42 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+/**
+ * Decides when data written by a {@link MessageToFileService} is flushed from its buffers to the operating system.
+ * Flushing less often lets the write buffer, and for zip files the compressor, work on larger chunks at the cost of
+ * more data being lost if the process crashes. Regardless of the mode, all data is flushed when a file is closed.
+ * <p>
+ * Before flushing, the sink is asked to write any messages it buffers, see
+ * {@link dk.dma.commons.util.io.OutputStreamSink#flush(java.io.OutputStream)}. With {@link #PER_WRITE} this is done
+ * once after each batch of messages, so sinks writing blocks, such as a {@link FramedRecordSink}, write at most a block
+ * per batch.
+ *
+ * @author Kasper Nielsen
+ */
+public enum FlushMode {
+
+    /** Flushes after every write. Nothing is lost if the process crashes, but throughput is low. This is the default. */
+    PER_WRITE,
+
+    /** Flushes after each batch of messages has been written. */
+    PER_BATCH,
+
+    /** Flushes periodically from the flush thread, see {@link MessageToFileService#startFlushThread()}. */
+    INTERVAL,
+
+    /** Never flushes explicitly, data is written to the operating system whenever the write buffer is full. */
+    OS;
+}
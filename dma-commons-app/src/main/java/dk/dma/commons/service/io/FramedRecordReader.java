@@ -0,0 +1,370 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static dk.dma.commons.service.io.FramedRecordSink.BLOCK_HEADER_SIZE;
+import static dk.dma.commons.service.io.FramedRecordSink.BLOCK_MAGIC;
+import static dk.dma.commons.service.io.FramedRecordSink.FILE_MAGIC;
+import static dk.dma.commons.service.io.FramedRecordSink.HEADER_SIZE;
+import static dk.dma.commons.service.io.FramedRecordSink.INDEX_ENTRY_SIZE;
+import static dk.dma.commons.service.io.FramedRecordSink.INDEX_MAGIC;
+import static dk.dma.commons.service.io.FramedRecordSink.RECORD_OVERHEAD;
+import static dk.dma.commons.service.io.FramedRecordSink.TRAILER_MAGIC;
+import static dk.dma.commons.service.io.FramedRecordSink.TRAILER_SIZE;
+import static dk.dma.commons.service.io.FramedRecordSink.VERSION;
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads files written by a {@link FramedRecordSink}. The blocks of the file are read from the index at the end of the
+ * file, or if the file does not have an index, because the writer did not close it, by scanning the file from the
+ * start. {@link #getBlocks(long, long)} finds the blocks covering a time range, which can then be read independently
+ * of each other. Reading blocks is thread safe, so blocks can be read in parallel.
+ * <p>
+ * Every record is checked against its checksum, and an {@link IOException} is thrown if a record is corrupt.
+ *
+ * @author Kasper Nielsen
+ */
+public final class FramedRecordReader implements Closeable {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(FramedRecordReader.class);
+
+    /** The blocks of the file, in file order. */
+    private final List<Block> blocks;
+
+    /** The channel to read from. */
+    private final FileChannel channel;
+
+    /** Whether or not the blocks were read from the index of the file. */
+    private final boolean indexed;
+
+    /** The file being read. */
+    private final Path path;
+
+    private FramedRecordReader(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt() != FILE_MAGIC) {
+            throw new IOException(path + " is not a framed record file");
+        } else if (header.getInt() != VERSION) {
+            throw new IOException(path + " has an unsupported version");
+        }
+        List<Block> list = readIndex();
+        indexed = list != null;
+        if (list == null) {
+            LOG.warn(path + " does not have an index, scanning blocks");
+            list = scan();
+        }
+        blocks = Collections.unmodifiableList(list);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns all blocks of the file, in file order.
+     *
+     * @return all blocks of the file
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the blocks that may contain records with a timestamp within the specified range. Assumes that the
+     * timestamps of records are non decreasing, so the records of a block have timestamps between the first timestamp
+     * of the block and the first timestamp of the next block.
+     *
+     * @param from the start of the range (inclusive)
+     * @param to   the end of the range (exclusive)
+     * @return the blocks that may contain records within the range
+     */
+    public List<Block> getBlocks(long from, long to) {
+        List<Block> result = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block b = blocks.get(i);
+            if (b.firstTimestamp < to && (i == blocks.size() - 1 || blocks.get(i + 1).firstTimestamp >= from)) {
+                result.add(b);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the file being read.
+     *
+     * @return the file being read
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns whether or not the file has a valid index. Files without an index were not closed by the writer.
+     *
+     * @return whether or not the file has a valid index
+     */
+    public boolean hasIndex() {
+        return indexed;
+    }
+
+    /**
+     * Reads all records of the specified block.
+     *
+     * @param block    the block to read
+     * @param consumer the consumer of the payload and timestamp of each record
+     * @throws IOException if the block could not be read, or is corrupt
+     */
+    public void read(Block block, ObjLongConsumer<ByteBuffer> consumer) throws IOException {
+        read(block, Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Reads the records of the specified block with a timestamp within the specified range. The payload given to the
+     * consumer is only valid while the consumer is invoked.
+     *
+     * @param block    the block to read
+     * @param from     the start of the range (inclusive)
+     * @param to       the end of the range (exclusive)
+     * @param consumer the consumer of the payload and timestamp of each record
+     * @throws IOException if the block could not be read, or is corrupt
+     */
+    public void read(Block block, long from, long to, ObjLongConsumer<ByteBuffer> consumer) throws IOException {
+        requireNonNull(consumer, "consumer is null");
+        ByteBuffer b = read(block.offset, block.length);
+        if (b.getInt() != BLOCK_MAGIC) {
+            throw new IOException("No block at offset " + block.offset + " in " + path);
+        }
+        b.position(BLOCK_HEADER_SIZE);
+        readRecords(b, block.recordCount, from, to, consumer);
+    }
+
+    /**
+     * Reads the records of a block.
+     *
+     * @param b        the block, positioned at the first record
+     * @param count    the number of records in the block
+     * @param from     the start of the range (inclusive)
+     * @param to       the end of the range (exclusive)
+     * @param consumer the consumer of the payload and timestamp of each record
+     * @throws IOException if a record is corrupt
+     */
+    void readRecords(ByteBuffer b, int count, long from, long to, ObjLongConsumer<ByteBuffer> consumer)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = b.duplicate();
+        for (int i = 0; i < count; i++) {
+            int start = b.position();
+            if (b.remaining() < RECORD_OVERHEAD) {
+                throw new IOException("Truncated record at offset " + start + " in block of " + path);
+            }
+            int length = b.getInt();
+            if (length < 0 || length > b.remaining() - RECORD_OVERHEAD + 4) {
+                throw new IOException("Corrupt record at offset " + start + " in block of " + path);
+            }
+            long timestamp = b.getLong();
+            ByteBuffer checked = b.duplicate();
+            checked.limit(start + 12 + length).position(start + 4);
+            crc.reset();
+            crc.update(checked);
+            b.position(start + 12 + length);
+            if (b.getInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch for record at offset " + start + " in block of " + path);
+            }
+            if (timestamp >= from && timestamp < to) {
+                payload.limit(start + 12 + length).position(start + 12);
+                consumer.accept(payload, timestamp);
+            }
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Reads the index at the end of the file.
+     *
+     * @return the blocks in the index, or null if the file does not have a valid index
+     * @throws IOException if the file could not be read
+     */
+    private List<Block> readIndex() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + 12 + TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != TRAILER_MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE - 12) {
+            return null;
+        }
+        ByteBuffer index = read(indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+        int count = index.getInt() == INDEX_MAGIC ? index.getInt() : -1;
+        if (count < 0 || index.remaining() != count * INDEX_ENTRY_SIZE + 4) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer entries = index.duplicate();
+        entries.limit(index.position() + count * INDEX_ENTRY_SIZE);
+        crc.update(entries);
+        if (index.getInt(index.limit() - 4) != (int) crc.getValue()) {
+            LOG.warn("Checksum mismatch for index of " + path);
+            return null;
+        }
+        List<Block> list = new ArrayList<>(count);
+        long[] offsets = new long[count + 1];
+        long[] timestamps = new long[count];
+        int[] counts = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = index.getLong();
+            timestamps[i] = index.getLong();
+            counts[i] = index.getInt();
+        }
+        offsets[count] = indexOffset;
+        for (int i = 0; i < count; i++) {
+            list.add(new Block(offsets[i], (int) (offsets[i + 1] - offsets[i]), timestamps[i], counts[i]));
+        }
+        return list;
+    }
+
+    /**
+     * Finds the blocks of a file without an index, by reading the header of each block. Stops at the first incomplete
+     * block, which is where the writer was stopped.
+     *
+     * @return the complete blocks of the file
+     * @throws IOException if the file could not be read
+     */
+    private List<Block> scan() throws IOException {
+        List<Block> list = new ArrayList<>();
+        long size = channel.size();
+        long position = HEADER_SIZE;
+        while (position + BLOCK_HEADER_SIZE + RECORD_OVERHEAD <= size) {
+            ByteBuffer h = read(position, BLOCK_HEADER_SIZE + 12);
+            int magic = h.getInt();
+            int count = h.getInt();
+            int length = h.getInt();
+            h.getInt(); // the payload length of the first record
+            if (magic != BLOCK_MAGIC || length < 0 || position + BLOCK_HEADER_SIZE + length > size) {
+                break;
+            }
+            list.add(new Block(position, BLOCK_HEADER_SIZE + length, h.getLong(), count));
+            position += BLOCK_HEADER_SIZE + length;
+        }
+        return list;
+    }
+
+    /**
+     * Opens the specified file.
+     *
+     * @param path the file to open
+     * @return a new reader
+     * @throws IOException if the file could not be opened, or is not a framed record file
+     */
+    public static FramedRecordReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(requireNonNull(path, "path is null"), StandardOpenOption.READ);
+        try {
+            return new FramedRecordReader(path, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** A block of records. */
+    public static final class Block {
+
+        /** The timestamp of the first record in the block. */
+        final long firstTimestamp;
+
+        /** The number of bytes of the block, including the block header. */
+        final int length;
+
+        /** The offset of the block in the file. */
+        final long offset;
+
+        /** The number of records in the block. */
+        final int recordCount;
+
+        Block(long offset, int length, long firstTimestamp, int recordCount) {
+            this.offset = offset;
+            this.length = length;
+            this.firstTimestamp = firstTimestamp;
+            this.recordCount = recordCount;
+        }
+
+        /**
+         * Returns the timestamp of the first record in the block.
+         *
+         * @return the timestamp of the first record in the block
+         */
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * Returns the number of bytes of the block, including the block header.
+         *
+         * @return the number of bytes of the block
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the offset of the block in the file.
+         *
+         * @return the offset of the block in the file
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the number of records in the block.
+         *
+         * @return the number of records in the block
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+    }
+}
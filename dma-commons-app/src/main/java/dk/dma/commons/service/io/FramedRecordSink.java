@@ -0,0 +1,299 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * A sink that writes messages as binary records grouped into blocks, followed by a sparse index of the blocks. This
+ * allows a {@link FramedRecordReader} to find the blocks covering a time range without reading the whole file, and to
+ * read blocks in parallel. The bytes of each message are written by another sink, for example
+ * {@link OutputStreamSink#TO_STRING_UTF8_SINK}.
+ * <p>
+ * All integers are big endian. A file has the following layout:
+ *
+ * <pre>
+ * header  : int FILE_MAGIC, int VERSION
+ * block*  : int BLOCK_MAGIC, int recordCount, int length, record*
+ * record  : int payloadLength, long timestamp, byte[payloadLength] payload, int crc32(timestamp, payload)
+ * index   : int INDEX_MAGIC, int blockCount, (long offset, long firstTimestamp, int recordCount)*, int crc32(entries)
+ * trailer : long indexOffset, int TRAILER_MAGIC
+ * </pre>
+ *
+ * A block is written when it exceeds the block size, when the stream is flushed, see {@link #flush(OutputStream)}, or
+ * when the file is closed. So how much is lost if the process crashes depends on the {@link FlushMode} of the writer,
+ * as for other sinks, but frequent flushing gives smaller blocks. The index and trailer are written by
+ * {@link #footer(OutputStream, long)}, if the process crashes before that, the blocks can still be found by scanning
+ * the file.
+ * <p>
+ * Offsets are relative to the start of the file, so the sink must be the only one writing to the file, and the file
+ * should not be compressed if the reader is to seek in it. The sink keeps the state of the file being written, and can
+ * only be used for one file at a time. {@link #header(OutputStream)} starts a new file.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public class FramedRecordSink<T> extends OutputStreamSink<T> {
+
+    /** The default size of blocks. */
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** The magic number starting a file ("DMAF"). */
+    static final int FILE_MAGIC = 0x444D4146;
+
+    /** The magic number starting a block ("BLK1"). */
+    static final int BLOCK_MAGIC = 0x424C4B31;
+
+    /** The magic number starting the index ("IDX1"). */
+    static final int INDEX_MAGIC = 0x49445831;
+
+    /** The magic number ending a file ("END1"). */
+    static final int TRAILER_MAGIC = 0x454E4431;
+
+    /** The version of the format. */
+    static final int VERSION = 1;
+
+    /** The size of the file header. */
+    static final int HEADER_SIZE = 8;
+
+    /** The size of the header of each block. */
+    static final int BLOCK_HEADER_SIZE = 12;
+
+    /** The size of a single entry in the index. */
+    static final int INDEX_ENTRY_SIZE = 20;
+
+    /** The number of bytes of each record in addition to the payload. */
+    static final int RECORD_OVERHEAD = 16;
+
+    /** The size of the trailer. */
+    static final int TRAILER_SIZE = 12;
+
+    /** The records of the current block. */
+    private final Buffer block = new Buffer();
+
+    /** The timestamp of the first record of the current block. */
+    private long blockFirstTimestamp;
+
+    /** The number of records in the current block. */
+    private int blockRecords;
+
+    /** The size of blocks. */
+    private final int blockSize;
+
+    /** The number of blocks written to the current file. */
+    private int blocks;
+
+    /** Used for calculating checksums. */
+    private final CRC32 crc = new CRC32();
+
+    /** The index entries of the current file. */
+    private final Buffer index = new Buffer();
+
+    /** The number of bytes written to the current file. */
+    private long offset;
+
+    /** The payload of the current record. */
+    private final Buffer payload = new Buffer();
+
+    /** The sink writing the bytes of each message. */
+    private final OutputStreamSink<? super T> serializer;
+
+    /** Extracts the timestamp of each message. */
+    private final ToLongFunction<? super T> timestamp;
+
+    /**
+     * Creates a new framed record sink with a block size of 64 KB.
+     *
+     * @param serializer the sink writing the bytes of each message
+     * @param timestamp  extracts the timestamp of each message, should be non decreasing
+     */
+    public FramedRecordSink(OutputStreamSink<? super T> serializer, ToLongFunction<? super T> timestamp) {
+        this(serializer, timestamp, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new framed record sink.
+     *
+     * @param serializer the sink writing the bytes of each message
+     * @param timestamp  extracts the timestamp of each message, should be non decreasing
+     * @param blockSize  the number of bytes of records after which a block is written
+     * @throws IllegalArgumentException if the block size is less than 1
+     */
+    public FramedRecordSink(OutputStreamSink<? super T> serializer, ToLongFunction<? super T> timestamp, int blockSize) {
+        this.serializer = requireNonNull(serializer, "serializer is null");
+        this.timestamp = requireNonNull(timestamp, "timestamp is null");
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1, was " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Writes any buffered records, the index and the trailer.
+     *
+     * @param stream the stream to write to
+     * @param count  the number of records written to the file
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void footer(OutputStream stream, long count) throws IOException {
+        if (blockRecords > 0) {
+            writeBlock(stream);
+        }
+        offset += writeIndex(stream, index, blocks, offset);
+    }
+
+    /**
+     * Writes the records of the current block, if any, as a block that is smaller than the block size.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void flush(OutputStream stream) throws IOException {
+        if (blockRecords > 0) {
+            writeBlock(stream);
+        }
+    }
+
+    /**
+     * Starts a new file, writing the file header.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    @Override
+    public void header(OutputStream stream) throws IOException {
+        block.reset();
+        index.reset();
+        blockRecords = 0;
+        blocks = 0;
+        Buffer b = new Buffer();
+        b.writeInt(FILE_MAGIC);
+        b.writeInt(VERSION);
+        b.writeTo(stream);
+        offset = HEADER_SIZE;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void process(OutputStream stream, T message, long count) throws IOException {
+        payload.reset();
+        serializer.process(payload, message, count);
+        long ts = timestamp.applyAsLong(message);
+        if (blockRecords == 0) {
+            blockFirstTimestamp = ts;
+        }
+        int start = block.size();
+        block.writeInt(payload.size());
+        block.writeLong(ts);
+        block.write(payload.array(), 0, payload.size());
+        crc.reset();
+        crc.update(block.array(), start + 4, 8 + payload.size());
+        block.writeInt((int) crc.getValue());
+        blockRecords++;
+        if (block.size() >= blockSize) {
+            writeBlock(stream);
+        }
+    }
+
+    private void writeBlock(OutputStream stream) throws IOException {
+        Buffer b = new Buffer();
+        b.writeInt(BLOCK_MAGIC);
+        b.writeInt(blockRecords);
+        b.writeInt(block.size());
+        b.writeTo(stream);
+        block.writeTo(stream);
+        index.writeLong(offset);
+        index.writeLong(blockFirstTimestamp);
+        index.writeInt(blockRecords);
+        offset += BLOCK_HEADER_SIZE + block.size();
+        blocks++;
+        block.reset();
+        blockRecords = 0;
+    }
+
+    /**
+     * Writes the index and the trailer.
+     *
+     * @param stream      the stream to write to
+     * @param entries     the index entries
+     * @param blockCount  the number of index entries
+     * @param indexOffset the offset in the file at which the index is written
+     * @return the number of bytes written
+     * @throws IOException if the stream could not be written
+     */
+    static int writeIndex(OutputStream stream, Buffer entries, int blockCount, long indexOffset) throws IOException {
+        Buffer b = new Buffer();
+        b.writeInt(INDEX_MAGIC);
+        b.writeInt(blockCount);
+        b.write(entries.array(), 0, entries.size());
+        CRC32 crc = new CRC32();
+        crc.update(entries.array(), 0, entries.size());
+        b.writeInt((int) crc.getValue());
+        b.writeLong(indexOffset);
+        b.writeInt(TRAILER_MAGIC);
+        b.writeTo(stream);
+        return b.size();
+    }
+
+    /** A byte array output stream that exposes its array, and can write big endian integers. */
+    static final class Buffer extends ByteArrayOutputStream {
+
+        /** Creates a new buffer. */
+        Buffer() {
+            super(256);
+        }
+
+        /**
+         * Returns the underlying array, only the first {@link #size()} bytes are valid.
+         *
+         * @return the underlying array
+         */
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Writes a big endian int.
+         *
+         * @param v the value to write
+         */
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        /**
+         * Writes a big endian long.
+         *
+         * @param v the value to write
+         */
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads messages from the contents of a file, the counterpart of {@link dk.dma.commons.util.io.OutputStreamSink}. A
+ * source can read from a stream, and from a buffer holding the whole file, for example a memory mapped file. By default
+ * the buffer is read as a stream, sources that can parse the buffer directly should override
+ * {@link #read(ByteBuffer, Consumer)}.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public abstract class InputStreamSource<T> {
+
+    /** A source that reads each line as a string, using UTF-8. */
+    public static final InputStreamSource<String> LINES_UTF8 = lines(StandardCharsets.UTF_8);
+
+    /**
+     * Reads all messages from the specified buffer. The buffer holds the whole file.
+     *
+     * @param buffer   the buffer to read from
+     * @param consumer the consumer of messages
+     * @throws IOException if the messages could not be read
+     */
+    public void read(ByteBuffer buffer, Consumer<? super T> consumer) throws IOException {
+        read(new ByteBufferInputStream(buffer), consumer);
+    }
+
+    /**
+     * Reads all messages from the specified stream.
+     *
+     * @param stream   the stream to read from
+     * @param consumer the consumer of messages
+     * @throws IOException if the messages could not be read
+     */
+    public abstract void read(InputStream stream, Consumer<? super T> consumer) throws IOException;
+
+    /**
+     * Returns a source that reads each line as a string. Lines are terminated by <tt>\n</tt> or <tt>\r\n</tt>, which
+     * is not included in the string.
+     *
+     * @param charset the charset of the lines
+     * @return a source that reads each line as a string
+     */
+    public static InputStreamSource<String> lines(Charset charset) {
+        return lines(charset, Function.identity());
+    }
+
+    /**
+     * Returns a source that reads each line, and parses it to a message.
+     *
+     * @param <T>     the type of messages
+     * @param charset the charset of the lines
+     * @param parser  parses a line to a message, or returns null to skip the line
+     * @return a source that reads each line, and parses it to a message
+     */
+    public static <T> InputStreamSource<T> lines(Charset charset, Function<? super String, ? extends T> parser) {
+        requireNonNull(charset, "charset is null");
+        requireNonNull(parser, "parser is null");
+        // For these charsets the byte '\n' is always a line feed, so the buffer can be split into lines before decoding
+        boolean asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+        return new InputStreamSource<T>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public void read(ByteBuffer buffer, Consumer<? super T> consumer) throws IOException {
+                if (!asciiCompatible) {
+                    super.read(buffer, consumer);
+                    return;
+                }
+                byte[] line = new byte[256];
+                int length = 0;
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        accept(line, length, consumer);
+                        length = 0;
+                    } else {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, line.length * 2);
+                        }
+                        line[length++] = b;
+                    }
+                }
+                if (length > 0) {
+                    accept(line, length, consumer);
+                }
+            }
+
+            private void accept(byte[] line, int length, Consumer<? super T> consumer) {
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                T t = parser.apply(new String(line, 0, length, charset));
+                if (t != null) {
+                    consumer.accept(t);
+                }
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void read(InputStream stream, Consumer<? super T> consumer) throws IOException {
+                BufferedReader r = new BufferedReader(new InputStreamReader(stream, charset), 64 * 1024);
+                for (String s = r.readLine(); s != null; s = r.readLine()) {
+                    T t = parser.apply(s);
+                    if (t != null) {
+                        consumer.accept(t);
+                    }
+                }
+            }
+        };
+    }
+
+    /** An input stream reading from a byte buffer. */
+    static final class ByteBufferInputStream extends InputStream {
+
+        /** The buffer to read from. */
+        private final ByteBuffer buffer;
+
+        /**
+         * Creates a new stream.
+         *
+         * @param buffer the buffer to read from
+         */
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = requireNonNull(buffer);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -17,12 +17,18 @@ package dk.dma.commons.service.io;
 import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,7 +74,7 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
     final ReentrantLock lock = new ReentrantLock();
 
     /**
-     * The Max size.
+     * The size in bytes after which a new file is started, Long.MAX_VALUE to only roll on time.
      */
     final long maxSize;
 
@@ -83,9 +89,14 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
     final RollingOutputStream ros = new RollingOutputStream();
 
     /**
-     * The Sdf.
+     * The path of the current time bucket.
      */
-    final SimpleDateFormat sdf;
+    final TimeBucketCache buckets;
+
+    /**
+     * The end of the time bucket of the current path in epoch milliseconds, Long.MIN_VALUE if there is no current path.
+     */
+    long currentEnd = Long.MIN_VALUE;
 
     /**
      * The Sink.
@@ -93,10 +104,21 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
     final OutputStreamSink<T> sink;
 
     /**
-     * The Count.
+     * The number of messages written to the current file. The header of the sink is written before the first message,
+     * and the footer when the file is closed.
      */
     long count;
 
+    /**
+     * The sequence number of the current file within the current time period, only used when rolling on size.
+     */
+    int sequence;
+
+    /**
+     * Whether or not to recover temporary files left by a previous run when starting.
+     */
+    volatile boolean recoverOnStartup;
+
     /**
      * Instantiates a new Message to file service.
      *
@@ -111,7 +133,7 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
         this.filename = requireNonNull(filename);
         this.sink = requireNonNull(sink);
         this.maxSize = maxSize;
-        sdf = new SimpleDateFormat(filename);
+        buckets = new TimeBucketCache(root, filename);
     }
 
     /**
@@ -129,37 +151,152 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
         return time;
     }
 
-    /** Writes every message to a file */
+    /**
+     * Writes every message to a file. When only rolling on time, all messages of the batch are written to the same file
+     * with a single {@link OutputStreamSink#processAll(java.io.OutputStream, List, long) processAll} call.
+     */
     @Override
     protected void handleMessages(List<T> messages) throws IOException {
         lock.lock();
         try {
-            for (T t : messages) {
+            for (int i = 0; i < messages.size();) {
                 long time = time();
-                // If current file is null (initial), or time differs from last time by more than 1 second
-                if (currentPath == null || time / 1000 != lastTime / 1000) {
-                    Path p = root.resolve(sdf.format(new Date(time))); // create new path
+                // If current file is null (initial), or time has passed the end of the bucket of the current file
+                if (time >= currentEnd) {
+                    Path p = buckets.pathFor(time);
+                    currentEnd = buckets.getEnd();
                     if (!Objects.equal(p, currentPath)) { // is the new path identical to the old path
-                        LOG.info("Opening file " + p.toAbsolutePath() + " for backup");
-                        ros.roll(p); // create a new file
-                        count = 0;
                         currentPath = p;
+                        sequence = -1;
+                        rollToNextSequence();
                     }
                 }
-                sink.process(ros.getPublicStream(), t, count++);
+                if (count == 0) {
+                    sink.header(ros.getPublicStream());
+                }
+                if (maxSize == Long.MAX_VALUE) { // only the first iteration, as the batch is written at once
+                    sink.processAll(ros.getPublicStream(), messages, count);
+                    count += messages.size();
+                    i = messages.size();
+                } else {
+                    sink.process(ros.getPublicStream(), messages.get(i++), count++);
+                }
                 lastTime = time;
+                if (ros.getCurrentFileBytesWritten() >= maxSize) {
+                    rollToNextSequence();
+                }
+            }
+            FlushMode flushMode = ros.getFlushMode();
+            if (flushMode == FlushMode.PER_WRITE || flushMode == FlushMode.PER_BATCH) {
+                flush();
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Rolls to the file with the next unused sequence number within the current time period. If not rolling on size,
+     * the file is just the path of the current time period.
+     *
+     * @throws IOException if the current file could not be closed
+     */
+    void rollToNextSequence() throws IOException {
+        Path p = currentPath;
+        if (maxSize != Long.MAX_VALUE) {
+            // Skip sequence numbers already used, for example, by a previous run within the same time period
+            NavigableSet<String> existing = listFilenames(currentPath.getParent());
+            do {
+                p = withSequence(currentPath, ++sequence);
+            } while (isUsed(existing, p.getFileName().toString()));
+        }
+        LOG.info("Opening file " + p.toAbsolutePath() + " for backup");
+        closeCurrent();
+        ros.roll(p); // create a new file
+    }
+
+    /**
+     * Returns the names of the files in the specified directory.
+     *
+     * @param directory the directory
+     * @return the names of the files in the directory, or an empty set if the directory does not exist
+     * @throws IOException if the directory could not be read
+     */
+    static NavigableSet<String> listFilenames(Path directory) throws IOException {
+        NavigableSet<String> result = new TreeSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for (Path p : ds) {
+                result.add(p.getFileName().toString());
+            }
+        } catch (NoSuchFileException ignore) {}
+        return result;
+    }
+
+    /**
+     * Returns whether a file with the specified name exists, or has existed, in any form. That is, the file itself,
+     * the file compressed by a {@link BackgroundCompressor}, or a temporary file written by a
+     * {@link RollingOutputStream}, a background compressor or {@link ArchiveRecovery}. All of these are the filename
+     * followed by one or more suffixes.
+     *
+     * @param existing the names of the files in the directory of the file
+     * @param filename the name of the file
+     * @return whether the filename has already been used
+     */
+    static boolean isUsed(NavigableSet<String> existing, String filename) {
+        // All names starting with filename + '.' sort before filename + '/'
+        return existing.contains(filename) || !existing.subSet(filename + '.', filename + '/').isEmpty();
+    }
+
+    /**
+     * Writes any messages buffered by the sink, and flushes the current file.
+     *
+     * @throws IOException if the messages could not be written or the file could not be flushed
+     */
+    private void flush() throws IOException {
+        if (count > 0) {
+            sink.flush(ros.getPublicStream());
+        }
+        ros.flush();
+    }
+
+    /**
+     * Writes the footer of the sink, if any messages have been written to the current file, and closes the file.
+     *
+     * @throws IOException if the footer could not be written or the file could not be closed
+     */
+    void closeCurrent() throws IOException {
+        try {
+            if (count > 0) {
+                sink.footer(ros.getPublicStream(), count);
+            }
+        } finally {
+            count = 0;
+            ros.close();
+        }
+    }
+
+    /**
+     * Recovers the temporary files left by a previous run that was not stopped properly, if enabled. Recovered files
+     * are handed to the roll listeners, like any other closed file.
+     *
+     * @throws IOException if the root directory could not be searched
+     * @see ArchiveRecovery
+     */
+    @Override
+    protected void startUp() throws IOException {
+        if (recoverOnStartup) {
+            for (Path p : ArchiveRecovery.recover(root, filename)) {
+                ros.notifyRollListeners(p);
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void onShutdown() {
         lock.lock();
         try {
-            ros.close();
+            closeCurrent();
         } catch (IOException e) {
             LOG.error("Could not close stream " + currentPath + " for backup", e);
         } finally {
@@ -167,6 +304,111 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
         }
     }
 
+    /**
+     * Adds a listener that is notified with the path of every file once it has been closed and renamed to its final
+     * name. The listener is invoked while holding the lock of this service, and should not block.
+     *
+     * @param listener the listener to add
+     */
+    public void addRollListener(Consumer<? super Path> listener) {
+        ros.addRollListener(listener);
+    }
+
+    /**
+     * Writes files uncompressed, and hands each file to the specified compressor once it has been closed. This keeps
+     * compression out of the write path. The filename pattern should not include the suffix of the compression codec,
+     * it is added by the compressor. The compressor must be stopped after this service, so the last file is
+     * compressed.
+     *
+     * @param compressor the compressor to compress files in the background
+     */
+    public void compressInBackground(BackgroundCompressor compressor) {
+        requireNonNull(compressor, "compressor is null");
+        ros.setCompressionCodec(CompressionCodec.none());
+        ros.addRollListener(compressor);
+    }
+
+    /**
+     * Returns the codec files are compressed with.
+     *
+     * @return the codec files are compressed with, or null if the codec is chosen from the filename
+     */
+    public CompressionCodec getCompressionCodec() {
+        return ros.getCompressionCodec();
+    }
+
+    /**
+     * Sets the codec files are compressed with, for example {@link CompressionCodec#parallelGzip()}. The filename
+     * pattern should end with the {@link CompressionCodec#getSuffix() suffix} of the codec. The default is null,
+     * choosing the codec from the suffix of the filename.
+     *
+     * @param compressionCodec the codec files are compressed with, or null to choose the codec from the filename
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        ros.setCompressionCodec(compressionCodec);
+    }
+
+    /**
+     * Returns when written data is flushed to the operating system.
+     *
+     * @return when written data is flushed to the operating system
+     */
+    public FlushMode getFlushMode() {
+        return ros.getFlushMode();
+    }
+
+    /**
+     * Sets when written data is flushed to the operating system. The default is {@link FlushMode#PER_WRITE}.
+     * {@link FlushMode#INTERVAL} requires the {@link #startFlushThread() flush thread} to be running.
+     *
+     * @param flushMode when written data is flushed to the operating system
+     */
+    public void setFlushMode(FlushMode flushMode) {
+        ros.setFlushMode(flushMode);
+    }
+
+    /**
+     * Returns whether or not temporary files left by a previous run are recovered when the service starts.
+     *
+     * @return whether or not temporary files are recovered when the service starts
+     */
+    public boolean isRecoverOnStartup() {
+        return recoverOnStartup;
+    }
+
+    /**
+     * Sets whether or not temporary files left by a previous run, that was not stopped properly, are recovered when
+     * the service starts. The default is false. Should only be enabled for text sinks, a {@link FramedRecordSink} or a
+     * {@link ColumnarPositionSink}, as {@link ArchiveRecovery} truncates files of any other sink after their last line
+     * feed. Should also stay disabled if another process writes files matching the same filename pattern to the root
+     * directory.
+     *
+     * @param recoverOnStartup whether or not temporary files are recovered when the service starts
+     * @see ArchiveRecovery
+     */
+    public void setRecoverOnStartup(boolean recoverOnStartup) {
+        this.recoverOnStartup = recoverOnStartup;
+    }
+
+    /**
+     * Returns whether or not files are written using a file channel.
+     *
+     * @return whether or not files are written using a file channel
+     */
+    public boolean isUseFileChannel() {
+        return ros.isUseFileChannel();
+    }
+
+    /**
+     * Sets whether or not files are written using a file channel and a reusable direct buffer, which avoids copying
+     * the data through several streams. The default is false.
+     *
+     * @param useFileChannel whether or not files are written using a file channel
+     */
+    public void setUseFileChannel(boolean useFileChannel) {
+        ros.setUseFileChannel(useFileChannel);
+    }
+
     /**
      * Creates a new MessageToFileService.
      *
@@ -181,6 +423,49 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
         return new MessageToFileService<>(root, validateFilename(root, filenamePattern), sink, Long.MAX_VALUE);
     }
 
+    /**
+     * Creates a new MessageToFileService that starts a new file whenever the time period of the filename pattern
+     * changes, or when the current file has reached the specified size. A sequence number is added to the name of every
+     * file, before the first '.' of the filename. For example, with the pattern {@code 'ais'-yyyy-MM-dd-HH'.txt.zip'}
+     * the files of a single hour are named {@code ais-2013-05-01-10-0000.txt.zip}, {@code ais-2013-05-01-10-0001.txt.zip}
+     * and so on, which also sort in the order they were written.
+     * <p>
+     * The size checked is the number of bytes written to the file, as returned by
+     * {@link RollingOutputStream#getCurrentFileBytesWritten()}. So for zip files it is the compressed size. Since bytes
+     * are counted when they leave the write buffer, files can grow up to the size of the write buffer (1 MB) beyond
+     * the maximum size unless the flush mode is {@link FlushMode#PER_WRITE}.
+     *
+     * @param <T>             the type parameter
+     * @param root            the root directory to write to
+     * @param filenamePattern the filename pattern
+     * @param sink            the sink
+     * @param maxSize         the size in bytes after which a new file is started
+     * @return message to file service
+     * @throws IllegalArgumentException if the maximum size is less than 1
+     */
+    public static <T> MessageToFileService<T> dateTimeAndSizeService(Path root, String filenamePattern,
+            OutputStreamSink<T> sink, long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+        }
+        return new MessageToFileService<>(root, validateFilename(root, filenamePattern), sink, maxSize);
+    }
+
+    /**
+     * Adds a sequence number to the specified path, before the first '.' of the filename.
+     *
+     * @param path     the path
+     * @param sequence the sequence number
+     * @return the path with the sequence number
+     */
+    static Path withSequence(Path path, int sequence) {
+        String filename = path.getFileName().toString();
+        int index = filename.indexOf('.');
+        String name = index < 0 ? filename : filename.substring(0, index);
+        String postfix = index < 0 ? "" : filename.substring(index);
+        return path.resolveSibling(String.format("%s-%04d%s", name, sequence, postfix));
+    }
+
     /**
      * Validate filename string.
      *
@@ -196,6 +481,33 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
         return filename;
     }
 
+    /**
+     * Flushes the current file, unless the flush mode is {@link FlushMode#OS}, and closes it if its time period has
+     * ended. Invoked periodically by the {@link #startFlushThread() flush thread}.
+     *
+     * @throws IOException if the current file could not be flushed or closed
+     */
+    void flushAndCloseExpired() throws IOException {
+        lock.lock();
+        try {
+            if (ros.getFlushMode() != FlushMode.OS) {
+                flush();
+            }
+            long time = time();
+            if (currentPath != null && time >= currentEnd) {
+                Path p = buckets.pathFor(time);
+                currentEnd = buckets.getEnd();
+                if (!Objects.equal(p, currentPath)) { // is the new path identical to the old path
+                    currentPath = null;
+                    currentEnd = Long.MIN_VALUE;
+                    closeCurrent();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Starts the flushing thread. We need this situations where we do not have a constant inflow of messages. Since
      * files can only be closed when a new file arrives (see code in {@link #handleMessages(List)}. We need to
@@ -213,23 +525,10 @@ public class MessageToFileService<T> extends AbstractBatchedStage<T> {
     class FlushThread extends AbstractScheduledService {
 
         protected void runOneIteration() throws Exception {
-            lock.lock();
             try {
-                try {
-                    ros.flush();
-                    if (currentPath != null) {
-                        Path p = root.resolve(sdf.format(new Date(time()))); // create new path
-                        if (!Objects.equal(p, currentPath)) { // is the new path identical to the old path
-                            currentPath = null;
-                            ros.close();
-                            count = 0;
-                        }
-                    }
-                } catch (IOException e) {
-                    LOG.error("FlushThread failed", e);
-                }
-            } finally {
-                lock.unlock();
+                flushAndCloseExpired();
+            } catch (IOException e) {
+                LOG.error("FlushThread failed", e);
             }
         }
 
@@ -0,0 +1,304 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that writes a gzip stream, compressing fixed size blocks in parallel in the style of <a
+ * href="http://zlib.net/pigz/">pigz</a>. Each block is deflated on its own by the executor, using the last 32 KB of the
+ * previous block as dictionary so the compression ratio stays close to that of a single deflater. All but the last
+ * block is ended with a sync flush, so the compressed blocks can simply be written one after another. The result is a
+ * single member gzip stream that can be read by {@link java.util.zip.GZIPInputStream} or any other gzip reader.
+ * <p>
+ * Compressed blocks are written to the underlying stream in order, by the thread writing to this stream. At most two
+ * blocks per available processor are being compressed at any time, after that writers wait for the oldest block to be
+ * compressed. Flushing this stream compresses any partial block, which lowers the compression ratio slightly. This
+ * class is not thread safe.
+ *
+ * @author Kasper Nielsen
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /** The size of the deflate window, and so the maximum useful dictionary. */
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** The maximum number of blocks that are being compressed at the same time. */
+    static final int MAX_PENDING = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** The block currently being filled. */
+    private byte[] block;
+
+    /** The number of uncompressed bytes in each block. */
+    private final int blockSize;
+
+    /** Whether or not this stream has been closed. */
+    private boolean closed;
+
+    /** The number of bytes in the current block. */
+    private int count;
+
+    /** The checksum of all uncompressed data. */
+    private final CRC32 crc = new CRC32();
+
+    /** Deflaters that are not in use, shared by the compressing tasks. */
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /** The executor to compress blocks in. */
+    private final ExecutorService executor;
+
+    /** The compression level. */
+    private final int level;
+
+    /** The stream to write compressed data to. */
+    private final OutputStream out;
+
+    /** Blocks that are being compressed, in the order they must be written. */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    /** The previous block submitted for compression, used as dictionary for the next block. */
+    private byte[] previous;
+
+    /** The number of bytes in the previous block. */
+    private int previousCount;
+
+    /** The total number of uncompressed bytes. */
+    private long size;
+
+    /**
+     * Creates a new parallel gzip output stream. The gzip header is written when the first block is written.
+     *
+     * @param out       the stream to write compressed data to
+     * @param executor  the executor to compress blocks in
+     * @param blockSize the number of uncompressed bytes in each block
+     * @param level     the compression level (0-9), or {@link Deflater#DEFAULT_COMPRESSION}
+     * @throws IllegalArgumentException if the block size is less than 32 KB or the level is invalid
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int level) {
+        this.out = requireNonNull(out, "out is null");
+        this.executor = requireNonNull(executor, "executor is null");
+        checkArguments(blockSize, level);
+        this.blockSize = blockSize;
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                submit(true);
+                while (!pending.isEmpty()) {
+                    writeNext();
+                }
+                writeInt((int) crc.getValue());
+                writeInt((int) size); // ISIZE is the size modulo 2^32
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    for (Deflater d = deflaters.poll(); d != null; d = deflaters.poll()) {
+                        d.end();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses a single block.
+     *
+     * @param data          the uncompressed data
+     * @param length        the number of bytes in the block
+     * @param dictionary    the previous block or null if this is the first block
+     * @param dictionaryEnd the number of bytes in the previous block
+     * @param last          whether or not this is the last block
+     * @return the compressed block
+     */
+    private byte[] compress(byte[] data, int length, byte[] dictionary, int dictionaryEnd, boolean last) {
+        Deflater d = deflaters.poll();
+        if (d == null) {
+            d = new Deflater(level, true);
+        }
+        try {
+            if (dictionary != null && dictionaryEnd > 0) {
+                int len = Math.min(DICTIONARY_SIZE, dictionaryEnd);
+                d.setDictionary(dictionary, dictionaryEnd - len, len);
+            }
+            d.setInput(data, 0, length);
+            byte[] buf = new byte[length / 2 + 64];
+            int n = 0;
+            if (last) {
+                d.finish();
+                while (!d.finished()) {
+                    if (n == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    }
+                    n += d.deflate(buf, n, buf.length - n);
+                }
+            } else {
+                // The deflater may have more output if it filled the buffer completely
+                int k;
+                do {
+                    if (n == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    }
+                    k = d.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH);
+                    n += k;
+                } while (n == buf.length);
+            }
+            return Arrays.copyOf(buf, n);
+        } finally {
+            d.reset();
+            deflaters.add(d);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            submit(false);
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Submits the current block for compression, and writes the oldest compressed blocks if too many blocks are being
+     * compressed.
+     *
+     * @param last whether or not this is the last block
+     * @throws IOException if a compressed block could not be written
+     */
+    private void submit(boolean last) throws IOException {
+        if (size == 0 && previous == null) {
+            // gzip header: magic, deflate, no flags, no modification time, no extra flags, unknown OS
+            out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+        }
+        final byte[] data = block;
+        final int length = count;
+        final byte[] dictionary = previous;
+        final int dictionaryEnd = previousCount;
+        crc.update(data, 0, length);
+        size += length;
+        try {
+            pending.add(executor.submit(() -> compress(data, length, dictionary, dictionaryEnd, last)));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Could not compress block", e);
+        }
+        previous = data;
+        previousCount = length;
+        count = 0;
+        if (!last) {
+            block = new byte[blockSize];
+        }
+        while (pending.size() > MAX_PENDING) {
+            writeNext();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if ((off | len | off + len | b.length - (off + len)) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (count == blockSize) {
+                submit(false);
+            }
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == blockSize) {
+            submit(false);
+        }
+        block[count++] = (byte) b;
+    }
+
+    /** Writes a little endian int, as used by the gzip trailer. */
+    private void writeInt(int i) throws IOException {
+        out.write(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24) });
+    }
+
+    /**
+     * Waits for the oldest block to be compressed, and writes it.
+     *
+     * @throws IOException if the block could not be compressed or written
+     */
+    private void writeNext() throws IOException {
+        Future<byte[]> f = pending.poll();
+        byte[] compressed;
+        try {
+            compressed = f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block to be compressed");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress block", e.getCause());
+        }
+        out.write(compressed);
+    }
+
+    /**
+     * Checks the arguments of a parallel gzip output stream.
+     *
+     * @param blockSize the number of uncompressed bytes in each block
+     * @param level     the compression level
+     * @throws IllegalArgumentException if the block size is less than 32 KB or the level is invalid
+     */
+    static void checkArguments(int blockSize, int level) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE + ", was " + blockSize);
+        } else if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between -1 and 9, was " + level);
+        }
+    }
+}
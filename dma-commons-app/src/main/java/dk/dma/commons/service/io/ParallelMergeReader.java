@@ -0,0 +1,371 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import com.google.common.base.FinalizablePhantomReference;
+import com.google.common.base.FinalizableReferenceQueue;
+
+import dk.dma.commons.util.Iterators;
+
+/**
+ * Merges messages from several sources, each sorted by the same comparator, into a single sorted iterator. For example,
+ * to replay the archives of several receivers in global timestamp order.
+ * <p>
+ * Each source is read by its own thread into a bounded buffer of chunks of messages, so decoding the sources, which is
+ * usually the expensive part, happens in parallel. The thread iterating this reader only merges the buffered messages,
+ * using a tournament tree, see {@link Iterators#mergeSorted(java.util.Collection, Comparator)}. When the buffer of a
+ * source is full its thread waits, so at most <tt>chunkSize * prefetchChunks</tt> messages are buffered per source.
+ * <p>
+ * If a source fails, the exception is thrown from {@link #hasNext()} or {@link #next()} once the messages read before
+ * the failure have been returned, and the reader is closed. IOExceptions are wrapped in an {@link UncheckedIOException}.
+ * The reader is also closed when it has been iterated to the end. Otherwise it should be closed, which stops the threads
+ * reading the sources and closes their files. If a reader is garbage collected without being closed, the threads are
+ * stopped by a cleaner. This class is not thread safe.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public final class ParallelMergeReader<T> implements Iterator<T>, Closeable {
+
+    /** The default number of messages in each chunk. */
+    static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /** The default number of chunks buffered per source. */
+    static final int DEFAULT_PREFETCH_CHUNKS = 16;
+
+    /** Marks the end of a source. */
+    private static final List<Object> END = Collections.unmodifiableList(new ArrayList<>());
+
+    /** Stops the reading threads of readers that are garbage collected without being closed. */
+    private static final FinalizableReferenceQueue CLEANER_QUEUE = new FinalizableReferenceQueue();
+
+    /** Keeps the cleaners of readers that have not been closed reachable. */
+    private static final Set<Reference<?>> CLEANERS = ConcurrentHashMap.newKeySet();
+
+    /** The cleaner of this reader. */
+    private final Reference<?> cleaner;
+
+    /** Whether or not the reader has been closed. */
+    private boolean closed;
+
+    /** The merged messages. */
+    private final Iterator<T> merged;
+
+    /** Reads each source. */
+    private final List<Prefetcher<T>> prefetchers = new ArrayList<>();
+
+    /**
+     * Creates a new reader, buffering up to 16 chunks of 1024 messages per source, and starts reading the sources.
+     *
+     * @param producers  the sources, each producing messages sorted by the comparator
+     * @param comparator the comparator the sources are sorted by
+     */
+    public ParallelMergeReader(List<? extends Producer<? extends T>> producers, Comparator<? super T> comparator) {
+        this(producers, comparator, DEFAULT_CHUNK_SIZE, DEFAULT_PREFETCH_CHUNKS);
+    }
+
+    /**
+     * Creates a new reader, and starts reading the sources.
+     *
+     * @param producers      the sources, each producing messages sorted by the comparator
+     * @param comparator     the comparator the sources are sorted by
+     * @param chunkSize      the number of messages handed from a reading thread to the merging thread at a time
+     * @param prefetchChunks the maximum number of chunks buffered per source
+     * @throws IllegalArgumentException if the chunk size or the number of prefetched chunks is less than 1
+     */
+    public ParallelMergeReader(List<? extends Producer<? extends T>> producers, Comparator<? super T> comparator,
+            int chunkSize, int prefetchChunks) {
+        requireNonNull(producers, "producers is null");
+        requireNonNull(comparator, "comparator is null");
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1, was " + chunkSize);
+        } else if (prefetchChunks < 1) {
+            throw new IllegalArgumentException("prefetchChunks must be at least 1, was " + prefetchChunks);
+        }
+        for (Producer<? extends T> p : producers) {
+            prefetchers.add(new Prefetcher<>(requireNonNull(p, "producers contains null"), chunkSize, prefetchChunks));
+        }
+        merged = Iterators.mergeSorted(prefetchers, comparator);
+        cleaner = register(this, prefetchers);
+        for (int i = 0; i < prefetchers.size(); i++) {
+            Thread t = new Thread(prefetchers.get(i), "ParallelMergeReader-" + i);
+            t.setDaemon(true);
+            prefetchers.get(i).thread = t;
+            t.start();
+        }
+    }
+
+    /** Stops the threads reading the sources. Once closed, the reader has no more messages. */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            CLEANERS.remove(cleaner);
+            cleaner.clear();
+            stop(prefetchers);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        boolean hasNext;
+        try {
+            hasNext = merged.hasNext();
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+        if (!hasNext) {
+            close();
+        }
+        return hasNext;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return merged.next();
+    }
+
+    /**
+     * Returns a source reading the archive files in the specified directory, in the order found by
+     * {@link ArchiveReaderService}.
+     *
+     * @param <T>             the type of messages
+     * @param root            the directory to read from
+     * @param filenamePattern the filename pattern used when writing the files
+     * @param source          reads messages from each file
+     * @return a source reading the archive files in the directory
+     */
+    public static <T> Producer<T> archive(Path root, String filenamePattern, InputStreamSource<? extends T> source) {
+        requireNonNull(root, "root is null");
+        MessageToFileService.validateFilename(root, filenamePattern);
+        requireNonNull(source, "source is null");
+        return consumer -> {
+            for (Path p : ArchiveReaderService.findFiles(root, filenamePattern)) {
+                ArchiveReaderService.read(p, source, consumer);
+            }
+        };
+    }
+
+    /**
+     * Registers a cleaner that stops the reading threads when the specified reader is garbage collected. Static, so the
+     * cleaner does not reference the reader.
+     *
+     * @param reader      the reader
+     * @param prefetchers the prefetchers of the reader
+     * @return the cleaner
+     */
+    private static Reference<?> register(ParallelMergeReader<?> reader, List<? extends Prefetcher<?>> prefetchers) {
+        Reference<?> r = new FinalizablePhantomReference<ParallelMergeReader<?>>(reader, CLEANER_QUEUE) {
+            @Override
+            public void finalizeReferent() {
+                if (CLEANERS.remove(this)) {
+                    stop(prefetchers);
+                }
+            }
+        };
+        CLEANERS.add(r);
+        return r;
+    }
+
+    /**
+     * Stops the threads reading the sources.
+     *
+     * @param prefetchers the prefetchers reading the sources
+     */
+    static void stop(List<? extends Prefetcher<?>> prefetchers) {
+        for (Prefetcher<?> p : prefetchers) {
+            p.closed = true;
+            p.thread.interrupt();
+            p.queue.clear();
+        }
+    }
+
+    /**
+     * A source of messages.
+     *
+     * @param <T> the type of messages
+     */
+    @FunctionalInterface
+    public interface Producer<T> {
+
+        /**
+         * Produces all messages of the source, in sorted order. Invoked by the thread reading the source.
+         *
+         * @param consumer the consumer of messages
+         * @throws Exception if the messages could not be produced
+         */
+        void produce(Consumer<? super T> consumer) throws Exception;
+    }
+
+    /**
+     * Reads a single source into a bounded buffer, and iterates over the buffered messages.
+     *
+     * @param <T> the type of messages
+     */
+    static final class Prefetcher<T> implements Runnable, Iterator<T> {
+
+        /** The chunk being filled by the reading thread. */
+        private List<T> chunk;
+
+        /** The number of messages in each chunk. */
+        private final int chunkSize;
+
+        /** Whether or not the reader has been closed. */
+        volatile boolean closed;
+
+        /** The chunk being iterated by the merging thread. */
+        private List<T> current = Collections.emptyList();
+
+        /** Whether or not the end of the source has been reached, only accessed by the merging thread. */
+        private boolean done;
+
+        /** The exception the source failed with, if any. */
+        private volatile Throwable failure;
+
+        /** The index of the next message in the current chunk. */
+        private int index;
+
+        /** The source. */
+        private final Producer<? extends T> producer;
+
+        /** The buffered chunks. */
+        final ArrayBlockingQueue<List<T>> queue;
+
+        /** The thread reading the source, read by the cleaner thread. */
+        volatile Thread thread;
+
+        Prefetcher(Producer<? extends T> producer, int chunkSize, int prefetchChunks) {
+            this.producer = producer;
+            this.chunkSize = chunkSize;
+            this.queue = new ArrayBlockingQueue<>(prefetchChunks);
+            this.chunk = new ArrayList<>(chunkSize);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean hasNext() {
+            while (index == current.size()) {
+                if (done) {
+                    return false;
+                }
+                List<T> c;
+                try {
+                    c = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for "
+                            + thread.getName()));
+                }
+                if (c == END) {
+                    done = true;
+                    Throwable t = failure;
+                    if (t instanceof IOException) {
+                        throw new UncheckedIOException((IOException) t);
+                    } else if (t instanceof RuntimeException) {
+                        throw (RuntimeException) t;
+                    } else if (t instanceof Error) {
+                        throw (Error) t;
+                    } else if (t != null) {
+                        throw new IllegalStateException(thread.getName() + " failed", t);
+                    }
+                    return false;
+                }
+                current = c;
+                index = 0;
+            }
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.get(index++);
+        }
+
+        /**
+         * Hands a chunk to the merging thread, waiting if the buffer is full.
+         *
+         * @param c the chunk
+         */
+        private void put(List<T> c) {
+            try {
+                queue.put(c);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Reader closed"));
+            }
+        }
+
+        /** {@inheritDoc} */
+        @SuppressWarnings("unchecked")
+        @Override
+        public void run() {
+            try {
+                producer.produce(t -> {
+                    chunk.add(t);
+                    if (chunk.size() == chunkSize) {
+                        put(chunk);
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                });
+                if (!chunk.isEmpty()) {
+                    put(chunk);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                chunk = null;
+                if (!closed) {
+                    try {
+                        queue.put((List<T>) (List<?>) END);
+                    } catch (InterruptedException ignore) {
+                        // Closed while waiting, nobody is reading anymore
+                    }
+                }
+            }
+        }
+    }
+}
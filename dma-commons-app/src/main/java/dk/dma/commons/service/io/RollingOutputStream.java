@@ -19,12 +19,14 @@ import static java.util.Objects.requireNonNull;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +46,9 @@ class RollingOutputStream extends OutputStream {
      */
     static final Logger LOG = LoggerFactory.getLogger(RollingOutputStream.class);
 
+    /** The codec to compress files with, or null to choose the codec from the filename. */
+    private volatile CompressionCodec compressionCodec;
+
     /** The current output stream we are writing to. */
     private OutputStream current;
 
@@ -52,6 +57,18 @@ class RollingOutputStream extends OutputStream {
 
     private volatile Path nextPath;
 
+    /** The direct buffer used by the file channel backend, reused for every file. Lazily allocated. */
+    private ByteBuffer directBuffer;
+
+    /** Whether or not to write using a file channel instead of an output stream. */
+    private volatile boolean useFileChannel;
+
+    /** When to flush written data. */
+    private volatile FlushMode flushMode = FlushMode.PER_WRITE;
+
+    /** Listeners notified with the final path of every file that has been closed. */
+    private final CopyOnWriteArrayList<Consumer<? super Path>> rollListeners = new CopyOnWriteArrayList<>();
+
     /** The output stream that should be presented to users (cannot be closed). */
     private final OutputStream publicStream = IoUtil.notCloseable(this);
 
@@ -77,9 +94,36 @@ class RollingOutputStream extends OutputStream {
             }
             current = null;
             nextPath = null;
+            written.set(0);
+            notifyRollListeners(finalPath);
+        }
+    }
+
+    /**
+     * Notifies the roll listeners that the specified file has been closed.
+     *
+     * @param path the final path of the file
+     */
+    void notifyRollListeners(Path path) {
+        for (Consumer<? super Path> listener : rollListeners) {
+            try {
+                listener.accept(path);
+            } catch (RuntimeException e) {
+                LOG.error("Roll listener failed for " + path, e);
+            }
         }
     }
 
+    /**
+     * Adds a listener that is notified with the final path of every file once it has been closed and renamed. The
+     * listener is invoked by the thread closing the file, and should not block.
+     *
+     * @param listener the listener to add
+     */
+    public void addRollListener(Consumer<? super Path> listener) {
+        rollListeners.add(requireNonNull(listener, "listener is null"));
+    }
+
     /** {@inheritDoc} */
     @Override
     public void flush() throws IOException {
@@ -88,6 +132,25 @@ class RollingOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Returns the codec files are compressed with.
+     *
+     * @return the codec files are compressed with, or null if the codec is chosen from the filename
+     */
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Sets the codec files are compressed with. Takes effect the next time a file is opened.
+     *
+     * @param compressionCodec the codec files are compressed with, or null to choose the codec from the suffix of the
+     *                         filename using {@link CompressionCodec#forFilename(String)}
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
     /**
      * Returns the number bytes written to the current file that is open.
      *
@@ -97,6 +160,45 @@ class RollingOutputStream extends OutputStream {
         return written.get();
     }
 
+    /**
+     * Returns when written data is flushed.
+     *
+     * @return when written data is flushed
+     */
+    public FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * Sets when written data is flushed. Only {@link FlushMode#PER_WRITE} is handled by this stream, for the other
+     * modes it is up to the owner of this stream to invoke {@link #flush()}.
+     *
+     * @param flushMode when written data is flushed
+     */
+    public void setFlushMode(FlushMode flushMode) {
+        this.flushMode = requireNonNull(flushMode, "flushMode is null");
+    }
+
+    /**
+     * Returns whether or not files are written using a file channel.
+     *
+     * @return whether or not files are written using a file channel
+     */
+    public boolean isUseFileChannel() {
+        return useFileChannel;
+    }
+
+    /**
+     * Sets whether or not files are written using a file channel and a reusable direct buffer, instead of a chain of
+     * buffered and counting output streams. Takes effect the next time a file is opened. When using a file channel the
+     * byte counters are only updated when the buffer is written to the file, for example when the stream is flushed.
+     *
+     * @param useFileChannel whether or not files are written using a file channel
+     */
+    public void setUseFileChannel(boolean useFileChannel) {
+        this.useFileChannel = useFileChannel;
+    }
+
     /**
      * Returns an output stream that cannot be closed.
      *
@@ -119,7 +221,7 @@ class RollingOutputStream extends OutputStream {
         if (current == null) {
             written.set(0);
             Path p = nextPath;
-            boolean isZip = p.getFileName().toString().endsWith(".zip");
+            String filename = p.getFileName().toString();
             finalPath = p;
             nextPath = p.resolveSibling(p.getFileName().toString() + ".tmp");
             nextPath = PathUtil.findUnique(nextPath);
@@ -129,15 +231,20 @@ class RollingOutputStream extends OutputStream {
             LOG.info("Opening file " + nextPath + " for backup");
             // System.out.println("Using " + nextPath.toAbsolutePath());
             // big buffer size is important as we do not want to write to disc to often
-            current = new BufferedOutputStream(new CountingOutputStream(new CountingOutputStream(Files.newOutputStream(
-                    nextPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND), written), totalWritten),
-                    1024 * 1024);
-            if (isZip) {
-                ZipOutputStream zos = new ZipOutputStream(current);
-                zos.putNextEntry(new ZipEntry(p.getFileName().toString().replace(".zip", "")));
-                // big buffer size is important as we do not want to zip to often
-                current = new BufferedOutputStream(zos, 1024 * 1024);
+            if (useFileChannel) {
+                if (directBuffer == null) {
+                    directBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+                }
+                current = new ChannelOutputStream(FileChannel.open(nextPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND), directBuffer, written, totalWritten);
+            } else {
+                current = new BufferedOutputStream(new CountingOutputStream(new CountingOutputStream(
+                        Files.newOutputStream(nextPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND), written),
+                        totalWritten), 1024 * 1024);
             }
+            CompressionCodec codec = compressionCodec == null ? CompressionCodec.forFilename(filename)
+                    : compressionCodec;
+            current = codec.wrap(current, codec.entryName(filename));
             // A previous bug
             if (nextPath.toAbsolutePath().toString().length() > 200) {
                 throw new Error(nextPath.toAbsolutePath().toString());
@@ -161,26 +268,24 @@ class RollingOutputStream extends OutputStream {
     /** {@inheritDoc} */
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        lazyOutput().write(b, off, len);
-        lazyOutput().flush();
+        OutputStream os = lazyOutput();
+        os.write(b, off, len);
+        if (flushMode == FlushMode.PER_WRITE) {
+            os.flush();
+        }
     }
 
     /** {@inheritDoc} */
     @Override
     public void write(int b) throws IOException {
-        lazyOutput().write(b);
-        lazyOutput().flush();
+        OutputStream os = lazyOutput();
+        os.write(b);
+        if (flushMode == FlushMode.PER_WRITE) {
+            os.flush();
+        }
     }
 }
 
-// void rollIfGreaterThan(long maxFileSize) throws IOException {
-// if (maxFileSize < 1) {
-// throw new IllegalArgumentException("maxFileSize must be at least 1, was " + maxFileSize);
-// } else if (getCurrentFileBytesWritten() >= maxFileSize) {
-// close();
-// }
-// }
-
 // public <T> EBlock<T> createProcessor(final OutputStreamSink<T> sink, final long chunkSize) {
 // requireNonNull(sink);
 // if (chunkSize < 1) {
@@ -0,0 +1,306 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.Service;
+
+import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.commons.service.AbstractBatchedStage;
+import dk.dma.commons.service.AbstractMessageProcessorService;
+import dk.dma.commons.service.ShardedPipeline;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Writes messages to a separate set of files per key, for example one archive per base station, using a fixed number
+ * of writer threads instead of a thread per key.
+ * <p>
+ * Messages are sharded by key to the writers as by a {@link ShardedPipeline}, so all messages with the same key are
+ * written by the same writer, in order. Each writer owns the files of its keys, a {@link MessageToFileService} per key
+ * that is created the first time a message with the key arrives. The file services are never started, the writer
+ * writes to them directly, so each key only costs a {@link RollingOutputStream} and its write buffer. Temporary files
+ * left by a previous run can be recovered for all keys at once when this service starts, see
+ * {@link #setRecoverOnStartup(boolean)}.
+ * <p>
+ * Like a single {@link MessageToFileService}, files are only closed when messages arrive for a new time period, unless
+ * the {@link #startFlushThread() flush thread} is running.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+public class ShardedMessageToFileService<T> extends ShardedPipeline<T> {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ShardedMessageToFileService.class);
+
+    /** The filename pattern relative to the directory of each key, or null if not known. */
+    private final String filenamePattern;
+
+    /** Whether or not to recover temporary files left by a previous run when starting. */
+    private volatile boolean recoverOnStartup;
+
+    /** Listeners notified with the final path of every file that has been closed or recovered. */
+    private final CopyOnWriteArrayList<Consumer<? super Path>> rollListeners;
+
+    /** The directory containing the directory of each key, or null if not known. */
+    private final Path root;
+
+    /**
+     * Creates a new sharded file service.
+     *
+     * @param shardKey    extracts the key messages are sharded by, for example the id of the base station
+     * @param writers     the number of writer threads
+     * @param fileFactory creates the file service of a key, which must not be started
+     */
+    public ShardedMessageToFileService(Function<? super T, ?> shardKey, int writers,
+            Function<Object, ? extends MessageToFileService<T>> fileFactory) {
+        this(null, null, shardKey, writers, fileFactory, new CopyOnWriteArrayList<>());
+    }
+
+    private ShardedMessageToFileService(Path root, String filenamePattern, Function<? super T, ?> shardKey,
+            int writers, Function<Object, ? extends MessageToFileService<T>> fileFactory,
+            CopyOnWriteArrayList<Consumer<? super Path>> rollListeners) {
+        super(10000, 100, shardKey, writers, i -> new Writer<>(shardKey, requireNonNull(fileFactory,
+                "fileFactory is null"), rollListeners));
+        this.root = root;
+        this.filenamePattern = filenamePattern;
+        this.rollListeners = rollListeners;
+    }
+
+    /**
+     * Adds a listener that is notified with the final path of every file that has been closed by the file service of
+     * any key, and of every file recovered when this service starts. The listener is invoked by the thread closing or
+     * recovering the file, and should not block.
+     *
+     * @param listener the listener to add
+     */
+    public void addRollListener(Consumer<? super Path> listener) {
+        rollListeners.add(requireNonNull(listener, "listener is null"));
+    }
+
+    /**
+     * Returns the file service of each key that messages have been written for.
+     *
+     * @return the file service of each key
+     */
+    public Map<Object, MessageToFileService<T>> getFiles() {
+        Map<Object, MessageToFileService<T>> result = new LinkedHashMap<>();
+        for (AbstractMessageProcessorService<T> r : getReplicas()) {
+            result.putAll(((Writer<T>) r).files);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Returns the number of keys that messages have been written for.
+     *
+     * @return the number of keys that messages have been written for
+     */
+    @ManagedAttribute
+    public int getNumberOfKeys() {
+        int result = 0;
+        for (AbstractMessageProcessorService<T> r : getReplicas()) {
+            result += ((Writer<T>) r).files.size();
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether or not temporary files left by a previous run are recovered when the service starts.
+     *
+     * @return whether or not temporary files are recovered when the service starts
+     */
+    public boolean isRecoverOnStartup() {
+        return recoverOnStartup;
+    }
+
+    /**
+     * Sets whether or not temporary files left by a previous run, that was not stopped properly, are recovered for all
+     * keys when the service starts. The default is false. The same restrictions as for
+     * {@link MessageToFileService#setRecoverOnStartup(boolean)} apply. Only supported by services created using
+     * {@link #dateTimeService(Path, String, Supplier, Function, int)}, as the directories written to are otherwise not
+     * known.
+     *
+     * @param recoverOnStartup whether or not temporary files are recovered when the service starts
+     * @throws UnsupportedOperationException if the directories written to are not known
+     * @see ArchiveRecovery#recoverSubdirectories(Path, String)
+     */
+    public void setRecoverOnStartup(boolean recoverOnStartup) {
+        if (root == null) {
+            throw new UnsupportedOperationException(
+                    "Recovery is only supported by services created using dateTimeService");
+        }
+        this.recoverOnStartup = recoverOnStartup;
+    }
+
+    /**
+     * Recovers the temporary files of all keys, if enabled, before starting the writers.
+     *
+     * @throws Exception if the root directory could not be searched, or the writers could not be started
+     */
+    @Override
+    protected void startUp() throws Exception {
+        if (recoverOnStartup) {
+            for (Path p : ArchiveRecovery.recoverSubdirectories(root, filenamePattern)) {
+                Writer.notifyRollListeners(rollListeners, p);
+            }
+        }
+        super.startUp();
+    }
+
+    /**
+     * Starts the flushing thread, which flushes the files of all keys every second, and closes files whose time period
+     * has ended. See {@link MessageToFileService#startFlushThread()}.
+     *
+     * @return the flushing thread
+     */
+    public Service startFlushThread() {
+        return new AbstractScheduledService() {
+            @Override
+            protected void runOneIteration() {
+                for (AbstractMessageProcessorService<T> r : getReplicas()) {
+                    for (MessageToFileService<T> f : ((Writer<T>) r).files.values()) {
+                        try {
+                            f.flushAndCloseExpired();
+                        } catch (IOException e) {
+                            LOG.error("Could not flush " + f.currentPath, e);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected Scheduler scheduler() {
+                return Scheduler.newFixedRateSchedule(1, 1, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    /**
+     * Creates a new sharded file service, writing the files of each key to a directory named by the key below the
+     * specified root. See {@link MessageToFileService#dateTimeService(Path, String, OutputStreamSink)}.
+     *
+     * @param <T>             the type of messages
+     * @param root            the root directory to write to
+     * @param filenamePattern the filename pattern, relative to the directory of each key
+     * @param sinkFactory     creates the sink of each key, stateless sinks may be shared
+     * @param shardKey        extracts the key messages are sharded by, its string value must be a valid directory name
+     * @param writers         the number of writer threads
+     * @return a new sharded file service
+     */
+    public static <T> ShardedMessageToFileService<T> dateTimeService(Path root, String filenamePattern,
+            Supplier<? extends OutputStreamSink<T>> sinkFactory, Function<? super T, ?> shardKey, int writers) {
+        MessageToFileService.validateFilename(root, filenamePattern);
+        requireNonNull(sinkFactory, "sinkFactory is null");
+        return new ShardedMessageToFileService<>(root, filenamePattern, shardKey, writers,
+                key -> MessageToFileService.dateTimeService(root.resolve(key.toString()), filenamePattern,
+                        sinkFactory.get()), new CopyOnWriteArrayList<>());
+    }
+
+    /**
+     * Writes the messages of the keys sharded to it.
+     *
+     * @param <T> the type of messages
+     */
+    static final class Writer<T> extends AbstractBatchedStage<T> {
+
+        /** Creates the file service of a key. */
+        private final Function<Object, ? extends MessageToFileService<T>> fileFactory;
+
+        /** The file service of each key written by this writer. */
+        final ConcurrentHashMap<Object, MessageToFileService<T>> files = new ConcurrentHashMap<>();
+
+        /** The messages of each key in the current batch. Only accessed by the processing thread. */
+        private final LinkedHashMap<Object, List<T>> grouped = new LinkedHashMap<>();
+
+        /** Listeners notified with the final path of every file that has been closed. */
+        private final List<Consumer<? super Path>> rollListeners;
+
+        /** Extracts the key of messages. */
+        private final Function<? super T, ?> shardKey;
+
+        Writer(Function<? super T, ?> shardKey, Function<Object, ? extends MessageToFileService<T>> fileFactory,
+                List<Consumer<? super Path>> rollListeners) {
+            super(10000, 1000);
+            this.shardKey = shardKey;
+            this.fileFactory = fileFactory;
+            this.rollListeners = rollListeners;
+        }
+
+        /**
+         * Notifies the specified listeners that the specified file has been closed or recovered.
+         *
+         * @param listeners the listeners to notify
+         * @param path      the final path of the file
+         */
+        static void notifyRollListeners(List<Consumer<? super Path>> listeners, Path path) {
+            for (Consumer<? super Path> listener : listeners) {
+                try {
+                    listener.accept(path);
+                } catch (RuntimeException e) {
+                    LOG.error("Roll listener failed for " + path, e);
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessages(List<T> messages) throws IOException {
+            for (T t : messages) {
+                grouped.computeIfAbsent(shardKey.apply(t), k -> new ArrayList<>()).add(t);
+            }
+            try {
+                for (Map.Entry<Object, List<T>> e : grouped.entrySet()) {
+                    MessageToFileService<T> f = files.get(e.getKey());
+                    if (f == null) {
+                        f = requireNonNull(fileFactory.apply(e.getKey()), "fileFactory returned null");
+                        f.addRollListener(p -> notifyRollListeners(rollListeners, p));
+                        files.put(e.getKey(), f);
+                    }
+                    f.handleMessages(e.getValue());
+                }
+            } finally {
+                grouped.clear();
+            }
+        }
+
+        /** Closes the files of all keys. */
+        @Override
+        protected void onShutdown() {
+            for (MessageToFileService<T> f : files.values()) {
+                f.onShutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+/**
+ * Caches the path that a filename pattern resolves to for the current time bucket. The size of the bucket is the
+ * smallest time unit used in the pattern, for example an hour for <tt>yyyy-MM-dd-HH</tt>. So the pattern is only
+ * formatted when the time crosses into a new bucket, and checking whether a time is within the current bucket is a
+ * single comparison of {@link #getEnd()}.
+ * <p>
+ * Buckets are calculated in the time zone of the pattern, so days and hours follow daylight saving time exactly as the
+ * formatted filenames do. This class is not thread safe.
+ *
+ * @author Kasper Nielsen
+ */
+final class TimeBucketCache {
+
+    /** The end (exclusive) of the current bucket in epoch milliseconds. */
+    private long end = Long.MIN_VALUE;
+
+    /** The path of the current bucket. */
+    private Path path;
+
+    /** The root directory that filenames are resolved against. */
+    private final Path root;
+
+    /** The formatter of filenames. */
+    private final SimpleDateFormat sdf;
+
+    /** The start (inclusive) of the current bucket in epoch milliseconds. */
+    private long start = Long.MAX_VALUE;
+
+    /** The size of each bucket, or {@link ChronoUnit#FOREVER} if the pattern does not use the time. */
+    private final ChronoUnit unit;
+
+    /** The time zone of the formatter. */
+    private final ZoneId zone;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param root    the root directory that filenames are resolved against
+     * @param pattern the {@link SimpleDateFormat} pattern of filenames
+     */
+    TimeBucketCache(Path root, String pattern) {
+        this.root = requireNonNull(root, "root is null");
+        this.sdf = new SimpleDateFormat(pattern);
+        this.unit = bucketUnit(pattern);
+        this.zone = sdf.getTimeZone().toZoneId();
+    }
+
+    /**
+     * Returns the end (exclusive) of the current bucket in epoch milliseconds.
+     *
+     * @return the end of the current bucket
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the size of each bucket.
+     *
+     * @return the size of each bucket
+     */
+    ChronoUnit getUnit() {
+        return unit;
+    }
+
+    /**
+     * Returns the path for the specified time. If the time is within the current bucket the cached path is returned.
+     * Otherwise the bucket is moved, and the same path instance is still returned if the new bucket formats to the same
+     * path.
+     *
+     * @param time the time in epoch milliseconds
+     * @return the path for the specified time
+     */
+    Path pathFor(long time) {
+        if (time < start || time >= end) {
+            Path p = root.resolve(sdf.format(new Date(time)));
+            if (!p.equals(path)) {
+                path = p;
+            }
+            if (unit == ChronoUnit.FOREVER) {
+                start = Long.MIN_VALUE;
+                end = Long.MAX_VALUE;
+            } else {
+                ZonedDateTime t = Instant.ofEpochMilli(time).atZone(zone);
+                ZonedDateTime s;
+                if (unit == ChronoUnit.YEARS) {
+                    s = t.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+                } else if (unit == ChronoUnit.MONTHS) {
+                    s = t.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                } else {
+                    s = t.truncatedTo(unit);
+                }
+                start = s.toInstant().toEpochMilli();
+                end = s.plus(1, unit).toInstant().toEpochMilli();
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns the smallest time unit used in the specified {@link SimpleDateFormat} pattern. Week based fields are
+     * treated as days, since weeks do not start on the same day in every locale.
+     *
+     * @param pattern the pattern
+     * @return the smallest time unit used in the pattern, or {@link ChronoUnit#FOREVER} if no time unit is used
+     */
+    static ChronoUnit bucketUnit(String pattern) {
+        ChronoUnit unit = ChronoUnit.FOREVER;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                ChronoUnit u = unitOf(c);
+                if (u != null && u.compareTo(unit) < 0) {
+                    unit = u;
+                }
+            }
+        }
+        return unit;
+    }
+
+    private static ChronoUnit unitOf(char c) {
+        switch (c) {
+        case 'S':
+            return ChronoUnit.MILLIS;
+        case 's':
+            return ChronoUnit.SECONDS;
+        case 'm':
+            return ChronoUnit.MINUTES;
+        case 'H':
+        case 'k':
+        case 'K':
+        case 'h':
+            return ChronoUnit.HOURS;
+        case 'a':
+            return ChronoUnit.HALF_DAYS;
+        case 'd':
+        case 'D':
+        case 'E':
+        case 'u':
+        case 'F':
+        case 'w':
+        case 'W':
+        case 'Y':
+            return ChronoUnit.DAYS;
+        case 'M':
+        case 'L':
+            return ChronoUnit.MONTHS;
+        case 'y':
+        case 'G':
+            return ChronoUnit.YEARS;
+        default:
+            return null; // time zones and literals
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AbstractAsyncStage}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AbstractAsyncStageTest {
+
+    /** A counter per key, owned by the stage thread. */
+    static class CounterStage extends AbstractAsyncStage<String, Integer> {
+        final Map<String, Integer> counts = new HashMap<>();
+
+        CounterStage() {
+            super(1000, 100);
+        }
+
+        @Override
+        protected Integer handleRequest(String request) throws Exception {
+            if (request.isEmpty()) {
+                throw new IOException();
+            }
+            Integer i = counts.get(request);
+            counts.put(request, i = i == null ? 1 : i + 1);
+            return i;
+        }
+    }
+
+    /**
+     * Tests that each request is answered, in order, by the stage thread.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void requests() throws Exception {
+        CounterStage s = new CounterStage();
+        s.startAsync().awaitRunning();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(s.submit("key" + i % 10));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i / 10 + 1, futures.get(i).get().intValue());
+        }
+        s.stopAsync().awaitTerminated();
+        assertEquals(1000, s.getNumberOfMessagesProcessed());
+    }
+
+    /**
+     * Tests that a failing request only fails its own future, and that requests fail after the stage has stopped.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void failures() throws Exception {
+        CounterStage s = new CounterStage();
+        s.startAsync().awaitRunning();
+        CompletableFuture<Integer> f = s.submit("");
+        assertEquals(1, s.submit("a").get().intValue());
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(f.isCompletedExceptionally());
+        s.stopAsync().awaitTerminated();
+        f = s.submit("a");
+        assertTrue(f.isCompletedExceptionally());
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            assertSame(IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    /**
+     * Tests that requests submitted before the stage is stopped are answered, even if the stage is stopped before its
+     * thread has started handling requests.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void stopImmediately() throws Exception {
+        for (int j = 0; j < 20; j++) {
+            CounterStage s = new CounterStage();
+            s.startAsync().awaitRunning();
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(s.submit("key"));
+            }
+            s.stopAsync().awaitTerminated();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i + 1, futures.get(i).get().intValue());
+            }
+            assertEquals(100, s.getNumberOfMessagesProcessed());
+        }
+    }
+
+    /**
+     * Tests that overflow policies dropping requests are rejected, as their futures would never complete.
+     */
+    @Test
+    public void overflowPolicy() {
+        CounterStage s = new CounterStage();
+        for (OverflowPolicy p : new OverflowPolicy[] { OverflowPolicy.dropNewest(), OverflowPolicy.dropOldest(),
+                OverflowPolicy.sample(3) }) {
+            try {
+                s.setOverflowPolicy(p);
+                fail("Expected failure");
+            } catch (IllegalArgumentException ok) {}
+        }
+        s.setOverflowPolicy(OverflowPolicy.block());
+        assertSame(OverflowPolicy.block(), s.getOverflowPolicy());
+    }
+}
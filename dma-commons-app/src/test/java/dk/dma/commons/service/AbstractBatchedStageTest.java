@@ -0,0 +1,209 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.DynamicMBean;
+
+import org.junit.Test;
+
+import dk.dma.commons.management.Managements;
+
+/**
+ * Tests {@link AbstractBatchedStage}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AbstractBatchedStageTest {
+
+    /**
+     * Tests that a single message is processed without waiting for more messages to arrive.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void singleMessage() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(1);
+        AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(10, 10) {
+            @Override
+            protected void handleMessages(List<Integer> messages) {
+                processed.countDown();
+            }
+        };
+        s.startAsync().awaitRunning();
+        s.getInputQueue().put(1);
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        s.stopAsync().awaitTerminated();
+        assertEquals(1, s.getNumberOfMessagesProcessed());
+        assertEquals(0, s.getMetrics().getQueueWaitTime().getCount()); // not recorded by default
+    }
+
+    /**
+     * Tests that messages are processed in order and in batches no larger than the max batch size.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void batches() throws Exception {
+        final List<Integer> result = new CopyOnWriteArrayList<>();
+        final CountDownLatch processed = new CountDownLatch(100);
+        AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(1000, 7) {
+            @Override
+            protected void handleMessages(List<Integer> messages) {
+                assertTrue(messages.size() <= 7);
+                result.addAll(messages);
+                for (int i = 0; i < messages.size(); i++) {
+                    processed.countDown();
+                }
+            }
+        };
+        s.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            s.getInputQueue().put(i);
+        }
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        s.stopAsync().awaitTerminated();
+        assertEquals(100, result.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, result.get(i).intValue());
+        }
+    }
+
+    /**
+     * Tests that metrics are recorded and can be read through the management layer.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void metrics() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(10);
+        AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(100, 10) {
+            @Override
+            protected void handleMessages(List<Integer> messages) {
+                for (int i = 0; i < messages.size(); i++) {
+                    processed.countDown();
+                }
+            }
+        };
+        s.setRecordQueueWaitTime(true);
+        s.startAsync().awaitRunning();
+        for (int i = 0; i < 10; i++) {
+            s.getInputQueue().put(i);
+        }
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        s.stopAsync().awaitTerminated();
+
+        assertEquals(10, s.getMetrics().getQueueWaitTime().getCount());
+        assertEquals(10, s.getMetrics().getProcessed().getCount());
+        assertTrue(s.getMetrics().getBatchSize().getCount() >= 1);
+
+        DynamicMBean mbean = Managements.tryCreate(s, "stage");
+        assertEquals(10L, mbean.getAttribute("NumberOfMessagesProcessed"));
+        assertEquals(0, mbean.getAttribute("Size"));
+        assertTrue((Double) mbean.getAttribute("QueueWaitTimeMeanMicros") > 0);
+        // The snapshot mean is weighted, and may be slightly below 1 due to rounding
+        assertTrue((Double) mbean.getAttribute("BatchSizeMean") >= 0.999);
+    }
+
+    /**
+     * Tests that messages are handled, if the stage is stopped before its processing thread starts handling messages.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void stopBeforeRun() throws Exception {
+        final List<Integer> result = new CopyOnWriteArrayList<>();
+        final AtomicBoolean onShutdown = new AtomicBoolean();
+        AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(10, 10) {
+            @Override
+            protected void startUp() throws Exception {
+                putAll(Arrays.asList(1, 2, 3));
+                stopAsync(); // run is skipped, as the stage is no longer running when started
+            }
+
+            @Override
+            protected void handleMessages(List<Integer> messages) {
+                result.addAll(messages);
+            }
+
+            @Override
+            protected void onShutdown() {
+                onShutdown.set(true);
+            }
+        };
+        s.startAsync().awaitTerminated();
+        assertEquals(Arrays.asList(1, 2, 3), result);
+        assertTrue(onShutdown.get());
+    }
+
+    /**
+     * Tests that the thread mode cannot be changed after the service has been started.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void threadModeAfterStart() {
+        AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(10, 10) {
+            @Override
+            protected void handleMessages(List<Integer> messages) {}
+        };
+        s.startAsync().awaitRunning();
+        try {
+            s.setThreadMode(ThreadMode.PLATFORM);
+        } finally {
+            s.stopAsync().awaitTerminated();
+        }
+    }
+
+    /**
+     * Tests that messages are processed, and that an idle stage can be stopped, with all wait strategies.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 20000)
+    public void waitStrategies() throws Exception {
+        for (WaitStrategy ws : new WaitStrategy[] { WaitStrategy.blocking(), WaitStrategy.busySpin(),
+                WaitStrategy.spinThenYield(100), WaitStrategy.spinThenPark(100, 1, TimeUnit.MILLISECONDS) }) {
+            final CountDownLatch processed = new CountDownLatch(1000);
+            AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(100, 10) {
+                @Override
+                protected void handleMessages(List<Integer> messages) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        processed.countDown();
+                    }
+                }
+            };
+            s.setWaitStrategy(ws);
+            s.startAsync().awaitRunning();
+            for (int i = 0; i < 1000; i++) {
+                s.getInputQueue().put(i);
+                if (i % 100 == 0) {
+                    Thread.sleep(2); // let the consumer go idle
+                }
+            }
+            assertTrue(ws.toString(), processed.await(5, TimeUnit.SECONDS));
+            Thread.sleep(20); // make sure the consumer is waiting, when we stop the stage
+            s.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+            assertEquals(ws.toString(), 1000, s.getNumberOfMessagesProcessed());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Service.State;
+
+/**
+ * Tests {@link AbstractParallelStage}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AbstractParallelStageTest {
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void cleanup() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that all messages are handled, on the pool, including those left in the queue when the stage is stopped.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void drainOnShutdown() throws Exception {
+        final Set<Integer> handled = ConcurrentHashMap.newKeySet();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        AbstractParallelStage<Integer> s = new AbstractParallelStage<Integer>(1000, 64, pool) {
+            @Override
+            protected void handleMessage(Integer message) throws Exception {
+                Thread.sleep(1);
+                threads.add(Thread.currentThread());
+                assertTrue(handled.add(message));
+            }
+        };
+        s.startAsync().awaitRunning();
+        for (int i = 0; i < 500; i++) {
+            s.getInputQueue().put(i);
+        }
+        s.stopAsync().awaitTerminated();
+        assertEquals(500, handled.size());
+        assertEquals(500, s.getNumberOfMessagesProcessed());
+        assertEquals(500, s.getMetrics().getProcessed().getCount());
+        assertTrue(threads.size() > 1);
+    }
+
+    /**
+     * Tests that the stage fails with the exception thrown when handling a message.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void failure() throws Exception {
+        final IOException failure = new IOException();
+        AbstractParallelStage<Integer> s = new AbstractParallelStage<Integer>(1000, 10, pool) {
+            @Override
+            protected void handleMessage(Integer message) throws Exception {
+                if (message == 5) {
+                    throw failure;
+                }
+            }
+        };
+        s.startAsync().awaitRunning();
+        for (int i = 0; i < 10; i++) {
+            s.getInputQueue().put(i);
+        }
+        try {
+            s.awaitTerminated(5, TimeUnit.SECONDS);
+        } catch (IllegalStateException ignore) {}
+        assertEquals(State.FAILED, s.state());
+        assertSame(failure, s.failureCause());
+        assertTrue(s.getNumberOfMessagesProcessed() < 10);
+    }
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.PrimitiveSink;
+
+/**
+ * Tests {@link DeduplicatingStage}.
+ *
+ * @author Kasper Nielsen
+ */
+public class DeduplicatingStageTest {
+
+    /**
+     * Tests that duplicates within the window are dropped.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void duplicates() throws Exception {
+        LinkedBlockingQueue<String> downstream = new LinkedBlockingQueue<>();
+        DeduplicatingStage<String> s = new DeduplicatingStage<>(100,
+                DeduplicatingStage.fingerprintOf(Function.identity()), 1, TimeUnit.HOURS, 100, downstream);
+        s.handleMessages(Arrays.asList("a", "b", "a", "c"));
+        s.handleMessages(Arrays.asList("b", "d"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), new ArrayList<>(downstream));
+        assertEquals(2, s.getNumberOfDuplicates());
+        assertEquals(0, s.getNumberOfEarlyRotations());
+    }
+
+    /**
+     * Tests that a key is forgotten after two windows.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void window() throws Exception {
+        LinkedBlockingQueue<String> downstream = new LinkedBlockingQueue<>();
+        DeduplicatingStage<String> s = new DeduplicatingStage<>(100,
+                DeduplicatingStage.fingerprintOf(Function.identity()), 20, TimeUnit.MILLISECONDS, 100, downstream);
+        s.handleMessages(Arrays.asList("a"));
+        Thread.sleep(25);
+        s.handleMessages(Arrays.asList("a")); // still in the previous window
+        Thread.sleep(25);
+        s.handleMessages(Arrays.asList("a"));
+        assertEquals(Arrays.asList("a", "a"), new ArrayList<>(downstream));
+        assertEquals(1, s.getNumberOfDuplicates());
+    }
+
+    /**
+     * Tests that memory stays bounded, by rotating early, when more keys than expected arrive.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void earlyRotation() throws Exception {
+        LinkedBlockingQueue<Integer> downstream = new LinkedBlockingQueue<>();
+        DeduplicatingStage<Integer> s = new DeduplicatingStage<>(100,
+                DeduplicatingStage.fingerprintOf(Function.identity(), Funnels.integerFunnel()), 1, TimeUnit.HOURS, 10,
+                downstream);
+        List<Integer> l = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            l.add(i);
+        }
+        s.handleMessages(l);
+        assertEquals(100, downstream.size());
+        assertEquals(9, s.getNumberOfEarlyRotations());
+        s.handleMessages(Arrays.asList(99, 0)); // 99 is remembered, 0 has been forgotten
+        assertEquals(1, s.getNumberOfDuplicates());
+    }
+
+    /**
+     * Tests the fingerprint set.
+     */
+    @Test
+    public void fingerprintSet() {
+        DeduplicatingStage.FingerprintSet fs = new DeduplicatingStage.FingerprintSet(3);
+        assertTrue(fs.add(0));
+        assertTrue(fs.contains(0));
+        assertFalse(fs.add(0));
+        assertTrue(fs.add(4));
+        assertTrue(fs.add(8)); // collides with 4 in the table
+        assertTrue(fs.isFull());
+        assertTrue(fs.contains(8));
+        assertFalse(fs.contains(12));
+        fs.clear();
+        assertFalse(fs.contains(4));
+        assertEquals(DeduplicatingStage.fingerprint("abc"), DeduplicatingStage.fingerprint(new StringBuilder("abc")));
+    }
+
+    /**
+     * Tests that keys with the same hash code have different fingerprints.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void hashCodeCollisions() throws Exception {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(Long.valueOf(1L << 32).hashCode(), Long.valueOf(1).hashCode());
+        LinkedBlockingQueue<Long> downstream = new LinkedBlockingQueue<>();
+        DeduplicatingStage<Long> s = new DeduplicatingStage<>(100,
+                DeduplicatingStage.fingerprintOf(Function.identity(), (Long l, PrimitiveSink sink) -> sink.putLong(l)), 1,
+                TimeUnit.HOURS, 100, downstream);
+        s.handleMessages(Arrays.asList(1L, 1L << 32, 1L));
+        assertEquals(Arrays.asList(1L, 1L << 32), new ArrayList<>(downstream));
+        assertEquals(1, s.getNumberOfDuplicates());
+        assertFalse(DeduplicatingStage.fingerprint("Aa") == DeduplicatingStage.fingerprint("BB"));
+    }
+}
@@ -0,0 +1,194 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PriorityLaneQueue}.
+ *
+ * @author Kasper Nielsen
+ */
+public class PriorityLaneQueueTest {
+
+    /**
+     * Tests that higher lanes are taken first.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void priority() throws InterruptedException {
+        PriorityLaneQueue<String> q = new PriorityLaneQueue<>(3, 100, 100);
+        q.put("d1");
+        q.put("d2");
+        q.put(2, "c1");
+        q.put(1, "m1");
+        q.put(2, "c2");
+        assertEquals(5, q.size());
+        assertEquals(Arrays.asList("c1", "c2", "m1", "d1", "d2"), Arrays.asList(q.toArray()));
+        assertEquals("c1", q.take());
+        List<String> l = new ArrayList<>();
+        q.drainTo(l, 3);
+        assertEquals(Arrays.asList("c2", "m1", "d1"), l);
+        assertEquals("d2", q.poll());
+        assertNull(q.poll());
+    }
+
+    /**
+     * Tests that lower lanes are served after the starvation limit.
+     */
+    @Test
+    public void starvation() {
+        PriorityLaneQueue<String> q = new PriorityLaneQueue<>(2, 100, 3);
+        q.offer("d1");
+        q.offer("d2");
+        for (int i = 0; i < 7; i++) {
+            q.offer(1, "c" + i);
+        }
+        List<String> l = new ArrayList<>();
+        while (!q.isEmpty()) {
+            l.add(q.poll());
+        }
+        assertEquals(Arrays.asList("c0", "c1", "c2", "d1", "c3", "c4", "c5", "d2", "c6"), l);
+
+        for (int i = 0; i < 7; i++) {
+            q.offer(1, "c" + i);
+        }
+        q.offer("d1");
+        l.clear();
+        q.drainTo(l);
+        assertEquals(Arrays.asList("c0", "c1", "c2", "d1", "c3", "c4", "c5", "c6"), l);
+    }
+
+    /**
+     * Tests that a middle lane is served while both the lanes above and below it are loaded.
+     */
+    @Test
+    public void starvationMiddleLane() {
+        PriorityLaneQueue<String> q = new PriorityLaneQueue<>(3, 100, 3);
+        for (int i = 0; i < 30; i++) {
+            q.offer(0, "l" + i);
+            q.offer(1, "m" + i);
+            q.offer(2, "h" + i);
+        }
+        List<String> l = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            l.add(q.poll());
+        }
+        assertEquals(Arrays.asList("h0", "h1", "h2", "l0", "m0", "h3", "h4", "l1", "h5", "m1"), l);
+
+        // Elements in the middle lane keep being taken while the high lane is still loaded
+        l.clear();
+        q.drainTo(l, 40);
+        assertTrue(count(l, "m") >= 5);
+        assertTrue(count(l, "l") >= 5);
+        assertTrue(q.size(2) > 0);
+    }
+
+    /** Returns the number of elements with the specified prefix. */
+    static int count(List<String> l, String prefix) {
+        int n = 0;
+        for (String s : l) {
+            if (s.startsWith(prefix)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Tests that a consumer blocked on an empty queue is woken up by a put to a higher lane, and that the queue
+     * terminates once shutdown and drained.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void wakeUpAndShutdown() throws InterruptedException {
+        final PriorityLaneQueue<String> q = new PriorityLaneQueue<>(2, 100, 100);
+        final List<String> taken = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    String s;
+                    while ((s = q.take()) != null) {
+                        taken.add(s);
+                    }
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).start();
+        Thread.sleep(20);
+        q.put(1, "c");
+        q.put("d");
+        q.shutdown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(q.isTerminated());
+        assertTrue(q.awaitFullyTerminated(1, TimeUnit.SECONDS));
+        assertEquals(2, taken.size());
+    }
+
+    /**
+     * Tests that a batched stage takes control messages ahead of data messages.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void batchedStage() throws Exception {
+        final PriorityLaneQueue<String> q = new PriorityLaneQueue<>(2, 1000, 1000);
+        final List<List<String>> batches = new CopyOnWriteArrayList<>();
+        final CountDownLatch processed = new CountDownLatch(101);
+        final CountDownLatch block = new CountDownLatch(1);
+        AbstractBatchedStage<String> s = new AbstractBatchedStage<String>(q, 10) {
+            @Override
+            protected void handleMessages(List<String> messages) throws InterruptedException {
+                block.await();
+                batches.add(new ArrayList<>(messages));
+                for (int i = 0; i < messages.size(); i++) {
+                    processed.countDown();
+                }
+            }
+        };
+        s.setRecordQueueWaitTime(true);
+        s.startAsync().awaitRunning();
+        q.put("first");
+        Thread.sleep(20); // make sure the stage is blocked handling the first message
+        for (int i = 0; i < 99; i++) {
+            q.put("d" + i);
+        }
+        q.put(1, "flush");
+        block.countDown();
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        s.stopAsync().awaitTerminated();
+        assertEquals(Arrays.asList("first"), batches.get(0));
+        assertEquals("flush", batches.get(1).get(0));
+        assertEquals(10, batches.get(1).size());
+        assertEquals(101, s.getNumberOfMessagesProcessed());
+        assertEquals(101, s.getMetrics().getQueueWaitTime().getCount());
+    }
+}
@@ -0,0 +1,158 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import javax.management.DynamicMBean;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Service.State;
+
+import dk.dma.commons.management.Managements;
+
+/**
+ * Tests {@link ShardedPipeline}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardedPipelineTest {
+
+    /**
+     * Tests that messages with the same key go to the same replica in order, and that the managed attributes are
+     * aggregated over all replicas.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void sharding() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(1000);
+        final List<List<Integer>> received = new ArrayList<>();
+        ShardedPipeline<Integer> p = new ShardedPipeline<>(1000, 100, i -> i % 10, 4,
+                new IntFunction<AbstractMessageProcessorService<Integer>>() {
+                    public AbstractMessageProcessorService<Integer> apply(int index) {
+                        final List<Integer> l = new ArrayList<>();
+                        received.add(l);
+                        return new AbstractBatchedStage<Integer>(1000, 100) {
+                            @Override
+                            protected void handleMessages(List<Integer> messages) {
+                                l.addAll(messages);
+                                for (int i = 0; i < messages.size(); i++) {
+                                    processed.countDown();
+                                }
+                            }
+                        };
+                    }
+                });
+        p.startAsync().awaitRunning();
+        for (AbstractMessageProcessorService<Integer> r : p.getReplicas()) {
+            assertEquals(State.RUNNING, r.state());
+        }
+        for (int i = 0; i < 1000; i++) {
+            p.getInputQueue().put(i);
+        }
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+
+        DynamicMBean mbean = Managements.tryCreate(p, "pipeline");
+        assertEquals(4, mbean.getAttribute("NumberOfReplicas"));
+        assertEquals(1000L, mbean.getAttribute("ReplicaMessagesProcessed"));
+
+        p.stopAsync().awaitTerminated();
+        for (AbstractMessageProcessorService<Integer> r : p.getReplicas()) {
+            assertEquals(State.TERMINATED, r.state());
+        }
+        int total = 0;
+        for (List<Integer> l : received) {
+            total += l.size();
+            for (int i = 1; i < l.size(); i++) {
+                assertTrue(l.get(i - 1) < l.get(i));
+            }
+            for (Integer i : l) {
+                assertEquals(p.shardOf(i % 10), p.shardOf(l.get(0) % 10));
+            }
+        }
+        assertEquals(1000, total);
+    }
+
+    /**
+     * Tests that all messages accepted by the pipeline are handled by the replicas when the pipeline is stopped.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void stopDrains() throws Exception {
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger afterShutdown = new AtomicInteger();
+        ShardedPipeline<Integer> p = new ShardedPipeline<>(1000, 10, i -> i, 4, i -> new AbstractBatchedStage<Integer>(
+                1000, 10) {
+            @Override
+            protected void handleMessages(List<Integer> messages) throws InterruptedException {
+                Thread.sleep(1);
+                processed.addAndGet(messages.size());
+            }
+
+            @Override
+            protected void onShutdown() {
+                afterShutdown.set(processed.get());
+            }
+        });
+        p.startAsync().awaitRunning();
+        for (int i = 0; i < 1000; i++) {
+            p.getInputQueue().put(i);
+        }
+        p.stopAsync().awaitTerminated();
+        assertEquals(1000, processed.get());
+        assertEquals(1000, afterShutdown.get());
+    }
+
+    /**
+     * Tests that the messages of a batch that failed are not sent with the next batch.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void failedBatch() throws Exception {
+        ShardedPipeline<Integer> p = new ShardedPipeline<>(1000, 100, i -> {
+            if (i < 0) {
+                throw new IllegalArgumentException();
+            }
+            return i;
+        }, 4, i -> new AbstractBatchedStage<Integer>(1000, 100) {
+            @Override
+            protected void handleMessages(List<Integer> messages) {}
+        });
+        try {
+            p.handleMessages(Arrays.asList(1, 2, -1));
+            fail("Expected failure");
+        } catch (IllegalArgumentException ok) {}
+        p.handleMessages(Arrays.asList(3));
+        int total = 0;
+        for (AbstractMessageProcessorService<Integer> r : p.getReplicas()) {
+            total += r.getSize();
+        }
+        assertEquals(1, total);
+    }
+}
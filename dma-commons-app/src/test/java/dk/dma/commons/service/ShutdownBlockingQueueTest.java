@@ -0,0 +1,214 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingWindowReservoir;
+
+/**
+ * Tests {@link ShutdownBlockingQueue}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShutdownBlockingQueueTest {
+
+    /**
+     * Tests the drop newest overflow policy.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void overflowDropNewest() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(3);
+        q.setOverflowPolicy(OverflowPolicy.dropNewest());
+        for (int i = 1; i <= 5; i++) {
+            q.put(i);
+        }
+        assertArrayEquals(new Object[] { 1, 2, 3 }, q.toArray());
+        assertEquals(2, q.getNumberOfDroppedElements());
+        assertFalse(q.offer(6)); // offer is not affected by the policy
+        assertEquals(2, q.getNumberOfDroppedElements());
+    }
+
+    /**
+     * Tests the drop oldest overflow policy.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void overflowDropOldest() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(3);
+        q.setOverflowPolicy(OverflowPolicy.dropOldest());
+        for (int i = 1; i <= 5; i++) {
+            q.put(i);
+        }
+        assertArrayEquals(new Object[] { 3, 4, 5 }, q.toArray());
+        assertEquals(2, q.getNumberOfDroppedElements());
+        assertEquals(3, q.take().intValue());
+    }
+
+    /**
+     * Tests the sample overflow policy.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void overflowSample() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(2);
+        q.setOverflowPolicy(OverflowPolicy.sample(3));
+        for (int i = 1; i <= 8; i++) {
+            q.put(i);
+        }
+        // 3,4,5 overflows, keep 5. 6,7,8 overflows, keep 8
+        assertArrayEquals(new Object[] { 5, 8 }, q.toArray());
+        assertEquals(6, q.getNumberOfDroppedElements());
+    }
+
+    /**
+     * Tests that put fails after the queue has been shutdown.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(expected = IllegalStateException.class, timeout = 10000)
+    public void putAfterShutdown() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(2);
+        q.shutdown();
+        q.put(1);
+    }
+
+    /**
+     * Tests that offerAll inserts as many elements as there is room for.
+     */
+    @Test
+    public void offerAll() {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(5);
+        assertEquals(3, q.offerAll(Arrays.asList(1, 2, 3)));
+        assertEquals(2, q.offerAll(Arrays.asList(4, 5, 6, 7)));
+        assertEquals(0, q.offerAll(Arrays.asList(8)));
+        assertArrayEquals(new Object[] { 1, 2, 3, 4, 5 }, q.toArray());
+        assertEquals(1, q.poll().intValue());
+        assertEquals(1, q.offerAll(Arrays.asList(9)));
+        assertArrayEquals(new Object[] { 2, 3, 4, 5, 9 }, q.toArray());
+    }
+
+    /**
+     * Tests that no elements are inserted if one of them is null.
+     */
+    @Test
+    public void offerAllNull() {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(5);
+        try {
+            q.offerAll(Arrays.asList(1, null, 3));
+        } catch (NullPointerException ok) {}
+        assertEquals(0, q.size());
+    }
+
+    /**
+     * Tests that putAll waits for a consumer when more elements than the capacity of the queue are put.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void putAllBlocking() throws InterruptedException {
+        final ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(4);
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add(i);
+        }
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < expected.size(); i += 100) {
+                        q.putAll(expected.subList(i, i + 100));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        List<Integer> result = new ArrayList<>();
+        while (result.size() < expected.size()) {
+            q.drainToBlocking(result, 3);
+        }
+        producer.join();
+        assertEquals(expected, result);
+        assertEquals(0, q.size());
+    }
+
+    /**
+     * Tests putAll with the drop oldest overflow policy.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void putAllDropOldest() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(3);
+        q.setOverflowPolicy(OverflowPolicy.dropOldest());
+        q.putAll(Arrays.asList(1, 2, 3, 4, 5));
+        assertArrayEquals(new Object[] { 3, 4, 5 }, q.toArray());
+        assertEquals(2, q.getNumberOfDroppedElements());
+    }
+
+    /**
+     * Tests putAll with the drop newest overflow policy.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void putAllDropNewest() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(3);
+        q.setOverflowPolicy(OverflowPolicy.dropNewest());
+        q.putAll(Arrays.asList(1, 2));
+        q.putAll(Arrays.asList(3, 4, 5));
+        assertArrayEquals(new Object[] { 1, 2, 3 }, q.toArray());
+        assertEquals(2, q.getNumberOfDroppedElements());
+    }
+
+    /**
+     * Tests that wait times are only recorded for elements that were put after a histogram was attached.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test(timeout = 10000)
+    public void waitTimes() throws InterruptedException {
+        ShutdownBlockingQueue<Integer> q = new ShutdownBlockingQueue<>(10);
+        q.put(1);
+        Histogram h = new Histogram(new SlidingWindowReservoir(100));
+        q.setWaitTimes(h);
+        q.put(2);
+        q.offer(3);
+        q.putAll(Arrays.asList(4, 5));
+        assertEquals(Integer.valueOf(1), q.take());
+        assertEquals(0, h.getCount());
+        assertEquals(Integer.valueOf(2), q.poll());
+        assertEquals(1, h.getCount());
+        List<Integer> result = new ArrayList<>();
+        assertEquals(3, q.drainTo(result));
+        assertEquals(4, h.getCount());
+        assertTrue(h.getSnapshot().getMin() >= 0);
+    }
+}
@@ -0,0 +1,166 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SpillingBlockingQueue}.
+ *
+ * @author Kasper Nielsen
+ */
+public class SpillingBlockingQueueTest {
+
+    static final Function<Integer, byte[]> SERIALIZER = new Function<Integer, byte[]>() {
+        public byte[] apply(Integer t) {
+            return ByteBuffer.allocate(4).putInt(t).array();
+        }
+    };
+
+    static final Function<byte[], Integer> DESERIALIZER = new Function<byte[], Integer>() {
+        public Integer apply(byte[] t) {
+            return ByteBuffer.wrap(t).getInt();
+        }
+    };
+
+    Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("spill");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            s.forEach(p -> p.toFile().delete());
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Tests that elements above the high-water mark are spilled and read back in order.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void spillAndReadBack() throws Exception {
+        SpillingBlockingQueue<Integer> q = new SpillingBlockingQueue<>(10, dir, SERIALIZER, DESERIALIZER, 1024);
+        for (int i = 0; i < 1000; i++) {
+            q.put(i);
+        }
+        assertEquals(1000, q.size());
+        assertEquals(990, q.getNumberOfSpilledElements());
+        assertTrue(Files.list(dir).count() > 1); // multiple segments
+
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, q.take().intValue());
+        }
+        q.put(1000); // must be placed after the spilled elements
+        List<Integer> rest = new ArrayList<>();
+        while (q.drainTo(rest, 7) > 0) {}
+        assertEquals(501, rest.size());
+        for (int i = 0; i < rest.size(); i++) {
+            assertEquals(500 + i, rest.get(i).intValue());
+        }
+        assertEquals(0, q.getNumberOfSpilledElements());
+        assertEquals(0, Files.list(dir).count());
+    }
+
+    /**
+     * Tests that order is kept with a concurrent producer and consumer.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 20000)
+    public void concurrent() throws Exception {
+        final SpillingBlockingQueue<Integer> q = new SpillingBlockingQueue<>(100, dir, SERIALIZER, DESERIALIZER, 4096);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 200000; i++) {
+                q.put(i);
+            }
+        });
+        producer.start();
+        for (int i = 0; i < 200000; i++) {
+            assertEquals(i, q.take().intValue());
+        }
+        producer.join();
+        assertTrue(q.getTotalNumberOfSpilledElements() >= 0);
+    }
+
+    /**
+     * Tests that the queue is not terminated until all spilled elements has been taken.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void shutdown() throws Exception {
+        SpillingBlockingQueue<Integer> q = new SpillingBlockingQueue<>(10, dir, SERIALIZER, DESERIALIZER, 1024);
+        for (int i = 0; i < 100; i++) {
+            q.put(i);
+        }
+        q.shutdown();
+        assertTrue(q.isShutdown());
+        try {
+            q.put(100);
+            throw new AssertionError();
+        } catch (IllegalStateException ok) {}
+        for (int i = 0; i < 100; i++) {
+            assertFalse(q.isTerminated());
+            assertEquals(i, q.take().intValue());
+        }
+        assertNull(q.take());
+        assertTrue(q.isTerminated());
+    }
+
+    /**
+     * Tests that putAll spills the elements that do not fit in memory and keeps their order.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 10000)
+    public void putAll() throws Exception {
+        SpillingBlockingQueue<Integer> q = new SpillingBlockingQueue<>(10, dir, SERIALIZER, DESERIALIZER, 1024);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(i);
+        }
+        q.putAll(expected.subList(0, 50));
+        assertEquals(50, q.offerAll(expected.subList(50, 100)));
+        assertEquals(100, q.size());
+        assertEquals(90, q.getNumberOfSpilledElements());
+        List<Integer> result = new ArrayList<>();
+        while (result.size() < 100) {
+            q.drainTo(result, 7);
+        }
+        assertEquals(expected, result);
+    }
+}
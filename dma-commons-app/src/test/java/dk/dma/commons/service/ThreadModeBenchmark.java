@@ -0,0 +1,127 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares running a large number of small stages on platform threads and on virtual threads. Not run as part of the
+ * build, start it manually with the thread modes to compare as arguments, for example
+ * {@code PLATFORM VIRTUAL}. Virtual threads require Java 21 or later.
+ *
+ * @author Kasper Nielsen
+ */
+public class ThreadModeBenchmark {
+
+    /** The number of stages to start. */
+    static final int STAGES = 1000;
+
+    /** The number of messages to send to each stage. */
+    static final int MESSAGES_PER_STAGE = 2000;
+
+    /** The number of producer threads. */
+    static final int PRODUCERS = 4;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the thread modes to benchmark
+     * @throws Exception the exception
+     */
+    public static void main(String[] args) throws Exception {
+        String[] modes = args.length == 0 ? new String[] { "PLATFORM", "VIRTUAL" } : args;
+        for (String m : modes) {
+            ThreadMode mode = ThreadMode.valueOf(m);
+            if (!mode.isSupported()) {
+                System.out.println(mode + " is not supported on this JVM, skipping");
+                continue;
+            }
+            run(mode); // warmup
+            run(mode);
+        }
+    }
+
+    static void run(ThreadMode mode) throws Exception {
+        System.gc();
+        long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        final CountDownLatch done = new CountDownLatch(STAGES * MESSAGES_PER_STAGE);
+        final List<AbstractBatchedStage<Integer>> stages = new ArrayList<>();
+        for (int i = 0; i < STAGES; i++) {
+            AbstractBatchedStage<Integer> s = new AbstractBatchedStage<Integer>(1000, 100) {
+                @Override
+                protected void handleMessages(List<Integer> messages) {
+                    for (int j = 0; j < messages.size(); j++) {
+                        done.countDown();
+                    }
+                }
+            };
+            s.setThreadMode(mode);
+            stages.add(s);
+        }
+        long start = System.nanoTime();
+        for (AbstractBatchedStage<Integer> s : stages) {
+            s.startAsync();
+        }
+        for (AbstractBatchedStage<Integer> s : stages) {
+            s.awaitRunning();
+        }
+        long started = System.nanoTime();
+        long threadsRunning = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapRunning = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int offset = p;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = offset; i < STAGES * MESSAGES_PER_STAGE; i += PRODUCERS) {
+                            stages.get(i % STAGES).getInputQueue().put(i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            t.start();
+            producers.add(t);
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+        if (!done.await(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Timed out, messages remaining = " + done.getCount());
+        }
+        long processed = System.nanoTime();
+        for (AbstractBatchedStage<Integer> s : stages) {
+            s.stopAsync();
+        }
+        for (AbstractBatchedStage<Integer> s : stages) {
+            s.awaitTerminated();
+        }
+        long stopped = System.nanoTime();
+
+        double seconds = (processed - started) / 1e9;
+        System.out.printf("%-8s stages=%d start=%dms process=%dms (%.0f msg/s) stop=%dms platformThreads=%d heap=%dMB%n",
+                mode, STAGES, TimeUnit.NANOSECONDS.toMillis(started - start),
+                TimeUnit.NANOSECONDS.toMillis(processed - started), STAGES * MESSAGES_PER_STAGE / seconds,
+                TimeUnit.NANOSECONDS.toMillis(stopped - processed), threadsRunning - threadsBefore,
+                heapRunning / 1024 / 1024);
+    }
+}
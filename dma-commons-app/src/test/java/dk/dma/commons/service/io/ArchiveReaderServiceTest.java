@@ -0,0 +1,127 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dk.dma.commons.service.ShutdownBlockingQueue;
+
+/**
+ * Tests {@link ArchiveReaderService}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ArchiveReaderServiceTest {
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory to read from. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    void write(String name, CompressionCodec codec, String... lines) throws IOException {
+        Path p = root.resolve(name);
+        Files.createDirectories(p.getParent());
+        try (OutputStream os = codec.wrap(Files.newOutputStream(p), codec.entryName(name))) {
+            for (String s : lines) {
+                os.write((s + "\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Tests that files are found and ordered by the time in their name, then their sequence number and copy number,
+     * and that both mapped and compressed files are read.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void readInOrder() throws Exception {
+        String pattern = "yyyy/'ais'-MM-dd-HH'.txt'";
+        write("2013/ais-01-01-10.txt", CompressionCodec.none(), "e", "f");
+        write("2013/ais-01-01-09-0001.txt.zip", CompressionCodec.zip(), "c", "d");
+        write("2013/ais-01-01-09-0000.txt.gz", CompressionCodec.gzip(), "a", "b");
+        write("2013/ais-01-01-09-0001-1.txt", CompressionCodec.none(), "d2");
+        write("2013/ais-01-01-10-1.txt.gz", CompressionCodec.gzip(), "f2");
+        write("2012/ais-12-31-23.txt", CompressionCodec.none(), "0", "æøå");
+        write("2013/ais-01-01-11.txt.tmp", CompressionCodec.none(), "in progress");
+        write("2013/other.txt", CompressionCodec.none(), "other");
+
+        List<String> expected = Arrays.asList("0", "æøå", "a", "b", "c", "d", "d2", "e", "f", "f2");
+        for (BlockingQueue<String> q : Arrays.<BlockingQueue<String>> asList(new LinkedBlockingQueue<>(),
+                new ShutdownBlockingQueue<>(100))) {
+            ArchiveReaderService<String> s = new ArchiveReaderService<>(root, pattern, InputStreamSource.LINES_UTF8,
+                    q);
+            assertEquals(6, s.findFiles().size());
+            s.startAsync().awaitTerminated();
+            List<String> result = new ArrayList<>();
+            q.drainTo(result);
+            assertEquals(expected, result);
+            assertEquals(6, s.getNumberOfFilesRead());
+            assertEquals(10, s.getNumberOfMessagesRead());
+        }
+    }
+
+    /**
+     * Tests reading files written by a message to file service, more messages than fits in a single batch.
+     *
+     * @throws Exception the exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void readMessageToFileService() throws Exception {
+        MessageToFileService<Integer> w = MessageToFileService.dateTimeAndSizeService(root, "'ais'-yyyy'.txt'",
+                (dk.dma.commons.util.io.OutputStreamSink) dk.dma.commons.util.io.OutputStreamSink.TO_STRING_UTF8_SINK,
+                10_000);
+        List<Integer> messages = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            messages.add(i);
+        }
+        w.handleMessages(messages);
+        w.onShutdown();
+
+        LinkedBlockingQueue<Integer> q = new LinkedBlockingQueue<>();
+        ArchiveReaderService<Integer> s = new ArchiveReaderService<>(root, "'ais'-yyyy'.txt'",
+                InputStreamSource.lines(StandardCharsets.UTF_8, Integer::valueOf), q);
+        s.startAsync().awaitTerminated();
+        List<Integer> result = new ArrayList<>();
+        q.drainTo(result);
+        assertEquals(messages, result);
+        assertEquals(s.findFiles().size(), s.getNumberOfFilesRead());
+    }
+}
@@ -0,0 +1,242 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dk.dma.commons.service.io.FramedRecordReader.Block;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link ArchiveRecovery}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ArchiveRecoveryTest {
+
+    /** The filename pattern used by the tests. */
+    static final String PATTERN = "yyyy/'ais'-MM-dd'.txt'";
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory to recover. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    /** Writes the specified bytes to the specified file, creating parent directories. */
+    Path write(String name, byte[] bytes) throws IOException {
+        Path p = root.resolve(name);
+        Files.createDirectories(p.getParent());
+        Files.write(p, bytes);
+        return p;
+    }
+
+    /** Compresses the specified text, and cuts off the last bytes of the compressed data. */
+    static byte[] truncated(CompressionCodec codec, String entryName, String text, int cut) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (OutputStream os = codec.wrap(bos, entryName)) {
+            os.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return Arrays.copyOf(bos.toByteArray(), bos.size() - cut);
+    }
+
+    static String read(Path p) throws IOException {
+        List<String> lines = new ArrayList<>();
+        ArchiveReaderService.read(p, InputStreamSource.LINES_UTF8, lines::add);
+        return String.join(",", lines);
+    }
+
+    /**
+     * Tests recovering text files, compressed and uncompressed.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void text() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            sb.append(i).append('\n');
+        }
+        String lines = sb.toString();
+        write("2013/ais-01-01.txt.tmp", "a\nb\nhalf a li".getBytes(StandardCharsets.UTF_8));
+        write("2013/ais-01-02.txt.gz.tmp", truncated(CompressionCodec.gzip(), "ais-01-02.txt", lines, 20));
+        write("2013/ais-01-03.txt.zip.tmp", truncated(CompressionCodec.zip(), "ais-01-03.txt", lines, 200));
+        write("2013/ais-01-04.txt.tmp", "no line feed".getBytes(StandardCharsets.UTF_8));
+        write("2013/other.txt.tmp", "not ours".getBytes(StandardCharsets.UTF_8));
+        write("2013/ais-01-05-1.txt.tmp", "c\nd".getBytes(StandardCharsets.UTF_8)); // renamed by PathUtil.findUnique
+
+        List<Path> recovered = ArchiveRecovery.recover(root, PATTERN, 2);
+        assertEquals(Arrays.asList(root.resolve("2013/ais-01-01.txt"), root.resolve("2013/ais-01-02.txt.gz"),
+                root.resolve("2013/ais-01-03.txt.zip"), root.resolve("2013/ais-01-05-1.txt")), recovered);
+        assertEquals("a,b", read(recovered.get(0)));
+        assertEquals("c", read(recovered.get(3)));
+        for (Path p : recovered.subList(1, 3)) {
+            String s = read(p);
+            assertTrue(s.startsWith("0,1,2,"));
+            // Only complete lines are kept
+            assertTrue(lines.startsWith(s.replace(',', '\n') + "\n"));
+        }
+        assertFalse(Files.exists(root.resolve("2013/ais-01-04.txt.tmp")));
+        assertTrue(Files.exists(root.resolve("2013/other.txt.tmp")));
+        try (Stream<Path> s = Files.list(root.resolve("2013"))) {
+            assertEquals(5, s.count());
+        }
+    }
+
+    /**
+     * Tests recovering a framed record file, where the last block is incomplete.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void framed() throws IOException {
+        FramedRecordSink<Long> sink = new FramedRecordSink<>(OutputStreamSink.TO_STRING_US_ASCII_SINK, l -> l, 100);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sink.header(bos);
+        for (long i = 0; i < 1000; i++) {
+            sink.process(bos, i, i);
+        }
+        // The writer crashed while writing a block
+        Path p = write("2013/ais-01-01.txt.tmp", Arrays.copyOf(bos.toByteArray(), bos.size() - 10));
+
+        Path recovered = ArchiveRecovery.recover(p);
+        assertEquals(root.resolve("2013/ais-01-01.txt"), recovered);
+        List<Long> messages = new ArrayList<>();
+        try (FramedRecordReader r = FramedRecordReader.open(recovered)) {
+            assertTrue(r.hasIndex());
+            for (Block b : r.getBlocks()) {
+                r.read(b, (payload, timestamp) -> messages.add(timestamp));
+            }
+        }
+        assertTrue(messages.size() > 900 && messages.size() < 1000);
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(i, messages.get(i).longValue());
+        }
+        // Recovering a complete file again does not change it
+        long size = Files.size(recovered);
+        assertEquals(size, ArchiveRecovery.truncate(recovered));
+    }
+
+    /**
+     * Tests recovering a compressed position file, where the last block is incomplete.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void positions() throws IOException {
+        ColumnarPositionSink<Long> sink = new ColumnarPositionSink<>(l -> (int) (l % 7), l -> l, l -> 55, l -> 10, 100);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (OutputStream os = CompressionCodec.gzip().wrap(bos, "ais-01-01.txt")) {
+            sink.header(os);
+            for (long i = 0; i < 1000; i++) {
+                sink.process(os, i, i);
+            }
+            os.write(new byte[50]); // half a block
+        }
+        Path p = write("2013/ais-01-01.txt.gz.tmp", Arrays.copyOf(bos.toByteArray(), bos.size() - 5));
+
+        Path recovered = ArchiveRecovery.recover(p);
+        assertEquals(root.resolve("2013/ais-01-01.txt.gz"), recovered);
+        List<Long> timestamps = new ArrayList<>();
+        try (InputStream in = CompressionCodec.gzip().decompress(Files.newInputStream(recovered))) {
+            ColumnarPositionReader.read(in, (m, t, lat, lon) -> timestamps.add(t));
+        }
+        assertEquals(1000, timestamps.size());
+        assertEquals(999, timestamps.get(999).longValue());
+    }
+
+    /**
+     * Tests that files left by a background compressor, or by an earlier recovery, are deleted.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void leftovers() throws IOException {
+        write("2013/ais-01-01.txt", "a\n".getBytes(StandardCharsets.UTF_8));
+        write("2013/ais-01-01.txt.gz.tmp", truncated(CompressionCodec.gzip(), "ais-01-01.txt", "a\n", 5));
+        write("2013/ais-01-02.txt.gz.tmp.123.recover", new byte[10]);
+        assertEquals(0, ArchiveRecovery.recover(root, PATTERN).size());
+        try (Stream<Path> s = Files.list(root.resolve("2013"))) {
+            assertEquals(Arrays.asList(root.resolve("2013/ais-01-01.txt")), s.collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Tests that a file left by a background compressor is deleted, also if the compressed file got a copy number
+     * because a file of that name already existed.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void leftoverCompressorCopy() throws IOException {
+        write("2013/ais-01-01.txt", "b\n".getBytes(StandardCharsets.UTF_8));
+        write("2013/ais-01-01.txt.gz", truncated(CompressionCodec.gzip(), "ais-01-01.txt", "a\n", 0));
+        write("2013/ais-01-01-1.txt.gz.compressing", truncated(CompressionCodec.gzip(), "ais-01-01.txt", "b\n", 5));
+        assertEquals(0, ArchiveRecovery.recover(root, PATTERN).size());
+        try (Stream<Path> s = Files.list(root.resolve("2013"))) {
+            assertEquals(Arrays.asList(root.resolve("2013/ais-01-01.txt"), root.resolve("2013/ais-01-01.txt.gz")),
+                    s.sorted().collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Tests that a message to file service recovers files when started, and hands them to its roll listeners.
+     *
+     * @throws IOException the io exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void onStartup() throws IOException {
+        write("2013/ais-01-01.txt.tmp", "a\nb".getBytes(StandardCharsets.UTF_8));
+        MessageToFileService<String> s = MessageToFileService.dateTimeService(root, PATTERN,
+                (OutputStreamSink) OutputStreamSink.TO_STRING_UTF8_SINK);
+        List<Path> rolled = new CopyOnWriteArrayList<>();
+        s.addRollListener(rolled::add);
+        assertFalse(s.isRecoverOnStartup());
+        s.setRecoverOnStartup(true);
+        s.startAsync().awaitRunning();
+        s.stopAsync().awaitTerminated();
+        assertEquals(Arrays.asList(root.resolve("2013/ais-01-01.txt")), rolled);
+        assertEquals("a", read(rolled.get(0)));
+    }
+}
@@ -0,0 +1,222 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link ArchiveRetentionService}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ArchiveRetentionServiceTest {
+
+    /** The current time used by the tests. */
+    static final long NOW = 1_400_000_000_000L;
+
+    /** The filename pattern of the archive, a file per day of the year. */
+    static final String PATTERN = "yyyy/DDD'.txt'";
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory of the archive. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    /** Returns the name of the file of the specified day of 2014. */
+    static String name(int day) {
+        return String.format("2014/%03d.txt", day);
+    }
+
+    /** Writes a file with the specified size, last modified the specified number of hours before {@link #NOW}. */
+    Path write(String name, int size, int hoursAgo) throws IOException {
+        Path p = root.resolve(name);
+        Files.createDirectories(p.getParent());
+        Files.write(p, new byte[size]);
+        Files.setLastModifiedTime(p, FileTime.fromMillis(NOW - TimeUnit.HOURS.toMillis(hoursAgo)));
+        return p;
+    }
+
+    /**
+     * Tests that the oldest files are deleted while the files use more than the quota.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void quota() throws IOException {
+        for (int i = 1; i <= 10; i++) {
+            write(name(i), 100, 11 - i);
+        }
+        write(name(11) + ".tmp", 1000, 20);
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, 650, Long.MAX_VALUE, TimeUnit.DAYS);
+        s.index();
+        assertEquals(10, s.getNumberOfFiles());
+        assertEquals(1000, s.getUsedBytes());
+        assertEquals(NOW - TimeUnit.HOURS.toMillis(10), s.getOldestFileTimestamp());
+
+        s.applyRetention(NOW);
+        assertEquals(6, s.getNumberOfFiles());
+        assertEquals(600, s.getUsedBytes());
+        assertEquals(4, s.getNumberOfDeletedFiles());
+        assertEquals(400, s.getDeletedBytes());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i >= 5, Files.exists(root.resolve(name(i))));
+        }
+        // Temporary files are never deleted
+        assertTrue(Files.exists(root.resolve(name(11) + ".tmp")));
+    }
+
+    /**
+     * Tests that files older than the maximum age are deleted.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void maxAge() throws IOException {
+        for (int i = 0; i < 48; i++) {
+            write(name(i + 1), 10, i);
+        }
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, Long.MAX_VALUE, 1, TimeUnit.DAYS);
+        s.index();
+        s.applyRetention(NOW);
+        assertEquals(25, s.getNumberOfFiles());
+        for (int i = 0; i < 48; i++) {
+            assertEquals(i <= 24, Files.exists(root.resolve(name(i + 1))));
+        }
+    }
+
+    /**
+     * Tests that rolled and compressed files are added to the index, without walking the directory tree.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void rollAndCompress() throws IOException {
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, Long.MAX_VALUE, Long.MAX_VALUE,
+                TimeUnit.DAYS);
+        s.index();
+        assertEquals(0, s.getNumberOfFiles());
+
+        Path p = write(name(1), 1000, 1);
+        s.accept(p);
+        s.accept(root.resolveSibling("elsewhere.txt"));
+        s.accept(write("2014/other.txt", 1000, 1));
+        s.drainPending();
+        assertEquals(1, s.getNumberOfFiles());
+        assertEquals(1000, s.getUsedBytes());
+
+        // The compressed file replaces the uncompressed file
+        BackgroundCompressor c = new BackgroundCompressor(CompressionCodec.gzip(), 1);
+        c.addCompressionListener(s);
+        Path gz = c.compress(p);
+        s.drainPending();
+        assertEquals(1, s.getNumberOfFiles());
+        assertEquals(Files.size(gz), s.getUsedBytes());
+
+        // Files deleted by somebody else before they are indexed are ignored
+        s.accept(write(name(2), 10, 1));
+        Files.delete(root.resolve(name(2)));
+        s.drainPending();
+        assertEquals(1, s.getNumberOfFiles());
+    }
+
+    /**
+     * Tests that a running service deletes files that are rolled, when they exceed the quota.
+     *
+     * @throws Exception the exception
+     */
+    @Test(timeout = 20000)
+    public void running() throws Exception {
+        write(name(1), 100, 5);
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, 150, Long.MAX_VALUE, TimeUnit.DAYS);
+        s.setMaxDeletedBytesPerSecond(100_000);
+        s.startAsync().awaitRunning();
+        assertEquals(1, s.getNumberOfFiles());
+        s.accept(write(name(2), 100, 1));
+        while (s.getNumberOfDeletedFiles() == 0) {
+            Thread.sleep(10);
+        }
+        s.stopAsync().awaitTerminated();
+        assertFalse(Files.exists(root.resolve(name(1))));
+        assertTrue(Files.exists(root.resolve(name(2))));
+        assertEquals(100, s.getUsedBytes());
+    }
+
+    /**
+     * Tests that files not matching the filename pattern, for example files of another writer sharing the root, are
+     * neither counted nor deleted.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void otherFiles() throws IOException {
+        write(name(1), 100, 3);
+        write("2014/002-0001.txt", 100, 2); // rolled on size
+        write("2014/002-0001-1.txt", 100, 2); // renamed by PathUtil.findUnique
+        write("2014/other.txt", 1000, 10);
+        write("2014/001.dat", 1000, 10);
+        write("other/001.txt", 1000, 10);
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, 0, Long.MAX_VALUE, TimeUnit.DAYS);
+        s.index();
+        assertEquals(3, s.getNumberOfFiles());
+        assertEquals(300, s.getUsedBytes());
+        s.applyRetention(NOW);
+        assertEquals(0, s.getNumberOfFiles());
+        assertEquals(300, s.getDeletedBytes());
+        assertTrue(Files.exists(root.resolve("2014/other.txt")));
+        assertTrue(Files.exists(root.resolve("2014/001.dat")));
+        assertTrue(Files.exists(root.resolve("other/001.txt")));
+    }
+
+    /**
+     * Tests that deletions are limited by the number of bytes deleted.
+     *
+     * @throws IOException the io exception
+     */
+    @Test(timeout = 20000)
+    public void rate() throws IOException {
+        for (int i = 1; i <= 4; i++) {
+            write(name(i), 1000, 5 - i);
+        }
+        ArchiveRetentionService s = new ArchiveRetentionService(root, PATTERN, 0, Long.MAX_VALUE, TimeUnit.DAYS);
+        s.setMaxDeletedBytesPerSecond(4000);
+        s.index();
+        long start = System.nanoTime();
+        s.applyRetention(NOW);
+        // The first file is deleted immediately, the next three each wait for 1000 bytes at 4000 bytes per second
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(600));
+        assertEquals(4, s.getNumberOfDeletedFiles());
+    }
+}
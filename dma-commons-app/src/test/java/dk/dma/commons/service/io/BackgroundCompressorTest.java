@@ -0,0 +1,131 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link BackgroundCompressor}.
+ *
+ * @author Kasper Nielsen
+ */
+public class BackgroundCompressorTest {
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory to write to. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    List<String> files() throws IOException {
+        try (Stream<Path> st = Files.list(root)) {
+            return st.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Tests that files are replaced by compressed files, and that stopping the compressor waits for the backlog.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void compress() throws IOException {
+        BackgroundCompressor c = new BackgroundCompressor(CompressionCodec.gzip(), 2);
+        c.startAsync().awaitRunning();
+        byte[][] data = new byte[5][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ParallelGzipOutputStreamTest.data(100_000 * (i + 1));
+            Files.write(root.resolve("f" + i + ".txt"), data[i]);
+            c.accept(root.resolve("f" + i + ".txt"));
+        }
+        c.stopAsync().awaitTerminated();
+        assertEquals(0, c.getBacklog());
+        assertEquals(5, c.getNumberOfCompressedFiles());
+        assertEquals(Arrays.asList("f0.txt.gz", "f1.txt.gz", "f2.txt.gz", "f3.txt.gz", "f4.txt.gz"), files());
+        for (int i = 0; i < data.length; i++) {
+            assertArrayEquals(data[i],
+                    ParallelGzipOutputStreamTest.gunzip(Files.readAllBytes(root.resolve("f" + i + ".txt.gz"))));
+        }
+
+        // Stopped, the file is left as it is
+        Files.write(root.resolve("late.txt"), data[0]);
+        c.accept(root.resolve("late.txt"));
+        assertEquals(0, c.getBacklog());
+        assertTrue(Files.exists(root.resolve("late.txt")));
+    }
+
+    /**
+     * Tests that a file that cannot be compressed is counted as a failure, and that no temporary file is left behind.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void failure() throws IOException {
+        BackgroundCompressor c = new BackgroundCompressor(CompressionCodec.gzip(), 1);
+        c.startAsync().awaitRunning();
+        c.accept(root.resolve("missing.txt"));
+        c.stopAsync().awaitTerminated();
+        assertEquals(1, c.getNumberOfFailures());
+        assertEquals(0, c.getNumberOfCompressedFiles());
+        assertTrue(files().isEmpty());
+    }
+
+    /**
+     * Tests a message to file service that compresses files in the background.
+     *
+     * @throws IOException the io exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void messageToFileService() throws IOException {
+        BackgroundCompressor c = new BackgroundCompressor(CompressionCodec.gzip(), 1);
+        c.startAsync().awaitRunning();
+        MessageToFileService<Integer> s = MessageToFileService.dateTimeAndSizeService(root, "'ais.txt'",
+                (OutputStreamSink) OutputStreamSink.TO_STRING_US_ASCII_SINK, 100);
+        s.compressInBackground(c);
+        s.handleMessages(Arrays.asList(1000, 1001, 1002, 1003, 1004, 1005, 1006, 1007, 1008, 1009, 1010, 1011, 1012,
+                1013, 1014, 1015, 1016, 1017, 1018, 1019, 1020, 1021));
+        s.onShutdown();
+        c.stopAsync().awaitTerminated();
+        assertEquals(Arrays.asList("ais-0000.txt.gz", "ais-0001.txt.gz"), files());
+        assertFalse(new String(ParallelGzipOutputStreamTest.gunzip(Files.readAllBytes(root.resolve("ais-0001.txt.gz"))),
+                "US-ASCII").isEmpty());
+    }
+}
@@ -0,0 +1,234 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ColumnarPositionSink} and {@link ColumnarPositionReader}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ColumnarPositionSinkTest {
+
+    /** Creates a new sink with the specified block size. */
+    static ColumnarPositionSink<Pos> sink(int blockSize) {
+        return new ColumnarPositionSink<>(p -> p.mmsi, p -> p.timestamp, p -> p.latitude, p -> p.longitude, blockSize);
+    }
+
+    /** Returns positions of 100 ships sailing around, reporting every few seconds. */
+    static List<Pos> positions(int count) {
+        Random r = new Random(4);
+        double[] lat = new double[100];
+        double[] lon = new double[100];
+        for (int i = 0; i < 100; i++) {
+            lat[i] = 54 + r.nextDouble() * 4;
+            lon[i] = 8 + r.nextDouble() * 7;
+        }
+        List<Pos> result = new ArrayList<>();
+        long timestamp = 1_356_998_400_000L;
+        for (int i = 0; i < count; i++) {
+            int ship = r.nextInt(100);
+            lat[ship] += r.nextGaussian() / 10000;
+            lon[ship] += r.nextGaussian() / 10000;
+            timestamp += r.nextInt(100);
+            result.add(new Pos(219_000_000 + ship * 1013, timestamp, lat[ship], lon[ship]));
+        }
+        return result;
+    }
+
+    /** Writes the specified positions to a byte array. */
+    static byte[] write(ColumnarPositionSink<Pos> sink, List<Pos> positions) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sink.header(bos);
+        sink.processAll(bos, positions, 0);
+        sink.footer(bos, positions.size());
+        return bos.toByteArray();
+    }
+
+    static void assertPositions(List<Pos> expected, List<Pos> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Pos e = expected.get(i);
+            Pos a = actual.get(i);
+            assertEquals(e.mmsi, a.mmsi);
+            assertEquals(e.timestamp, a.timestamp);
+            assertEquals(e.latitude, a.latitude, 0.6 / ColumnarPositionSink.SCALE);
+            assertEquals(e.longitude, a.longitude, 0.6 / ColumnarPositionSink.SCALE);
+        }
+    }
+
+    /**
+     * Tests that positions are read back, from a buffer and from a stream, across several blocks.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        List<Pos> positions = new ArrayList<>(positions(1050));
+        // Extreme values, and timestamps going backwards
+        positions.add(new Pos(0, 0, -90, -180));
+        positions.add(new Pos(Integer.MAX_VALUE, Long.MAX_VALUE / 2, 90, 180));
+        positions.add(new Pos(-1, 5, -90, 180));
+        positions.add(new Pos(1, 5, 0.00000005, -0.00000005));
+        byte[] bytes = write(sink(100), positions);
+
+        List<Pos> read = new ArrayList<>();
+        ColumnarPositionReader.read(ByteBuffer.wrap(bytes), (m, t, lat, lon) -> read.add(new Pos(m, t, lat, lon)));
+        assertPositions(positions, read);
+
+        read.clear();
+        ColumnarPositionReader.read(new ByteArrayInputStream(bytes), (m, t, lat, lon) -> read.add(new Pos(m, t, lat,
+                lon)));
+        assertPositions(positions, read);
+
+        read.clear();
+        ColumnarPositionReader.<Pos> source(Pos::new).read(ByteBuffer.wrap(bytes), read::add);
+        assertPositions(positions, read);
+
+        // An empty file only has a header
+        assertEquals(ColumnarPositionSink.HEADER_SIZE, write(sink(100), new ArrayList<>()).length);
+    }
+
+    /**
+     * Tests reading a time range.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void range() throws IOException {
+        List<Pos> positions = positions(5000);
+        byte[] bytes = write(sink(256), positions);
+        long from = positions.get(1234).timestamp;
+        long to = positions.get(3210).timestamp;
+        List<Pos> expected = new ArrayList<>();
+        for (Pos p : positions) {
+            if (p.timestamp >= from && p.timestamp < to) {
+                expected.add(p);
+            }
+        }
+        List<Pos> read = new ArrayList<>();
+        ColumnarPositionReader.read(ByteBuffer.wrap(bytes), from, to, (m, t, lat, lon) -> read.add(new Pos(m, t, lat,
+                lon)));
+        assertPositions(expected, read);
+        read.clear();
+        ColumnarPositionReader.read(new ByteArrayInputStream(bytes), from, to, (m, t, lat, lon) -> read.add(new Pos(m,
+                t, lat, lon)));
+        assertPositions(expected, read);
+    }
+
+    /**
+     * Tests that the format is much smaller than the same positions as text.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void size() throws IOException {
+        List<Pos> positions = positions(100_000);
+        long text = 0;
+        for (Pos p : positions) {
+            text += (p.mmsi + "," + p.timestamp + "," + p.latitude + "," + p.longitude + "\n")
+                    .getBytes(StandardCharsets.US_ASCII).length;
+        }
+        long columnar = write(sink(ColumnarPositionSink.DEFAULT_BLOCK_SIZE), positions).length;
+        assertTrue("text = " + text + ", columnar = " + columnar, columnar * 6 < text);
+    }
+
+    /**
+     * Tests that corrupt and truncated files are detected.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void corrupt() throws IOException {
+        byte[] bytes = write(sink(100), positions(1000));
+        byte[] flipped = bytes.clone();
+        flipped[bytes.length / 2] ^= 1;
+        try {
+            ColumnarPositionReader.read(ByteBuffer.wrap(flipped), (m, t, lat, lon) -> {});
+            fail("Should throw");
+        } catch (IOException ok) {}
+        try {
+            ColumnarPositionReader.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3)), (m, t, lat,
+                    lon) -> {});
+            fail("Should throw");
+        } catch (EOFException ok) {}
+        try {
+            ColumnarPositionReader.read(ByteBuffer.wrap(new byte[20]), (m, t, lat, lon) -> {});
+            fail("Should throw");
+        } catch (IOException ok) {}
+
+        // Only the blocks before the flipped byte are valid
+        long valid = ColumnarPositionReader.validLength(new ByteArrayInputStream(flipped), flipped.length);
+        assertTrue(valid > ColumnarPositionSink.HEADER_SIZE && valid <= bytes.length / 2);
+        assertEquals(bytes.length, ColumnarPositionReader.validLength(new ByteArrayInputStream(bytes), bytes.length));
+    }
+
+    /**
+     * Tests that positions that cannot be stored, such as the positions AIS uses for not available, are skipped.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void invalidCoordinates() throws IOException {
+        List<Pos> positions = new ArrayList<>();
+        for (double d : new double[] { Double.NaN, 90.1, 91, -91, Double.POSITIVE_INFINITY }) {
+            positions.add(new Pos(1, 1, d, 0));
+        }
+        for (double d : new double[] { Double.NaN, 180.1, 181, -181, Double.NEGATIVE_INFINITY }) {
+            positions.add(new Pos(1, 1, 0, d));
+        }
+        positions.add(new Pos(1, 1, -90, 180));
+        positions.add(new Pos(2, 2, 91, 181));
+        positions.add(new Pos(3, 3, 90, -180));
+        ColumnarPositionSink<Pos> sink = sink(100);
+        byte[] bytes = write(sink, positions);
+        assertEquals(11, sink.getNumberOfSkippedPositions());
+
+        List<Pos> read = new ArrayList<>();
+        ColumnarPositionReader.read(ByteBuffer.wrap(bytes), (m, t, lat, lon) -> read.add(new Pos(m, t, lat, lon)));
+        assertPositions(Arrays.asList(new Pos(1, 1, -90, 180), new Pos(3, 3, 90, -180)), read);
+    }
+
+    /** A position. */
+    static final class Pos {
+        final double latitude;
+        final double longitude;
+        final int mmsi;
+        final long timestamp;
+
+        Pos(int mmsi, long timestamp, double latitude, double longitude) {
+            this.mmsi = mmsi;
+            this.timestamp = timestamp;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import dk.dma.commons.util.io.IoUtil;
+
+/**
+ * Compares the throughput of writing AIS sized messages through a {@link RollingOutputStream} with each
+ * {@link FlushMode}, to both plain and zip files, using both the stream and the file channel backend. Not run as part of
+ * the build, start it manually with an optional directory to write to as argument.
+ *
+ * @author Kasper Nielsen
+ */
+public class FlushModeBenchmark {
+
+    /** The number of messages to write. */
+    static final int MESSAGES = 1_000_000;
+
+    /** The number of messages in each batch, the same as the batch size of MessageToFileService. */
+    static final int BATCH_SIZE = 100;
+
+    /** A typical message. */
+    static final byte[] MESSAGE = "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args an optional directory to write to
+     * @throws Exception the exception
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length == 0 ? Files.createTempDirectory("flushbench") : Files.createDirectories(
+                java.nio.file.Paths.get(args[0]));
+        for (boolean useFileChannel : new boolean[] { false, true }) {
+            for (String suffix : new String[] { ".txt", ".zip" }) {
+                for (FlushMode mode : FlushMode.values()) {
+                    run(dir, mode, suffix, useFileChannel); // warmup
+                    run(dir, mode, suffix, useFileChannel);
+                }
+            }
+        }
+        System.out.println("Total size of " + dir + " " + IoUtil.recursiveSizeOf(dir) / 1024 / 1024 + " MB");
+    }
+
+    static void run(Path dir, FlushMode mode, String suffix, boolean useFileChannel) throws Exception {
+        Path p = dir.resolve("bench-" + mode + suffix);
+        long start = System.nanoTime();
+        long lastFlush = start;
+        try (RollingOutputStream ros = new RollingOutputStream()) {
+            ros.setFlushMode(mode);
+            ros.setUseFileChannel(useFileChannel);
+            ros.roll(p);
+            for (int i = 0; i < MESSAGES; i += BATCH_SIZE) {
+                for (int j = 0; j < BATCH_SIZE; j++) {
+                    ros.getPublicStream().write(MESSAGE);
+                }
+                if (mode == FlushMode.PER_BATCH) {
+                    ros.flush();
+                } else if (mode == FlushMode.INTERVAL && System.nanoTime() - lastFlush >= TimeUnit.SECONDS.toNanos(1)) {
+                    ros.flush();
+                    lastFlush = System.nanoTime();
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-7s %-10s %s %8.0f msg/s %6.1f MB/s file=%d KB%n", useFileChannel ? "channel" : "stream",
+                mode, suffix, MESSAGES / seconds,
+                (double) MESSAGES * MESSAGE.length / seconds / 1024 / 1024, Files.size(p) / 1024);
+        Files.delete(p);
+    }
+}
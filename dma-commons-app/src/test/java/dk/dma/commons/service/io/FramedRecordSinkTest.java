@@ -0,0 +1,210 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dk.dma.commons.service.io.FramedRecordReader.Block;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link FramedRecordSink} and {@link FramedRecordReader}.
+ *
+ * @author Kasper Nielsen
+ */
+public class FramedRecordSinkTest {
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory to write to. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    static FramedRecordSink<Long> sink(int blockSize) {
+        return new FramedRecordSink<>(OutputStreamSink.TO_STRING_US_ASCII_SINK, l -> l, blockSize);
+    }
+
+    /** Writes the messages 0 to count - 1, with the message as timestamp. */
+    Path write(int count, boolean footer) throws IOException {
+        Path p = root.resolve("f" + count + footer);
+        FramedRecordSink<Long> sink = sink(1000);
+        try (OutputStream os = Files.newOutputStream(p)) {
+            sink.header(os);
+            for (long i = 0; i < count; i++) {
+                sink.process(os, i, i);
+            }
+            if (footer) {
+                sink.footer(os, count);
+            }
+        }
+        return p;
+    }
+
+    static List<Long> readAll(FramedRecordReader r, List<Block> blocks, long from, long to) throws IOException {
+        List<Long> result = new ArrayList<>();
+        for (Block b : blocks) {
+            r.read(b, from, to, (payload, timestamp) -> {
+                String s = StandardCharsets.US_ASCII.decode(payload).toString();
+                assertEquals(timestamp + "\n", s);
+                result.add(timestamp);
+            });
+        }
+        return result;
+    }
+
+    static List<Long> range(long from, long to) {
+        List<Long> result = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * Tests reading all records, and records within a time range using the index.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void readWithIndex() throws IOException {
+        try (FramedRecordReader r = FramedRecordReader.open(write(10_000, true))) {
+            assertTrue(r.getBlocks().size() > 10);
+            assertEquals(10_000, r.getBlocks().stream().mapToInt(Block::getRecordCount).sum());
+            assertEquals(range(0, 10_000), readAll(r, r.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE));
+
+            List<Block> blocks = r.getBlocks(5000, 5100);
+            assertTrue(blocks.size() < 5);
+            assertEquals(range(5000, 5100), readAll(r, blocks, 5000, 5100));
+            assertTrue(r.getBlocks(-100, 0).isEmpty());
+            // The last block is always included, as only the first timestamp of each block is known
+            assertEquals(1, r.getBlocks(20_000, 30_000).size());
+        }
+        try (FramedRecordReader r = FramedRecordReader.open(write(0, true))) {
+            assertTrue(r.getBlocks().isEmpty());
+        }
+    }
+
+    /**
+     * Tests that the blocks of a file that was not closed properly are found by scanning.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void readWithoutIndex() throws IOException {
+        Path p = write(10_000, false);
+        // Chop of the end of the last block, as if the writer crashed
+        byte[] bytes = Files.readAllBytes(p);
+        Files.write(p, Arrays.copyOf(bytes, bytes.length - 10));
+        try (FramedRecordReader r = FramedRecordReader.open(p)) {
+            List<Long> all = readAll(r, r.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE);
+            assertTrue(all.size() > 9000);
+            assertEquals(range(0, all.size()), all);
+        }
+    }
+
+    /**
+     * Tests that a corrupt record is detected.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void corruptRecord() throws IOException {
+        Path p = write(100, true);
+        byte[] bytes = Files.readAllBytes(p);
+        bytes[FramedRecordSink.HEADER_SIZE + FramedRecordSink.BLOCK_HEADER_SIZE + 12] ^= 1;
+        Files.write(p, bytes);
+        try (FramedRecordReader r = FramedRecordReader.open(p)) {
+            r.read(r.getBlocks().get(0), (ByteBuffer b, long t) -> {});
+            fail("Should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum"));
+        }
+    }
+
+    /**
+     * Tests that a message to file service writes the header and footer of each file.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void messageToFileService() throws IOException {
+        MessageToFileService<Long> s = MessageToFileService.dateTimeAndSizeService(root, "'ais.dat'", sink(100),
+                2000);
+        List<Long> messages = range(0, 1000);
+        s.handleMessages(messages);
+        s.onShutdown();
+        List<Path> files;
+        try (Stream<Path> st = Files.list(root)) {
+            files = st.sorted().collect(Collectors.toList());
+        }
+        assertTrue(files.size() > 2);
+        List<Long> all = new ArrayList<>();
+        for (Path p : files) {
+            try (FramedRecordReader r = FramedRecordReader.open(p)) {
+                all.addAll(readAll(r, r.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE));
+            }
+        }
+        assertEquals(messages, all);
+    }
+
+    /**
+     * Tests that records buffered by the sink are written as a block, when a message to file service flushes the file.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void flush() throws IOException {
+        MessageToFileService<Long> s = MessageToFileService.dateTimeService(root, "'ais.dat'",
+                sink(FramedRecordSink.DEFAULT_BLOCK_SIZE));
+        s.setFlushMode(FlushMode.PER_BATCH);
+        s.handleMessages(range(0, 10));
+        Path tmp = root.resolve("ais.dat.tmp");
+        try (FramedRecordReader r = FramedRecordReader.open(tmp)) {
+            assertEquals(range(0, 10), readAll(r, r.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+        s.handleMessages(range(10, 20));
+        s.onShutdown();
+        try (FramedRecordReader r = FramedRecordReader.open(root.resolve("ais.dat"))) {
+            assertEquals(2, r.getBlocks().size());
+            assertEquals(range(0, 20), readAll(r, r.getBlocks(), Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+}
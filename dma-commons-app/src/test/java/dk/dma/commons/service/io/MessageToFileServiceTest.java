@@ -14,9 +14,18 @@
  */
 package dk.dma.commons.service.io;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -45,4 +54,64 @@ public class MessageToFileServiceTest {
         s.ros.flush();
         s.stopAsync();
     }
+
+    /**
+     * Tests that a new file, with the next sequence number, is started when the current file reaches the maximum size.
+     *
+     * @throws IOException the io exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testRollOnSize() throws IOException {
+        Path root = Files.createTempDirectory("rollonsize");
+        try {
+            MessageToFileService<Integer> s = MessageToFileService.dateTimeAndSizeService(root, "'ais.txt'",
+                    (OutputStreamSink) OutputStreamSink.TO_STRING_US_ASCII_SINK, 100);
+            List<Integer> messages = new ArrayList<>();
+            for (int i = 1000; i < 1100; i++) { // 5 bytes each
+                messages.add(i);
+            }
+            s.handleMessages(messages.subList(0, 50));
+            s.handleMessages(messages.subList(50, 100));
+            s.onShutdown();
+
+            List<Path> files;
+            try (Stream<Path> st = Files.list(root)) {
+                files = st.sorted().collect(Collectors.toList());
+            }
+            assertEquals(5, files.size());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(String.format("ais-%04d.txt", i), files.get(i).getFileName().toString());
+                assertEquals(100, Files.size(files.get(i)));
+                sb.append(new String(Files.readAllBytes(files.get(i)), "US-ASCII"));
+            }
+            assertEquals(messages.stream().map(i -> i + "\n").collect(Collectors.joining()), sb.toString());
+
+            // A new service in the same period continues after the existing sequence numbers
+            s = MessageToFileService.dateTimeAndSizeService(root, "'ais.txt'",
+                    (OutputStreamSink) OutputStreamSink.TO_STRING_US_ASCII_SINK, 100);
+            s.handleMessages(Arrays.asList(1));
+            s.onShutdown();
+            assertTrue(Files.exists(root.resolve("ais-0005.txt")));
+
+            // Sequence numbers of files that have been compressed, or are being written or recovered, are skipped
+            Files.move(root.resolve("ais-0003.txt"), root.resolve("ais-0003.txt.gz"));
+            Files.move(root.resolve("ais-0004.txt"), root.resolve("ais-0004.txt.tmp"));
+            Files.move(root.resolve("ais-0005.txt"), root.resolve("ais-0005.txt.tmp.123.recover"));
+            Files.write(root.resolve("ais-0006.txt.gz.tmp"), new byte[0]);
+            s = MessageToFileService.dateTimeAndSizeService(root, "'ais.txt'",
+                    (OutputStreamSink) OutputStreamSink.TO_STRING_US_ASCII_SINK, 100);
+            s.handleMessages(Arrays.asList(1));
+            s.onShutdown();
+            assertTrue(Files.exists(root.resolve("ais-0007.txt")));
+        } finally {
+            try (Stream<Path> st = Files.list(root)) {
+                for (Path p : (Iterable<Path>) st::iterator) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(root);
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests {@link ParallelGzipOutputStream}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ParallelGzipOutputStreamTest {
+
+    /** The executor to compress in. */
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    /** Shuts down the executor. */
+    @After
+    public void after() {
+        executor.shutdown();
+    }
+
+    static byte[] data(int size) {
+        Random r = new Random(size);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+        while (bos.size() < size) {
+            String s = "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*" + r.nextInt(100) + "\r\n";
+            bos.write(s.getBytes(StandardCharsets.US_ASCII), 0, Math.min(s.length(), size - bos.size()));
+        }
+        return bos.toByteArray();
+    }
+
+    static byte[] gunzip(byte[] compressed) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    byte[] gzip(byte[] data, int chunk, int flushEvery) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream os = new ParallelGzipOutputStream(bos, executor, 32 * 1024,
+                Deflater.DEFAULT_COMPRESSION)) {
+            for (int i = 0, writes = 0; i < data.length; i += chunk) {
+                if (chunk == 1) {
+                    os.write(data[i]);
+                } else {
+                    os.write(data, i, Math.min(chunk, data.length - i));
+                }
+                if (flushEvery > 0 && ++writes % flushEvery == 0) {
+                    os.flush();
+                }
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Tests that the output can be read by {@link GZIPInputStream} for different sizes and write patterns.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        for (int size : new int[] { 0, 1, 32 * 1024 - 1, 32 * 1024, 32 * 1024 + 1, 3 * 32 * 1024, 1_000_003 }) {
+            byte[] data = data(size);
+            assertArrayEquals(data, gunzip(gzip(data, 1, 0)));
+            assertArrayEquals(data, gunzip(gzip(data, 1000, 0)));
+            assertArrayEquals(data, gunzip(gzip(data, 100_000, 0)));
+            assertArrayEquals(data, gunzip(gzip(data, 777, 13)));
+        }
+    }
+
+    /**
+     * Tests that using the previous block as dictionary keeps the compression ratio close to that of a single
+     * deflater.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void compressionRatio() throws IOException {
+        byte[] data = data(4_000_000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+            os.write(data);
+        }
+        int parallel = gzip(data, 8192, 0).length;
+        assertTrue(parallel + " vs " + bos.size(), parallel < bos.size() * 1.05);
+    }
+
+    /**
+     * Tests that the codecs write files that can be read back.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void codecs() throws IOException {
+        byte[] data = data(300_000);
+        for (CompressionCodec c : new CompressionCodec[] { CompressionCodec.gzip(), CompressionCodec.parallelGzip(),
+                CompressionCodec.parallelGzip(executor, 64 * 1024, Deflater.BEST_SPEED) }) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (java.io.OutputStream os = c.wrap(bos, "foo")) {
+                os.write(data);
+            }
+            assertArrayEquals(data, gunzip(bos.toByteArray()));
+        }
+    }
+
+    /** Tests that a too small block size is rejected. */
+    @Test(expected = IllegalArgumentException.class)
+    public void blockSizeTooSmall() {
+        CompressionCodec.parallelGzip(executor, 1024, Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -0,0 +1,203 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import dk.dma.commons.service.io.ParallelMergeReader.Producer;
+
+/**
+ * Tests {@link ParallelMergeReader}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ParallelMergeReaderTest {
+
+    static Producer<Integer> range(int start, int end, int step) {
+        return c -> {
+            for (int i = start; i < end; i += step) {
+                c.accept(i);
+            }
+        };
+    }
+
+    /**
+     * Merges sources with small chunks and buffers, so the reading threads have to wait for the merging thread.
+     */
+    @Test
+    public void merge() {
+        List<Producer<Integer>> producers = Arrays.asList(range(0, 10_000, 3), range(1, 10_000, 3),
+                range(2, 10_000, 3), range(0, 0, 1));
+        try (ParallelMergeReader<Integer> r = new ParallelMergeReader<>(producers, Comparator.naturalOrder(), 7, 2)) {
+            for (int i = 0; i < 10_000; i++) {
+                assertEquals(i, r.next().intValue());
+            }
+            assertFalse(r.hasNext());
+        }
+        try (ParallelMergeReader<Integer> r = new ParallelMergeReader<>(new ArrayList<Producer<Integer>>(),
+                Comparator.naturalOrder())) {
+            assertFalse(r.hasNext());
+        }
+    }
+
+    /**
+     * Tests that the failure of a source is thrown once the messages read before the failure have been returned.
+     */
+    @Test
+    public void failure() {
+        Producer<Integer> failing = c -> {
+            c.accept(1);
+            throw new IOException("failed");
+        };
+        try (ParallelMergeReader<Integer> r = new ParallelMergeReader<>(Arrays.asList(range(0, 10, 2), failing),
+                Comparator.naturalOrder(), 1, 1)) {
+            assertEquals(0, r.next().intValue());
+            assertEquals(1, r.next().intValue());
+            r.next();
+            fail("Expected failure");
+        } catch (UncheckedIOException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Tests that closing the reader stops sources waiting for the merging thread.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test
+    public void close() throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        ParallelMergeReader<Integer> r = new ParallelMergeReader<>(Arrays.asList(endless(stopped)),
+                Comparator.naturalOrder(), 10, 2);
+        assertEquals(0, r.next().intValue());
+        r.close();
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        assertFalse(r.hasNext());
+    }
+
+    /**
+     * Tests that a failing source closes the reader, stopping the other sources.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test
+    public void failureCloses() throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        Producer<Integer> failing = c -> {
+            throw new IOException("failed");
+        };
+        ParallelMergeReader<Integer> r = new ParallelMergeReader<>(Arrays.asList(endless(stopped), failing),
+                Comparator.naturalOrder(), 10, 2);
+        try {
+            r.hasNext();
+            fail("Expected failure");
+        } catch (UncheckedIOException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        assertFalse(r.hasNext());
+    }
+
+    /**
+     * Tests that the sources of a reader that is garbage collected without being closed are stopped.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test
+    public void abandoned() throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        new ParallelMergeReader<>(Arrays.asList(endless(stopped)), Comparator.naturalOrder(), 10, 2).next();
+        for (int i = 0; i < 100 && stopped.getCount() > 0; i++) {
+            System.gc();
+            stopped.await(100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(0, stopped.getCount());
+    }
+
+    /** Returns a source producing messages until it is stopped, then counts down the latch. */
+    static Producer<Integer> endless(CountDownLatch stopped) {
+        return c -> {
+            try {
+                for (int i = 0;; i++) {
+                    c.accept(i);
+                }
+            } finally {
+                stopped.countDown();
+            }
+        };
+    }
+
+    /**
+     * Merges the archives of two directories.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void archive() throws IOException {
+        Path root = Files.createTempDirectory("merge");
+        try {
+            String pattern = "'ais'-yyyy'.txt'";
+            write(root.resolve("a/ais-2013.txt"), "1", "4", "5");
+            write(root.resolve("a/ais-2014.txt"), "8");
+            write(root.resolve("b/ais-2013.txt"), "2", "3", "6");
+            write(root.resolve("b/ais-2014.txt"), "7", "9");
+            InputStreamSource<Integer> source = InputStreamSource.lines(StandardCharsets.UTF_8, Integer::valueOf);
+            List<Producer<Integer>> producers = Arrays.asList(
+                    ParallelMergeReader.archive(root.resolve("a"), pattern, source),
+                    ParallelMergeReader.archive(root.resolve("b"), pattern, source));
+            List<Integer> result = new ArrayList<>();
+            try (ParallelMergeReader<Integer> r = new ParallelMergeReader<>(producers, Comparator.naturalOrder())) {
+                r.forEachRemaining(result::add);
+            }
+            assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9), result);
+        } finally {
+            try (Stream<Path> st = Files.walk(root)) {
+                for (Path p : st.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    static void write(Path p, String... lines) throws IOException {
+        Files.createDirectories(p.getParent());
+        try (OutputStream os = Files.newOutputStream(p)) {
+            for (String s : lines) {
+                os.write((s + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
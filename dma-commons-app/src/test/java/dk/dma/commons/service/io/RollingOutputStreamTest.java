@@ -15,6 +15,7 @@
 package dk.dma.commons.service.io;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -22,6 +23,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -112,4 +115,96 @@ public class RollingOutputStreamTest {
             Files.delete(p2);
         }
     }
+
+    /**
+     * Tests that data is only flushed when requested, if not flushing per write.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void testFlushMode() throws IOException {
+        Path p = Files.createTempFile("aaa", "bbb");
+        Files.delete(p);// delete it again
+        Path tmpP = Paths.get(p.toAbsolutePath().toString() + ".tmp"); // the temp file
+        try {
+            try (RollingOutputStream ros = new RollingOutputStream()) {
+                ros.setFlushMode(FlushMode.PER_BATCH);
+                ros.roll(p);
+                ros.getPublicStream().write(new byte[] { 1, 2, 3 });
+                assertEquals(0, Files.size(tmpP));
+                ros.flush();
+                assertEquals(3, Files.size(tmpP));
+                assertEquals(3, ros.getCurrentFileBytesWritten());
+
+                ros.setFlushMode(FlushMode.PER_WRITE);
+                ros.getPublicStream().write(new byte[] { 4, 5 });
+                assertEquals(5, Files.size(tmpP));
+            }
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, Files.readAllBytes(p));
+        } finally {
+            Files.delete(p);
+        }
+    }
+
+    /**
+     * Tests the file channel backend with both small writes and writes larger than the buffer.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void testFileChannel() throws IOException {
+        Path p = Files.createTempFile("aaa", "bbb");
+        Files.delete(p);// delete it again
+        byte[] big = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(big);
+        try {
+            try (RollingOutputStream ros = new RollingOutputStream()) {
+                ros.setUseFileChannel(true);
+                ros.setFlushMode(FlushMode.OS);
+                ros.roll(p);
+                ros.write(1);
+                ros.write(new byte[] { 2, 3 });
+                assertEquals(0, ros.getCurrentFileBytesWritten()); // only counted when written to the file
+                ros.write(big);
+                assertEquals(big.length + 3, ros.getCurrentFileBytesWritten());
+                ros.write(4);
+            }
+            byte[] result = Files.readAllBytes(p);
+            assertEquals(big.length + 4, result.length);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Arrays.copyOf(result, 3));
+            assertArrayEquals(big, Arrays.copyOfRange(result, 3, big.length + 3));
+            assertEquals(4, result[result.length - 1]);
+        } finally {
+            Files.delete(p);
+        }
+    }
+
+    /**
+     * Tests that gzip files are written with the gzip codec by default, or with the codec that has been set.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void testCompressionCodec() throws IOException {
+        Path p = Files.createTempFile("aaa", ".gz");
+        Files.delete(p);// delete it again
+        byte[] data = ParallelGzipOutputStreamTest.data(1_000_000);
+        try {
+            for (CompressionCodec codec : new CompressionCodec[] { null, CompressionCodec.parallelGzip() }) {
+                try (RollingOutputStream ros = new RollingOutputStream()) {
+                    ros.setCompressionCodec(codec);
+                    ros.setFlushMode(FlushMode.PER_BATCH);
+                    ros.roll(p);
+                    for (int i = 0; i < data.length; i += 1000) {
+                        ros.getPublicStream().write(data, i, 1000);
+                    }
+                }
+                assertTrue(Files.size(p) < data.length / 10);
+                assertArrayEquals(data, ParallelGzipOutputStreamTest.gunzip(Files.readAllBytes(p)));
+                Files.delete(p);
+            }
+        } finally {
+            Files.deleteIfExists(p);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link ShardedMessageToFileService}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardedMessageToFileServiceTest {
+
+    /** Deletes the directory, and everything written to it, after each test. */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The directory to write to. */
+    Path root;
+
+    /** Uses the temporary folder as the directory. */
+    @Before
+    public void before() {
+        root = folder.getRoot().toPath();
+    }
+
+    /**
+     * Tests that the messages of each key are written, in order, to the files of the key.
+     *
+     * @throws Exception the exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test(timeout = 20000)
+    public void perKey() throws Exception {
+        OutputStreamSink<String> sink = (OutputStreamSink) OutputStreamSink.TO_STRING_UTF8_SINK;
+        ShardedMessageToFileService<String> s = ShardedMessageToFileService.dateTimeService(root, "'ais.txt'",
+                () -> sink, m -> m.substring(0, m.indexOf(':')), 3);
+        s.startAsync().awaitRunning();
+        for (int i = 0; i < 10_000; i++) {
+            s.getInputQueue().put("bs" + i % 20 + ":" + i);
+        }
+        while (s.getReplicaMessagesProcessed() < 10_000) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, s.getNumberOfKeys());
+        assertEquals(20, s.getFiles().size());
+        s.stopAsync().awaitTerminated();
+
+        for (int k = 0; k < 20; k++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = k; i < 10_000; i += 20) {
+                expected.add("bs" + k + ":" + i);
+            }
+            assertEquals(expected, Files.readAllLines(root.resolve("bs" + k + "/ais.txt"), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Tests that the temporary files of all keys are recovered when the service starts, and handed to the roll
+     * listeners together with the files closed by the file service of each key.
+     *
+     * @throws Exception the exception
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test(timeout = 20000)
+    public void recoverOnStartup() throws Exception {
+        Files.createDirectories(root.resolve("bs1"));
+        Files.createDirectories(root.resolve("bs2"));
+        Files.write(root.resolve("bs1/ais.txt.tmp"), "a\nb".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("bs2/ais.txt.tmp"), "c\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("bs2/other.txt.tmp"), "not ours".getBytes(StandardCharsets.UTF_8));
+
+        OutputStreamSink<String> sink = (OutputStreamSink) OutputStreamSink.TO_STRING_UTF8_SINK;
+        ShardedMessageToFileService<String> s = ShardedMessageToFileService.dateTimeService(root, "'ais.txt'",
+                () -> sink, m -> m.substring(0, m.indexOf(':')), 2);
+        List<Path> rolled = new CopyOnWriteArrayList<>();
+        s.addRollListener(rolled::add);
+        assertFalse(s.isRecoverOnStartup());
+        s.setRecoverOnStartup(true);
+        s.startAsync().awaitRunning();
+        assertEquals(Arrays.asList(root.resolve("bs1/ais.txt"), root.resolve("bs2/ais.txt")), rolled);
+        s.getInputQueue().put("bs1:d");
+        s.stopAsync().awaitTerminated();
+
+        assertEquals(3, rolled.size());
+        assertEquals(Arrays.asList("a"), Files.readAllLines(rolled.get(0), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("c"), Files.readAllLines(rolled.get(1), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("bs1:d"), Files.readAllLines(rolled.get(2), StandardCharsets.UTF_8));
+        assertTrue(Files.exists(root.resolve("bs2/other.txt.tmp")));
+    }
+
+    /**
+     * Tests that recovery is not supported if the directories written to are not known.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void recoverOnStartupUnsupported() {
+        new ShardedMessageToFileService<String>(m -> m, 1, k -> null).setRecoverOnStartup(true);
+    }
+}
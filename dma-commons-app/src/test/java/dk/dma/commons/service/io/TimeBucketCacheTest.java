@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TimeBucketCache}.
+ *
+ * @author Kasper Nielsen
+ */
+public class TimeBucketCacheTest {
+
+    /** Tests that the smallest time unit of a pattern is found, ignoring quoted text. */
+    @Test
+    public void bucketUnit() {
+        assertEquals(ChronoUnit.HOURS, TimeBucketCache.bucketUnit("'ais'-yyyy-MM-dd-HH'.txt.zip'"));
+        assertEquals(ChronoUnit.DAYS, TimeBucketCache.bucketUnit("yyyy/MM/dd'.txt'"));
+        assertEquals(ChronoUnit.MONTHS, TimeBucketCache.bucketUnit("'data-'yyyy-MM"));
+        assertEquals(ChronoUnit.YEARS, TimeBucketCache.bucketUnit("yyyy"));
+        assertEquals(ChronoUnit.SECONDS, TimeBucketCache.bucketUnit("HH-mm-ss'.txt'"));
+        assertEquals(ChronoUnit.DAYS, TimeBucketCache.bucketUnit("YYYY-'w'ww"));
+        assertEquals(ChronoUnit.FOREVER, TimeBucketCache.bucketUnit("'timestamp''s.txt'"));
+    }
+
+    /**
+     * Tests that the cache returns the same path as formatting the pattern, for every minute over a daylight saving time
+     * change, and only switches path at the boundaries of the pattern. The
+     * repeated hour when daylight saving time ends is written to the same file, as it formats to the same filename.
+     */
+    @Test
+    public void matchesSimpleDateFormat() {
+        TimeZone def = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Copenhagen"));
+        try {
+            for (String pattern : new String[] { "yyyy-MM-dd-HH'.txt'", "yyyy-MM-dd-hh-a", "yyyy-MM-dd", "yyyy-MM",
+                    "yyyy", "'const.txt'" }) {
+                TimeBucketCache c = new TimeBucketCache(Paths.get("root"), pattern);
+                SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+                // Daylight saving time ends 2013-10-27 03:00 CEST
+                long start = ZonedDateTime.of(2013, 10, 26, 12, 0, 0, 0, ZoneId.of("Europe/Copenhagen")).toInstant()
+                        .toEpochMilli();
+                Path previous = null;
+                long end = Long.MIN_VALUE;
+                for (long t = start; t < start + 48 * 3600_000L; t += 60_000L) {
+                    Path p = c.pathFor(t);
+                    assertEquals(Paths.get("root").resolve(sdf.format(new Date(t))), p);
+                    if (t < end) {
+                        assertSame(previous, p);
+                    }
+                    end = c.getEnd();
+                    previous = p;
+                }
+            }
+        } finally {
+            TimeZone.setDefault(def);
+        }
+    }
+}
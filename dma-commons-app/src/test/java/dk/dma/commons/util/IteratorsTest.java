@@ -16,11 +16,15 @@ package dk.dma.commons.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -85,4 +89,34 @@ public class IteratorsTest {
         }
         assertFalse(combine.hasNext());
     }
+
+    /**
+     * Merges random sorted lists, and checks that equal elements are returned in the order of their iterators.
+     */
+    @Test
+    public void mergeSorted() {
+        Random r = new Random(1);
+        for (int k = 0; k < 10; k++) {
+            List<Iterator<int[]>> iterators = new ArrayList<>();
+            List<int[]> expected = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                List<int[]> l = new ArrayList<>();
+                int size = r.nextInt(50);
+                for (int j = 0; j < size; j++) {
+                    l.add(new int[] { r.nextInt(20), i });
+                }
+                l.sort(Comparator.comparingInt(a -> a[0]));
+                expected.addAll(l);
+                iterators.add(l.iterator());
+            }
+            // stable sort, so equal values are ordered by iterator
+            expected.sort(Comparator.comparingInt(a -> a[0]));
+            Iterator<int[]> merged = Iterators.mergeSorted(iterators, Comparator.comparingInt(a -> a[0]));
+            for (int[] e : expected) {
+                assertSame(e, merged.next());
+            }
+            assertFalse(merged.hasNext());
+        }
+        assertFalse(Iterators.mergeSorted(Collections.<Iterator<Integer>> emptyList(), NATURAL_INT).hasNext());
+    }
 }
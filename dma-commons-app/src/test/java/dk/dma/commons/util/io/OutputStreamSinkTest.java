@@ -0,0 +1,80 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.util.io;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OutputStreamSink}.
+ *
+ * @author Kasper Nielsen
+ */
+public class OutputStreamSinkTest {
+
+    static byte[] write(OutputStreamSink<String> sink, List<String> messages, boolean batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (batch) {
+            sink.processAll(bos, messages, 0);
+        } else {
+            for (int i = 0; i < messages.size(); i++) {
+                sink.process(bos, messages.get(i), i);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Tests that the text sink writes the same bytes as the to string sink, also for messages larger than its buffers,
+     * surrogate pairs split across buffers, and characters that cannot be encoded.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void textSink() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < EncodingOutputStreamSink.BUFFER_SIZE * 3; i++) {
+            large.append(i % 3 == 0 ? "🚢" : "æ"); // ship emoji as a surrogate pair
+        }
+        List<String> messages = new ArrayList<>(Arrays.asList("!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24", "",
+                "æøå", "broken \uD83D surrogate", large.toString(), "x"));
+        for (int i = 0; i < 1000; i++) {
+            messages.add("message " + i);
+        }
+        for (Charset cs : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.US_ASCII, StandardCharsets.ISO_8859_1)) {
+            byte[] expected = write(OutputStreamSink.toStringSink(cs), messages, false);
+            OutputStreamSink<String> sink = OutputStreamSink.textSink(cs);
+            assertArrayEquals(expected, write(sink, messages, false));
+            assertArrayEquals(expected, write(sink, messages, true));
+            OutputStreamSink<StringBuilder> builders = OutputStreamSink.textSink(cs);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            StringBuilder sb = new StringBuilder();
+            for (String s : messages) {
+                sb.setLength(0);
+                builders.process(bos, sb.append(s), 0);
+            }
+            assertArrayEquals(expected, bos.toByteArray());
+        }
+    }
+}
@@ -16,6 +16,7 @@ package dk.dma.commons.util;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -125,6 +126,145 @@ public class Iterators {
 
     }
 
+    /**
+     * Merges the specified iterators, each sorted according to the specified comparator, into a single sorted iterator.
+     * Unlike {@link #combine(Collection, Comparator)}, the merge uses a tournament tree of losers. So each element
+     * costs at most log2(k) comparisons, where k is the number of iterators, and only the path from the leaf of the
+     * iterator that produced the last element is replayed. Equal elements are returned in the order of the iterators.
+     * The first element of each iterator is not read until the first element of the merged iterator is requested.
+     *
+     * @param <T>        the type of elements
+     * @param iterators  the sorted iterators to merge
+     * @param comparator the comparator the iterators are sorted by
+     * @return the merged iterator
+     */
+    public static <T> Iterator<T> mergeSorted(Collection<? extends Iterator<? extends T>> iterators,
+            Comparator<? super T> comparator) {
+        return new LoserTreeIterator<>(iterators, requireNonNull(comparator, "comparator is null"));
+    }
+
+    /**
+     * An iterator merging sorted iterators using a tournament tree of losers. Leaf i of the tree is the current head of
+     * iterator i, internal nodes 1 to k-1 holds the index of the loser of the match played at the node, and node 0
+     * holds the index of the overall winner. Exhausted iterators lose every match.
+     *
+     * @param <T> the type of elements
+     */
+    static final class LoserTreeIterator<T> extends AbstractIterator<T> {
+
+        /** The comparator the iterators are sorted by. */
+        private final Comparator<? super T> comparator;
+
+        /** Whether or not each iterator is exhausted. */
+        private final boolean[] exhausted;
+
+        /** The current head of each iterator. */
+        private final Object[] heads;
+
+        /** The iterators to merge. */
+        private final Iterator<? extends T>[] iterators;
+
+        /** The tree, or null if the tree has not been built yet. */
+        private int[] tree;
+
+        /**
+         * Creates a new iterator.
+         *
+         * @param iterators  the iterators to merge
+         * @param comparator the comparator the iterators are sorted by
+         */
+        @SuppressWarnings("unchecked")
+        LoserTreeIterator(Collection<? extends Iterator<? extends T>> iterators, Comparator<? super T> comparator) {
+            this.iterators = iterators.toArray((Iterator<? extends T>[]) new Iterator<?>[iterators.size()]);
+            for (Iterator<? extends T> i : this.iterators) {
+                requireNonNull(i, "iterators contains null");
+            }
+            this.comparator = comparator;
+            this.heads = new Object[this.iterators.length];
+            this.exhausted = new boolean[this.iterators.length];
+        }
+
+        /**
+         * Moves the specified iterator to its next element.
+         *
+         * @param i the index of the iterator
+         */
+        private void advance(int i) {
+            if (iterators[i].hasNext()) {
+                heads[i] = iterators[i].next();
+            } else {
+                heads[i] = null;
+                exhausted[i] = true;
+            }
+        }
+
+        /**
+         * Returns whether iterator a wins over iterator b, that is, whether the head of a should be returned first.
+         *
+         * @param a the index of the first iterator
+         * @param b the index of the second iterator
+         * @return whether iterator a wins over iterator b
+         */
+        @SuppressWarnings("unchecked")
+        private boolean beats(int a, int b) {
+            if (exhausted[a] || exhausted[b]) {
+                return !exhausted[a] || exhausted[b] && a < b;
+            }
+            int c = comparator.compare((T) heads[a], (T) heads[b]);
+            return c < 0 || c == 0 && a < b;
+        }
+
+        /** {@inheritDoc} */
+        @SuppressWarnings("unchecked")
+        @Override
+        protected T computeNext() {
+            int k = iterators.length;
+            if (tree == null) {
+                if (k == 0) {
+                    return endOfData();
+                }
+                tree = new int[k];
+                Arrays.fill(tree, -1);
+                for (int i = k - 1; i >= 0; i--) {
+                    advance(i);
+                    replay(i);
+                }
+            } else {
+                int w = tree[0];
+                advance(w);
+                replay(w);
+            }
+            int w = tree[0];
+            if (exhausted[w]) {
+                return endOfData();
+            }
+            T next = (T) heads[w];
+            heads[w] = null;
+            return next;
+        }
+
+        /**
+         * Plays the matches from the leaf of the specified iterator to the root. While the tree is being built, a node
+         * that has not been visited before keeps the iterator until the winner of its other subtree arrives.
+         *
+         * @param s the index of the iterator
+         */
+        private void replay(int s) {
+            int k = iterators.length;
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (tree[t] == -1) {
+                    tree[t] = s;
+                    return;
+                } else if (beats(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+    }
+
     /**
      * The type Entry.
      *
@@ -17,6 +17,7 @@ package dk.dma.commons.util.concurrent;
 import static java.util.Objects.requireNonNull;
 
 import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 
 import dk.dma.enav.util.function.EConsumer;
@@ -45,7 +46,8 @@ public class ForkJoinUtil {
 
 
     /**
-     * Invokes the consumer for each element in the specified array.
+     * Invokes the consumer for each element in the specified array. If the consumer fails, elements that have not yet
+     * been started are skipped.
      *
      * @param <E>      the type parameter
      * @param array    the array to consume
@@ -62,6 +64,28 @@ public class ForkJoinUtil {
         }
     }
 
+    /**
+     * Invokes the consumer for each element in the specified array on the specified pool, and waits for all of them to
+     * complete. If the consumer fails, elements that have not yet been started are skipped.
+     *
+     * @param <E>      the type parameter
+     * @param pool     the pool to invoke the consumer on
+     * @param array    the array to consume
+     * @param consumer the consumer of each element
+     * @throws Exception the exception thrown by the consumer
+     * @throws NullPointerException if the pool, array or consumer is null
+     */
+    public static <E> void forEach(ForkJoinPool pool, E[] array, EConsumer<E> consumer) throws Exception {
+        requireNonNull(pool, "pool is null");
+        requireNonNull(array, "array is null");
+        requireNonNull(consumer, "consumer is null");
+        try {
+            pool.invoke(new ForEachE<>(null, consumer, array, 0, array.length));
+        } catch (InnerRuntimeException i) {
+            throw (Exception) i.getCause();
+        }
+    }
+
 
     /**
      * Invokes the specified consumer for each element in an array.
@@ -160,7 +184,7 @@ public class ForkJoinUtil {
                 fe.fork(); // right child
                 h = mid;
             }
-            if (h > l) {
+            if (h > l && !getRoot().isCompletedAbnormally()) { // skip remaining elements if one has failed
                 try {
                     op.accept(array[l]);
                 } catch (RuntimeException e) {
@@ -0,0 +1,188 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.util.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A sink writing each message as a line of text, encoding the characters directly into a reused buffer. Unlike
+ * {@link OutputStreamSink#toStringSink(Charset)}, no strings or byte arrays are allocated per message, as long as the
+ * function returning the text of a message does not allocate. Characters that cannot be encoded are replaced, like
+ * {@link String#getBytes(Charset)} does.
+ * <p>
+ * Characters are copied to a char buffer, which is encoded whenever it is full, and at the end of every call to
+ * {@link #process} and {@link #processAll}. So the cost of the encoder is shared by all messages of a batch. The
+ * encoded bytes are written to the stream when the byte buffer is full, and at the end of every call. A sink can only
+ * be used by one thread at a time.
+ *
+ * @param <T> the type of messages
+ * @author Kasper Nielsen
+ */
+final class EncodingOutputStreamSink<T> extends OutputStreamSink<T> {
+
+    /** The size of the buffers. */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The encoded bytes, backed by an array. */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** The characters to encode, backed by an array. */
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    /** The encoder. */
+    private final CharsetEncoder encoder;
+
+    /** Returns the text of a message. */
+    private final Function<? super T, ? extends CharSequence> text;
+
+    /**
+     * Creates a new sink.
+     *
+     * @param charset the charset to encode with
+     * @param text    returns the text of a message
+     */
+    EncodingOutputStreamSink(Charset charset, Function<? super T, ? extends CharSequence> text) {
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.text = text;
+    }
+
+    /** Discards any partially encoded message, after a failure. */
+    private void discard() {
+        chars.clear();
+        bytes.clear();
+        encoder.reset();
+    }
+
+    /**
+     * Encodes the characters in the char buffer into the byte buffer, writing the byte buffer to the stream when full.
+     *
+     * @param stream     the stream to write to
+     * @param endOfInput whether or not there are no more characters in this call to the sink
+     * @throws IOException if the stream could not be written
+     */
+    private void encode(OutputStream stream, boolean endOfInput) throws IOException {
+        chars.flip();
+        for (;;) {
+            CoderResult r = encoder.encode(chars, bytes, endOfInput);
+            if (r.isOverflow()) {
+                writeBytes(stream);
+            } else if (r.isUnderflow()) {
+                break;
+            } else {
+                // Cannot happen when replacing, but an encoder is free to report it anyway
+                try {
+                    r.throwException();
+                } catch (CharacterCodingException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes(stream);
+            }
+            encoder.reset();
+        }
+        chars.compact(); // keeps a high surrogate waiting for its low surrogate
+    }
+
+    /**
+     * Adds the text of a single message, and a line feed, to the characters to encode. The characters are encoded
+     * whenever the char buffer is full.
+     *
+     * @param stream  the stream to write to
+     * @param message the message
+     * @throws IOException if the stream could not be written
+     */
+    private void encodeMessage(OutputStream stream, T message) throws IOException {
+        CharSequence cs = text.apply(message);
+        int length = cs.length();
+        for (int i = 0; i < length;) {
+            if (!chars.hasRemaining()) {
+                encode(stream, false);
+            }
+            int n = Math.min(length - i, chars.remaining());
+            int pos = chars.position();
+            // Bulk copy for the common types, charAt for everything else
+            if (cs instanceof String) {
+                ((String) cs).getChars(i, i + n, chars.array(), chars.arrayOffset() + pos);
+            } else if (cs instanceof StringBuilder) {
+                ((StringBuilder) cs).getChars(i, i + n, chars.array(), chars.arrayOffset() + pos);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    chars.put(pos + j, cs.charAt(i + j));
+                }
+            }
+            chars.position(pos + n);
+            i += n;
+        }
+        if (!chars.hasRemaining()) {
+            encode(stream, false);
+        }
+        chars.put('\n');
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void process(OutputStream stream, T message, long count) throws IOException {
+        try {
+            encodeMessage(stream, message);
+            encode(stream, true);
+            writeBytes(stream);
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void processAll(OutputStream stream, List<? extends T> messages, long startCount) throws IOException {
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                encodeMessage(stream, messages.get(i));
+            }
+            encode(stream, true);
+            writeBytes(stream);
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the encoded bytes to the stream, and clears the byte buffer.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeBytes(OutputStream stream) throws IOException {
+        if (bytes.position() > 0) {
+            stream.write(bytes.array(), bytes.arrayOffset(), bytes.position());
+            bytes.clear();
+        }
+    }
+}
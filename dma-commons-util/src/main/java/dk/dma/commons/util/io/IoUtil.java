@@ -201,6 +201,12 @@ public class IoUtil {
             public void close() throws IOException {
                 throw new UnsupportedOperationException("Close is not supported");
             }
+
+            /** Forwards the whole array, FilterOutputStream would otherwise write it one byte at a time. */
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
         };
     }
 
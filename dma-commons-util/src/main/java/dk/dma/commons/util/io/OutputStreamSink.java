@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * <p>
@@ -59,6 +61,16 @@ public abstract class OutputStreamSink<T> {
      */
     public void footer(OutputStream stream, long count) throws IOException {}
 
+    /**
+     * Writes any messages buffered by the sink to the stream. Invoked by writers before they flush the stream, so sinks
+     * that buffer messages, for example to write them in blocks, do not hold back messages that should be persisted.
+     * The default implementation does nothing.
+     *
+     * @param stream the stream
+     * @throws IOException the io exception
+     */
+    public void flush(OutputStream stream) throws IOException {}
+
     /**
      * Process.
      *
@@ -69,6 +81,21 @@ public abstract class OutputStreamSink<T> {
      */
     public abstract void process(OutputStream stream, T message, long count) throws IOException;
 
+    /**
+     * Processes a batch of messages. The default implementation invokes {@link #process(OutputStream, Object, long)}
+     * for each message, sinks that can write a batch more efficiently should override it.
+     *
+     * @param stream     the stream
+     * @param messages   the messages
+     * @param startCount the count of the first message, the following messages have consecutive counts
+     * @throws IOException the io exception
+     */
+    public void processAll(OutputStream stream, List<? extends T> messages, long startCount) throws IOException {
+        for (int i = 0; i < messages.size(); i++) {
+            process(stream, messages.get(i), startCount + i);
+        }
+    }
+
     /**
      * Header.
      *
@@ -109,6 +136,12 @@ public abstract class OutputStreamSink<T> {
                 stream.flush();
             }
 
+            @Override
+            public void flush(OutputStream stream) throws IOException {
+                OutputStreamSink.this.flush(stream);
+                stream.flush();
+            }
+
             @Override
             public void header(OutputStream stream) throws IOException {
                 OutputStreamSink.this.header(stream);
@@ -217,6 +250,35 @@ public abstract class OutputStreamSink<T> {
         };
     }
 
+    /**
+     * Returns a sink that writes each message as a line of text, encoding it directly into a reused buffer. Unlike
+     * {@link #toStringSink(Charset)} no garbage is produced per message. The returned sink can only be used by one
+     * thread at a time.
+     *
+     * @param <T>     the type of messages
+     * @param charset the charset that should be used for encoding
+     * @return a new sink
+     */
+    public static <T extends CharSequence> OutputStreamSink<T> textSink(Charset charset) {
+        return textSink(charset, Function.identity());
+    }
+
+    /**
+     * Returns a sink that writes the text of each message as a line, encoding it directly into a reused buffer. No
+     * garbage is produced per message, as long as the specified function does not allocate, for example if it returns
+     * a field of the message. The returned sink can only be used by one thread at a time.
+     *
+     * @param <T>     the type of messages
+     * @param charset the charset that should be used for encoding
+     * @param text    returns the text of a message
+     * @return a new sink
+     */
+    public static <T> OutputStreamSink<T> textSink(Charset charset, Function<? super T, ? extends CharSequence> text) {
+        requireNonNull(charset, "charset is null");
+        requireNonNull(text, "text is null");
+        return new EncodingOutputStreamSink<>(charset, text);
+    }
+
     /**
      * The type Delegating output stream sink.
      *
@@ -239,6 +301,12 @@ public abstract class OutputStreamSink<T> {
             oss.footer(stream, count);
         }
 
+        /** {@inheritDoc} */
+        @Override
+        public void flush(OutputStream stream) throws IOException {
+            oss.flush(stream);
+        }
+
         /** {@inheritDoc} */
         public void header(OutputStream stream) throws IOException {
             oss.header(stream);
@@ -248,5 +316,11 @@ public abstract class OutputStreamSink<T> {
         public void process(OutputStream stream, T message, long count) throws IOException {
             oss.process(stream, message, count);
         }
+
+        /** {@inheritDoc} */
+        @Override
+        public void processAll(OutputStream stream, List<? extends T> messages, long startCount) throws IOException {
+            oss.processAll(stream, messages, startCount);
+        }
     }
 }